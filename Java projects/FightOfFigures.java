@@ -1,211 +1,5385 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
 
 public class FightOfFigures {
     public static void main(String[] args) {
-        Scanner in = new Scanner(System.in);
-        PlayingSystem sys = new PlayingSystem(in);
-        int P = Integer.parseInt(in.nextLine());
-        for (int i  = 0; i < P; i++) {
-            String[] command = in.nextLine().split(" ");
-            sys.processCommand(command);
+        args = Metrics.configure(args);
+        if (args == null) {
+            return;
+        }
+        args = EventLog.configure(args);
+        if (args == null) {
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchRunner.main(args);
+            return;
+        }
+        try {
+            if (args.length > 0 && args[0].equals("--replay")) {
+                JournalReplay.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--analyze")) {
+                MatchAnalyzer.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--serve")) {
+                MatchServer.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--bench")) {
+                Benchmark.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--simulate")) {
+                Simulation.main(args);
+                return;
+            }
+            if (args.length > 0 && args[0].equals("--check-board")) {
+                BoardCheck.main(args);
+                return;
+            }
+            Path resumeFrom = null;
+            Path snapshotFile = null;
+            long snapshotAt = -1;
+            boolean arena = false;
+            int botCommands = 0;
+            int botDepth = 0;
+            int streamBatch = 0;
+            Path mapFile = null;
+            Path journalFile = null;
+            int keyframeInterval = 0;
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--resume":
+                        resumeFrom = Paths.get(args[++i]);
+                        break;
+                    case "--snapshot-at":
+                        snapshotAt = Long.parseLong(args[++i]);
+                        snapshotFile = Paths.get(args[++i]);
+                        break;
+                    case "--arena":
+                        arena = true;
+                        break;
+                    case "--journal":
+                        journalFile = Paths.get(args[++i]);
+                        keyframeInterval = Integer.parseInt(args[++i]);
+                        break;
+                    case "--map":
+                        mapFile = Paths.get(args[++i]);
+                        break;
+                    case "--stream":
+                        streamBatch = Integer.parseInt(args[++i]);
+                        break;
+                    case "--bot":
+                        botCommands = Integer.parseInt(args[++i]);
+                        botDepth = Integer.parseInt(args[++i]);
+                        break;
+                }
+            }
+            CommandReader in;
+            if (mapFile != null) {
+                in = new CommandReader(FileChannel.open(mapFile, StandardOpenOption.READ));
+            } else if (streamBatch > 0) {
+                in = new CommandReader(Channels.newChannel(System.in));
+            } else {
+                in = new CommandReader(System.in);
+            }
+            in.setMetrics(Metrics.recorder());
+            OutputBuffer out = new OutputBuffer(System.out);
+            PlayingSystem sys;
+            //Resumed match reads the same input, but commands played before the snapshot are skipped.
+            if (resumeFrom != null) {
+                sys = MatchSnapshot.load(resumeFrom, out);
+                MatchSnapshot.skipHeader(in, arena);
+                in.setSymbols(sys.getFigures().getSymbols());
+            } else if (arena) {
+                sys = PlayingSystem.readArena(in, out);
+            } else {
+                sys = new PlayingSystem(in, out);
+            }
+            MatchJournal journal = null;
+            if (journalFile != null) {
+                journal = MatchJournal.create(journalFile, sys, keyframeInterval);
+                sys.setJournal(journal);
+            }
+            EventLog events = EventLog.open(sys);
+            long played = sys.getCommandIndex();
+            //Streamed input has no command count, commands are read until the end of input
+            //and output is flushed after every streamBatch commands.
+            long P = streamBatch > 0 ? Long.MAX_VALUE : in.readInt();
+            for (long i  = 0; i < P && in.readCommand(); i++) {
+                if (i < played) {
+                    continue;
+                }
+                sys.processCommand(in.getFigure(), in.getAction());
+                if (sys.getCommandIndex() == snapshotAt) {
+                    //Resumed match does not print output of commands before the snapshot again.
+                    out.flush();
+                    MatchSnapshot.save(sys, snapshotFile);
+                }
+                if (streamBatch > 0 && (i + 1) % streamBatch == 0) {
+                    out.flush();
+                }
+            }
+            //Bots continue the match after the last command of the input.
+            if (botCommands > 0) {
+                Bot bot = new Bot(sys, botDepth, Runtime.getRuntime().availableProcessors(),
+                        Bot.DEFAULT_TABLE_MEGABYTES);
+                bot.play(out, botCommands);
+                System.err.printf("Bot searched %d nodes, %.0f nodes/sec%n", bot.getNodes(), bot.getNodesPerSecond());
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (events != null) {
+                events.close();
+            }
+            sys.printWinner();
+            in.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+}
+
+//Action status
+/*Result of an action. Some inputs consist mostly of rejected actions, so
+* rejection is returned as a status instead of throwing an exception, and
+* rejecting an action allocates nothing. Every reason has its own status,
+* but all of them are printed as INVALID ACTION.*/
+enum ActionStatus {
+    OK,
+    NO_FIGURE,
+    DEAD_FIGURE,
+    OUT_OF_BOUNDS,
+    SAME_TEAM,
+    CLONE_OF_CLONE,
+    ALREADY_CLONED,
+    CLONE_ON_DIAGONAL,
+    CLONE_TARGET_OCCUPIED;
+}
+
+//System
+/*PlayingSystem is a Facade that unites functionality
+ of other program classes providing more convenient interaction.
+ Each PlayingSystem owns its own Board and output stream, so several
+ matches can be played at once in one process, each on its own thread.*/
+class PlayingSystem {
+    static final int NO_FIGURE = -1;
+    /*Slots and teams of the classic two-team match.*/
+    static final int GREEN = 0;
+    static final int RED = 1;
+    static final int GREEN_CLONE = 2;
+    static final int RED_CLONE = 3;
+    static final int GREEN_TEAM = 0;
+    static final int RED_TEAM = 1;
+    private static final Action[] ACTIONS = Action.values();
+    private static final byte[] INVALID_ACTION = OutputBuffer.ascii("INVALID ACTION");
+    private static final byte[] MOVED_TO = OutputBuffer.ascii(" MOVED TO ");
+    private static final byte[] AND_COLLECTED = OutputBuffer.ascii(" AND COLLECTED ");
+    private static final byte[] AND_KILLED = OutputBuffer.ascii(" AND KILLED ");
+    private static final byte[] CLONED_TO = OutputBuffer.ascii(" CLONED TO ");
+    private static final byte[] STYLE_ATTACKING = OutputBuffer.ascii(" CHANGED STYLE TO ATTACKING");
+    private static final byte[] STYLE_NORMAL = OutputBuffer.ascii(" CHANGED STYLE TO NORMAL");
+    private static final byte[] TEAM_WINS = OutputBuffer.ascii(" TEAM WINS. SCORE ");
+    private static final byte[] TIE = OutputBuffer.ascii("TIE. SCORE ");
+    private Board board;
+    private OutputBuffer out;
+    private FigureRegistry figures;
+    private int[] scores;
+    private CoinIndex coinIndex;
+    private EventStream events;
+    private MatchJournal journal;
+    private MatchHistory history;
+    private MetricsRecorder metrics;
+    private NormalStyle styles = NormalStyle.INSTANCE;
+    private long commandIndex;
+
+    /*I pass CommandReader to PlayingSystem constructor,
+    * and read all the input (except commands) right here.*/
+    public PlayingSystem(CommandReader in, OutputBuffer out) throws IOException {
+        this(in, out, true);
+    }
+
+    /*Same, but small boards are bitboards only if bitboards is true.*/
+    PlayingSystem(CommandReader in, OutputBuffer out, boolean bitboards) throws IOException {
+        this(Board.forDimension(in.readInt(), bitboards), FigureRegistry.classic(), out);
+        for (int slot = GREEN; slot <= RED; slot++) {
+            int x = in.readInt();
+            int y = in.readInt();
+            this.placeFigure(this.figures.createOriginal(slot, x, y));
+        }
+        this.readCoins(in);
+        in.setSymbols(this.figures.getSymbols());
+    }
+
+    /*Creates match with empty board of size n. Figures and coins are placed later,
+    * for example when the match is restored from a snapshot.*/
+    PlayingSystem(int n, FigureRegistry figures, OutputBuffer out) {
+        this(Board.forDimension(n, true), figures, out);
+    }
+
+    PlayingSystem(Board board, FigureRegistry figures, OutputBuffer out) {
+        this.board = board;
+        this.setOutput(out);
+        this.figures = figures;
+        this.scores = new int[figures.getTeamCount()];
+    }
+
+    /*Arena match can have any number of teams and figures. Its input is:
+    * N, number of teams T, then for every team a line "NAME F" followed by F
+    * lines "FIGURENAME X Y", and then coins in the same format as in classic match.
+    * Clone of a figure is called FIGURENAME + "CLONE".*/
+    public static PlayingSystem readArena(CommandReader in, OutputBuffer out) throws IOException {
+        int n = in.readInt();
+        int T = in.readInt();
+        String[] teamNames = new String[T];
+        List<String> names = new ArrayList<>();
+        List<Integer> teams = new ArrayList<>();
+        List<int[]> positions = new ArrayList<>();
+        for (int team = 0; team < T; team++) {
+            teamNames[team] = in.readWord();
+            int F = in.readInt();
+            for (int i = 0; i < F; i++) {
+                names.add(in.readWord());
+                teams.add(team);
+                positions.add(new int[] {in.readInt(), in.readInt()});
+            }
+        }
+        FigureRegistry registry = new FigureRegistry(teamNames, names.toArray(new String[0]),
+                teams.stream().mapToInt(Integer::intValue).toArray());
+        PlayingSystem sys = new PlayingSystem(n, registry, out);
+        for (int slot = 0; slot < positions.size(); slot++) {
+            sys.placeFigure(registry.createOriginal(slot, positions.get(slot)[0], positions.get(slot)[1]));
+        }
+        sys.readCoins(in);
+        in.setSymbols(registry.getSymbols());
+        return sys;
+    }
+
+    /*Coins go straight into columns of CoinStore, no Coin objects are created.*/
+    private void readCoins(CommandReader in) throws IOException {
+        int M = in.readInt();
+        this.board.getCoins().load(in, M);
+        this.coinIndex = null;
+    }
+
+    void placeFigure(Figure fig) {
+        fig.setStyles(this.styles);
+        this.figures.set(fig.getSlot(), fig);
+        //Killed figures are not on the board anymore.
+        if (!fig.isDead()) {
+            this.board.placeItem(fig.getX(), fig.getY(), fig);
+        }
+    }
+
+    void placeCoin(int x, int y, int value) {
+        this.board.getCoins().add(x, y, value);
+        this.coinIndex = null;
+    }
+
+    /*Attacking figures of this match move by given number of cells instead of 2.*/
+    void setAttackingStep(int step) {
+        this.styles = NormalStyle.withAttackingStep(step);
+        for (int slot = 0; slot < this.figures.size(); slot++) {
+            if (this.figures.get(slot) != null) {
+                this.figures.get(slot).setStyles(this.styles);
+            }
+        }
+    }
+
+    int getAttackingStep() {
+        return this.styles.next().getStep();
+    }
+
+    /*Clears the match, so it can be played again on the same board: figures are
+    * taken off the board, clones are forgotten, coins and scores are cleared.
+    * Original figures stay in the registry and are placed again after Figure.reset.*/
+    void reset() {
+        for (int slot = 0; slot < this.figures.size(); slot++) {
+            Figure fig = this.figures.get(slot);
+            if (fig != null && !fig.isDead()) {
+                this.board.removeItem(fig.getX(), fig.getY());
+            }
+            if (this.figures.isClone(slot)) {
+                this.figures.set(slot, null);
+            }
+        }
+        this.board.getCoins().clear();
+        this.coinIndex = null;
+        Arrays.fill(this.scores, 0);
+        this.commandIndex = 0;
+        if (this.history != null) {
+            this.history.clear();
+        }
+    }
+
+    void restoreProgress(long commandIndex, int[] scores) {
+        this.commandIndex = commandIndex;
+        System.arraycopy(scores, 0, this.scores, 0, this.scores.length);
+    }
+
+    CoinStore getCoins() {
+        return this.board.getCoins();
+    }
+
+    /*Coin store also keeps collected coins, only coins still lying on the board are counted.*/
+    int countCoinsOnBoard() {
+        return this.board.getCoins().countOnBoard();
+    }
+
+    /*Command is already decoded by CommandReader: figure is a slot of
+    * FigureRegistry (or NO_FIGURE), action is null for unknown actions.
+    * Returns status of the action, or null for unknown actions.*/
+    public ActionStatus processCommand(int figure, Action action) throws IOException {
+        if (this.metrics == null) {
+            return this.execute(figure, action);
+        }
+        long start = System.nanoTime();
+        ActionStatus status = this.execute(figure, action);
+        this.metrics.command(action, status, System.nanoTime() - start);
+        return status;
+    }
+
+    private ActionStatus execute(int figure, Action action) throws IOException {
+        this.commandIndex++;
+        if (action == null) {
+            if (this.journal != null) {
+                this.journal.record(this, figure, null, null);
+            }
+            if (this.history != null) {
+                this.history.push(figure, MatchHistory.NONE, 0, 0, 0);
+            }
+            return null;
+        }
+        Figure curFig = this.history == null ? null : this.getFigure(figure);
+        int oldX = curFig == null ? 0 : curFig.getX();
+        int oldY = curFig == null ? 0 : curFig.getY();
+        ActionStatus status;
+        switch (action) {
+            case UP:
+            case DOWN:
+            case LEFT:
+            case RIGHT:
+                status = this.move(figure, action.getDirection());
+                break;
+            case COPY:
+                status = this.copy(figure);
+                break;
+            default:
+                status = this.changeStyle(figure);
+        }
+        if (status != ActionStatus.OK) {
+            this.out.append(INVALID_ACTION).newLine();
+            if (this.events != null) {
+                this.events.publish(this.commandIndex, MatchEventType.INVALID, figure, 0, 0, action.ordinal());
+            }
+        }
+        if (this.journal != null) {
+            this.journal.record(this, figure, action, status);
+        }
+        if (this.history != null) {
+            this.remember(figure, action, status, oldX, oldY);
+        }
+        return status;
+    }
+
+    /*Pushes the delta of the command to the history: what a move took is
+    * kept as id + 1 of the collected coin or -(slot + 1) of the killed figure.*/
+    private void remember(int figure, Action action, ActionStatus status, int oldX, int oldY) {
+        if (status != ActionStatus.OK) {
+            this.history.push(figure, MatchHistory.NONE, 0, 0, 0);
+            return;
+        }
+        int taken = 0;
+        if (action.getDirection() != null) {
+            FieldItem item = this.getFigure(figure).getTaken();
+            if (item instanceof Coin) {
+                taken = ((Coin) item).getId() + 1;
+            } else if (item != null) {
+                taken = -((Figure) item).getSlot() - 1;
+            }
+        }
+        this.history.push(figure, action.ordinal(), oldX, oldY, taken);
+    }
+
+    /*Takes back the last command kept in the history, returns false if there is none.
+    * Only the state of the match changes: nothing is printed, published or journaled.*/
+    public boolean undo() {
+        if (this.history == null || !this.history.canUndo()) {
+            return false;
+        }
+        int[] records = this.history.getRecords();
+        int at = this.history.undo();
+        int figure = MatchScript.figureOf(records[at]);
+        int action = MatchScript.actionOf(records[at]);
+        this.commandIndex--;
+        if (action == MatchHistory.NONE) {
+            return true;
+        }
+        Figure curFig = this.getFigure(figure);
+        if (ACTIONS[action] == Action.COPY) {
+            ClonedFigure clone = ((OriginalFigure) curFig).getClone();
+            this.board.removeItem(clone.getX(), clone.getY());
+            this.figures.set(clone.getSlot(), null);
+            ((OriginalFigure) curFig).setWasCloned(false);
+        } else if (ACTIONS[action] == Action.STYLE) {
+            curFig.changeStyle();
+        } else {
+            int newX = curFig.getX();
+            int newY = curFig.getY();
+            this.board.moveFigure(curFig, records[at + 1], records[at + 2]);
+            curFig.setX(records[at + 1]);
+            curFig.setY(records[at + 2]);
+            int taken = records[at + 3];
+            if (taken > 0) {
+                CoinStore coins = this.board.getCoins();
+                coins.restore(taken - 1);
+                this.scores[curFig.getTeam()] -= coins.getValue(taken - 1);
+                //Collected coins cannot be put back into CoinIndex, it is built again when needed.
+                this.coinIndex = null;
+            } else if (taken < 0) {
+                Figure victim = this.getFigure(-taken - 1);
+                victim.restore(false, victim.isAttacking());
+                this.board.placeItem(newX, newY, victim);
+            }
+        }
+        return true;
+    }
+
+    /*Makes again the last undone command, returns false if there is none.
+    * Commands in the history were valid, so they are made without checks and output.*/
+    public boolean redo() {
+        if (this.history == null || !this.history.canRedo()) {
+            return false;
+        }
+        int[] records = this.history.getRecords();
+        int at = this.history.redo();
+        int figure = MatchScript.figureOf(records[at]);
+        int action = MatchScript.actionOf(records[at]);
+        this.commandIndex++;
+        if (action == MatchHistory.NONE) {
+            return true;
+        }
+        Figure curFig = this.getFigure(figure);
+        if (ACTIONS[action] == Action.COPY) {
+            curFig.copy(this.board);
+            this.placeFigure(((OriginalFigure) curFig).getClone());
+        } else if (ACTIONS[action] == Action.STYLE) {
+            curFig.changeStyle();
+        } else {
+            curFig.move(this.board, ACTIONS[action].getDirection());
+            this.addPoints(curFig);
+        }
+        return true;
+    }
+
+    /*Commands of this match are kept for undo and redo in given history (or nowhere, if it is null).
+    * Undo does not rewrite a journal, so a match with a journal should not be undone.*/
+    public void setHistory(MatchHistory history) {
+        this.history = history;
+    }
+
+    public MatchHistory getHistory() {
+        return this.history;
+    }
+
+    /*Commands of this match are recorded to given journal (or nowhere, if it is null).*/
+    public void setJournal(MatchJournal journal) {
+        this.journal = journal;
+    }
+
+    /*Metrics (if they are enabled) are recorded by the thread that creates the match.*/
+    void setOutput(OutputBuffer out) {
+        this.out = out;
+        this.metrics = Metrics.recorder();
+        out.setMetrics(this.metrics);
+    }
+
+    /*Events of this match are published to given stream (or nowhere, if it is null).*/
+    public void setEventStream(EventStream events) {
+        this.events = events;
+    }
+
+    public long getCommandIndex() {
+        return this.commandIndex;
+    }
+
+    public ActionStatus move(int fig, Direction direction) throws IOException {
+        Figure curFig = this.getFigure(fig);
+        if (curFig == null) {
+            return ActionStatus.NO_FIGURE;
+        }
+        ActionStatus status = curFig.move(this.board, direction);
+        if (status != ActionStatus.OK) {
+            return status;
+        }
+        FieldItem taken = curFig.getTaken();
+        this.addPoints(curFig);
+        if (this.metrics != null) {
+            if (taken instanceof Coin) {
+                this.metrics.collected(curFig.getTeam(), ((Coin)taken).getValue());
+            } else if (taken != null) {
+                this.metrics.killed(curFig.getTeam());
+            }
+        }
+        this.out.append(curFig.getNameBytes()).append(MOVED_TO).append(curFig.getX())
+                .append(' ').append(curFig.getY());
+        if (taken instanceof Coin) {
+            this.out.append(AND_COLLECTED).append(((Coin)taken).getValue());
+        } else if (taken != null) {
+            this.out.append(AND_KILLED).append(((Figure)taken).getNameBytes());
+        }
+        this.out.newLine();
+        if (this.events != null) {
+            if (taken instanceof Coin) {
+                this.events.publish(this.commandIndex, MatchEventType.COLLECTED, fig,
+                        curFig.getX(), curFig.getY(), ((Coin)taken).getValue());
+            } else if (taken != null) {
+                this.events.publish(this.commandIndex, MatchEventType.KILLED, fig,
+                        curFig.getX(), curFig.getY(), ((Figure)taken).getSlot());
+            }
+            this.events.publish(this.commandIndex, MatchEventType.MOVED, fig, curFig.getX(), curFig.getY(), 0);
+        }
+        return ActionStatus.OK;
+    }
+
+    /*Points collected by the last move of the figure go to its team.*/
+    private void addPoints(Figure curFig) {
+        FieldItem taken = curFig.getTaken();
+        this.scores[curFig.getTeam()] += curFig.getPointsCollectedForMove();
+        curFig.setPointsAmount(0);
+        if (taken instanceof Coin && this.coinIndex != null) {
+            this.coinIndex.remove(((Coin)taken).getId());
+        }
+    }
+
+    public ActionStatus copy(int fig) throws IOException {
+        Figure curFig = this.getFigure(fig);
+        if (curFig == null) {
+            return ActionStatus.NO_FIGURE;
+        }
+        ActionStatus status = curFig.copy(this.board);
+        if (status != ActionStatus.OK) {
+            return status;
+        }
+        //Only original figures can be copied successfully.
+        ClonedFigure clone = ((OriginalFigure)curFig).getClone();
+        this.placeFigure(clone);
+        this.out.append(curFig.getNameBytes()).append(CLONED_TO).append(clone.getX())
+                .append(' ').append(clone.getY()).newLine();
+        if (this.events != null) {
+            this.events.publish(this.commandIndex, MatchEventType.CLONED, fig,
+                    clone.getX(), clone.getY(), clone.getSlot());
+        }
+        return ActionStatus.OK;
+    }
+
+    public ActionStatus changeStyle(int fig) throws IOException {
+        Figure curFig = this.getFigure(fig);
+        if (curFig == null) {
+            return ActionStatus.NO_FIGURE;
+        }
+        ActionStatus status = curFig.changeStyle();
+        if (status != ActionStatus.OK) {
+            return status;
+        }
+        boolean attacking = curFig.isAttacking();
+        if (attacking) {
+            this.out.append(curFig.getNameBytes()).append(STYLE_ATTACKING).newLine();
+        } else {
+            this.out.append(curFig.getNameBytes()).append(STYLE_NORMAL).newLine();
+        }
+        if (this.events != null) {
+            this.events.publish(this.commandIndex, MatchEventType.STYLE_CHANGED, fig,
+                    curFig.getX(), curFig.getY(), attacking ? 1 : 0);
+        }
+        return ActionStatus.OK;
+    }
+
+    public int getScore(int team) {
+        return this.scores[team];
+    }
+
+    public int getTeamCount() {
+        return this.scores.length;
+    }
+
+    /*Team with the highest score wins, if several teams share it, it is a tie.
+    * Scores of all teams are printed in order of teams.*/
+    public void printWinner() throws IOException {
+        int best = 0;
+        boolean tie = false;
+        for (int team = 1; team < this.scores.length; team++) {
+            if (this.scores[team] > this.scores[best]) {
+                best = team;
+                tie = false;
+            } else if (this.scores[team] == this.scores[best]) {
+                tie = true;
+            }
+        }
+        if (tie) {
+            this.out.append(TIE);
+        } else {
+            this.out.append(this.figures.getTeamName(best)).append(TEAM_WINS);
+        }
+        for (int team = 0; team < this.scores.length; team++) {
+            if (team > 0) {
+                this.out.append(' ');
+            }
+            this.out.append(this.scores[team]);
+        }
+        this.out.newLine();
+        this.out.flush();
+    }
+
+    /*Coin closest to the figure in given slot, or null if the figure is
+    * absent or dead or there are no coins left on the board.*/
+    public Coin nearestCoin(int fig) {
+        Figure curFig = this.getFigure(fig);
+        if (curFig == null || curFig.isDead()) {
+            return null;
+        }
+        int id = this.getCoinIndex().nearest(curFig.getX(), curFig.getY());
+        return id == -1 ? null : this.board.getCoins().view(id);
+    }
+
+    /*Total value of coins within distance r (in moves of normal style) from the figure.*/
+    public long coinValueWithin(int fig, int r) {
+        Figure curFig = this.getFigure(fig);
+        if (curFig == null || curFig.isDead()) {
+            return 0;
+        }
+        return this.getCoinIndex().valueWithin(curFig.getX(), curFig.getY(), r);
+    }
+
+    /*At most k most valuable coins still on the board.*/
+    public List<Coin> topCoins(int k) {
+        List<Coin> top = new ArrayList<>();
+        for (int id : this.getCoinIndex().top(k)) {
+            top.add(this.board.getCoins().view(id));
+        }
+        return top;
+    }
+
+    private CoinIndex getCoinIndex() {
+        if (this.coinIndex == null) {
+            this.coinIndex = new CoinIndex(this.board.getDimension(), this.board.getCoins());
+        }
+        return this.coinIndex;
+    }
+
+    Board getBoard() {
+        return this.board;
+    }
+
+    FigureRegistry getFigures() {
+        return this.figures;
+    }
+
+    /*Returns figure in given slot, or null if there is no such figure (yet).*/
+    Figure getFigure(int fig) {
+        if (fig < 0 || fig >= this.figures.size()) {
+            return null;
+        }
+        return this.figures.get(fig);
+    }
+}
+
+//Figure registry
+/*FigureRegistry keeps all figures of a match in an array indexed by slot.
+* Original figures take slots 0..K-1 and the clone of original i takes slot
+* K+i, so slots never change during the match. Names of all slots are interned
+* once into a SymbolTable, which resolves command tokens to slots in O(1).*/
+class FigureRegistry {
+    private static final byte[] CLONE_SUFFIX = OutputBuffer.ascii("CLONE");
+    private byte[][] teamNames;
+    private byte[][] names;
+    private int[] teams;
+    private Figure[] figures;
+    private int originals;
+    private SymbolTable symbols;
+
+    public FigureRegistry(String[] teamNames, String[] originalNames, int[] originalTeams) {
+        this.originals = originalNames.length;
+        this.teamNames = new byte[teamNames.length][];
+        for (int team = 0; team < teamNames.length; team++) {
+            this.teamNames[team] = OutputBuffer.ascii(teamNames[team]);
+        }
+        this.names = new byte[2 * this.originals][];
+        this.teams = new int[2 * this.originals];
+        this.figures = new Figure[2 * this.originals];
+        this.symbols = new SymbolTable(2 * this.originals);
+        for (int slot = 0; slot < this.originals; slot++) {
+            byte[] name = OutputBuffer.ascii(originalNames[slot]);
+            byte[] cloneName = Arrays.copyOf(name, name.length + CLONE_SUFFIX.length);
+            System.arraycopy(CLONE_SUFFIX, 0, cloneName, name.length, CLONE_SUFFIX.length);
+            this.register(slot, name, originalTeams[slot]);
+            this.register(this.cloneSlotOf(slot), cloneName, originalTeams[slot]);
+        }
+    }
+
+    /*Registry of the classic match: GREEN and RED teams with one figure each.*/
+    static FigureRegistry classic() {
+        return new FigureRegistry(new String[] {"GREEN", "RED"}, new String[] {"GREEN", "RED"},
+                new int[] {PlayingSystem.GREEN_TEAM, PlayingSystem.RED_TEAM});
+    }
+
+    private void register(int slot, byte[] name, int team) {
+        if (this.symbols.get(name, name.length) != SymbolTable.ABSENT) {
+            throw new IllegalArgumentException("Duplicate figure name " + new String(name, StandardCharsets.US_ASCII));
+        }
+        this.names[slot] = name;
+        this.teams[slot] = team;
+        this.symbols.put(name, slot);
+    }
+
+    public OriginalFigure createOriginal(int slot, int x, int y) {
+        int cloneSlot = this.cloneSlotOf(slot);
+        return new OriginalFigure(x, y, this.teams[slot], slot, this.names[slot], cloneSlot, this.names[cloneSlot]);
+    }
+
+    public ClonedFigure createClone(int slot, int x, int y) {
+        return new ClonedFigure(x, y, this.teams[slot], slot, this.names[slot]);
+    }
+
+    public int cloneSlotOf(int slot) {
+        return slot + this.originals;
+    }
+
+    public boolean isClone(int slot) {
+        return slot >= this.originals;
+    }
+
+    public Figure get(int slot) {
+        return this.figures[slot];
+    }
+
+    public void set(int slot, Figure fig) {
+        this.figures[slot] = fig;
+    }
+
+    public int size() {
+        return this.figures.length;
+    }
+
+    public int getOriginalCount() {
+        return this.originals;
+    }
+
+    public int getTeamCount() {
+        return this.teamNames.length;
+    }
+
+    public int teamOf(int slot) {
+        return this.teams[slot];
+    }
+
+    public byte[] nameOf(int slot) {
+        return this.names[slot];
+    }
+
+    public byte[] getTeamName(int team) {
+        return this.teamNames[team];
+    }
+
+    public SymbolTable getSymbols() {
+        return this.symbols;
+    }
+}
+
+/*SymbolTable maps names (as bytes) to int ids. It is an open-addressing
+* table with FNV-1a hashing, so a token read from input is resolved straight
+* from the reader's byte array without creating a String.*/
+class SymbolTable {
+    static final int ABSENT = -1;
+    private byte[][] keys;
+    private int[] values;
+    private int mask;
+
+    public SymbolTable(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 2) * 2 - 1) << 1;
+        this.keys = new byte[capacity][];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public void put(byte[] name, int value) {
+        int i = hash(name, name.length) & this.mask;
+        while (this.keys[i] != null && !Arrays.equals(this.keys[i], name)) {
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = name;
+        this.values[i] = value;
+    }
+
+    public int get(byte[] token, int length) {
+        int i = hash(token, length) & this.mask;
+        while (this.keys[i] != null) {
+            if (this.keys[i].length == length && Arrays.equals(this.keys[i], 0, length, token, 0, length)) {
+                return this.values[i];
+            }
+            i = (i + 1) & this.mask;
+        }
+        return ABSENT;
+    }
+
+    private static int hash(byte[] bytes, int length) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
+
+//Coin index
+/*CoinIndex answers spatial queries about coins still lying on the board.
+* Board is split into square buckets of equal side chosen so that there is
+* about one bucket per coin. Coins of every bucket are stored contiguously
+* (ids in one int array, bucket i owns ids[start[i]..start[i+1])), and each
+* bucket also keeps the number and total value of its live coins, so whole
+* buckets are skipped or summed without looking at their coins. For top-k
+* queries coins are sorted by value once, and collected coins are skipped
+* with a "next live coin" array with path compression.
+* Index is built on the first query and then only updated on removals.
+* Coordinates are one-based like everywhere in the game, distance is Manhattan.*/
+class CoinIndex {
+    private int n;
+    private CoinStore coins;
+    private BitSet alive;
+    private int cell;
+    private int side;
+    private int[] start;
+    private int[] ids;
+    private int[] liveCount;
+    private long[] liveValue;
+    private int live;
+    private int[] byValue;
+    private int[] nextLive;
+    private int[] position;
+
+    /*Columns of the store are used directly, only liveness is copied.*/
+    public CoinIndex(int n, CoinStore coins) {
+        this.n = n;
+        this.coins = coins;
+        int M = coins.size();
+        this.alive = new BitSet(M);
+        for (int id = 0; id < M; id++) {
+            if (coins.isOnBoard(id)) {
+                this.alive.set(id);
+                this.live++;
+            }
+        }
+        this.buildBuckets();
+        this.buildValueOrder();
+    }
+
+    private void buildBuckets() {
+        int M = this.coins.size();
+        this.cell = Math.max(1, (int) Math.ceil(this.n / Math.sqrt(Math.max(M, 1))));
+        this.side = (this.n + this.cell - 1) / this.cell;
+        int buckets = this.side * this.side;
+        this.start = new int[buckets + 1];
+        this.liveCount = new int[buckets];
+        this.liveValue = new long[buckets];
+        for (int id = 0; id < M; id++) {
+            this.start[this.bucketOf(this.coins.getX(id), this.coins.getY(id)) + 1]++;
+        }
+        for (int b = 0; b < buckets; b++) {
+            this.start[b + 1] += this.start[b];
+        }
+        int[] fill = Arrays.copyOf(this.start, buckets);
+        this.ids = new int[M];
+        for (int id = 0; id < M; id++) {
+            int b = this.bucketOf(this.coins.getX(id), this.coins.getY(id));
+            this.ids[fill[b]++] = id;
+            if (this.alive.get(id)) {
+                this.liveCount[b]++;
+                this.liveValue[b] += this.coins.getValue(id);
+            }
+        }
+    }
+
+    private void buildValueOrder() {
+        int M = this.coins.size();
+        this.byValue = IntStream.range(0, M).boxed()
+                .sorted((a, b) -> Integer.compare(this.coins.getValue(b), this.coins.getValue(a)))
+                .mapToInt(Integer::intValue).toArray();
+        //nextLive[i] points to position of the first live coin at or after i in byValue order.
+        this.nextLive = new int[M + 1];
+        for (int i = 0; i <= M; i++) {
+            this.nextLive[i] = i;
+        }
+        for (int i = 0; i < M; i++) {
+            if (!this.alive.get(this.byValue[i])) {
+                this.nextLive[i] = i + 1;
+            }
+        }
+        this.position = new int[M];
+        for (int i = 0; i < M; i++) {
+            this.position[this.byValue[i]] = i;
+        }
+    }
+
+    /*Called when coin with given id is collected.*/
+    public void remove(int id) {
+        if (!this.alive.get(id)) {
+            return;
+        }
+        this.alive.clear(id);
+        this.live--;
+        int b = this.bucketOf(this.coins.getX(id), this.coins.getY(id));
+        this.liveCount[b]--;
+        this.liveValue[b] -= this.coins.getValue(id);
+        this.nextLive[this.position[id]] = this.position[id] + 1;
+    }
+
+    /*Id of the live coin closest to (x, y), or -1 if there are no coins left.
+    * Buckets are visited in growing square rings around the bucket of the point,
+    * only the four edges of every ring are walked;
+    * search stops when no coin of outer rings can be as close as the best one.*/
+    public int nearest(int x, int y) {
+        if (this.live == 0) {
+            return -1;
+        }
+        int bx = (x - 1) / this.cell;
+        int by = (y - 1) / this.cell;
+        int[] best = {-1};
+        long[] bestDistance = {Long.MAX_VALUE};
+        for (int ring = 0; ring < this.side; ring++) {
+            if (ring == 0) {
+                this.scanBucket(bx, by, x, y, best, bestDistance);
+            } else {
+                //Top and bottom edges with corners, then left and right edges without them.
+                for (int j = by - ring; j <= by + ring; j++) {
+                    this.scanBucket(bx - ring, j, x, y, best, bestDistance);
+                    this.scanBucket(bx + ring, j, x, y, best, bestDistance);
+                }
+                for (int i = bx - ring + 1; i <= bx + ring - 1; i++) {
+                    this.scanBucket(i, by - ring, x, y, best, bestDistance);
+                    this.scanBucket(i, by + ring, x, y, best, bestDistance);
+                }
+            }
+            //Coins of further rings are at least ring * cell + 1 cells away,
+            //a coin at exactly that distance may still win the tie by smaller id.
+            if (best[0] != -1 && bestDistance[0] < (long) ring * this.cell + 1) {
+                break;
+            }
+        }
+        return best[0];
+    }
+
+    private void scanBucket(int i, int j, int x, int y, int[] best, long[] bestDistance) {
+        if (i < 0 || j < 0 || i >= this.side || j >= this.side) {
+            return;
+        }
+        int b = i * this.side + j;
+        if (this.liveCount[b] == 0) {
+            return;
+        }
+        for (int k = this.start[b]; k < this.start[b + 1]; k++) {
+            int id = this.ids[k];
+            if (this.alive.get(id)) {
+                long distance = Math.abs(this.coins.getX(id) - x) + Math.abs(this.coins.getY(id) - y);
+                if (distance < bestDistance[0] || (distance == bestDistance[0] && id < best[0])) {
+                    bestDistance[0] = distance;
+                    best[0] = id;
+                }
+            }
+        }
+    }
+
+    /*Total value of live coins within Manhattan distance r from (x, y).
+    * Buckets lying completely inside the diamond are summed in O(1).*/
+    public long valueWithin(int x, int y, int r) {
+        //Any r of at least 2N covers the whole board, larger ones would overflow below.
+        r = Math.min(r, 2 * this.n);
+        int fromX = Math.max(0, (x - 1 - r) / this.cell);
+        int toX = Math.min(this.side - 1, Math.max(0, x - 1 + r) / this.cell);
+        int fromY = Math.max(0, (y - 1 - r) / this.cell);
+        int toY = Math.min(this.side - 1, Math.max(0, y - 1 + r) / this.cell);
+        long total = 0;
+        for (int i = fromX; i <= toX; i++) {
+            for (int j = fromY; j <= toY; j++) {
+                int b = i * this.side + j;
+                if (this.liveCount[b] == 0) {
+                    continue;
+                }
+                int minX = i * this.cell + 1;
+                int maxX = Math.min(this.n, minX + this.cell - 1);
+                int minY = j * this.cell + 1;
+                int maxY = Math.min(this.n, minY + this.cell - 1);
+                //Diamond is convex, so a bucket is inside when its farthest corner is.
+                long farthest = Math.max(Math.abs(x - minX), Math.abs(x - maxX))
+                        + Math.max(Math.abs(y - minY), Math.abs(y - maxY));
+                if (farthest <= r) {
+                    total += this.liveValue[b];
+                    continue;
+                }
+                for (int k = this.start[b]; k < this.start[b + 1]; k++) {
+                    int id = this.ids[k];
+                    if (this.alive.get(id) && Math.abs(this.coins.getX(id) - x) + Math.abs(this.coins.getY(id) - y) <= r) {
+                        total += this.coins.getValue(id);
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    /*Ids of at most k live coins with the highest values, most valuable first.*/
+    public int[] top(int k) {
+        int[] result = new int[Math.min(k, this.live)];
+        int i = this.findLive(0);
+        for (int found = 0; found < result.length; found++) {
+            result[found] = this.byValue[i];
+            i = this.findLive(i + 1);
+        }
+        return result;
+    }
+
+    private int findLive(int i) {
+        int root = i;
+        while (this.nextLive[root] != root) {
+            root = this.nextLive[root];
+        }
+        while (this.nextLive[i] != root) {
+            int next = this.nextLive[i];
+            this.nextLive[i] = root;
+            i = next;
+        }
+        return root;
+    }
+
+    private int bucketOf(int x, int y) {
+        return ((x - 1) / this.cell) * this.side + (y - 1) / this.cell;
+    }
+}
+
+//Command decoding
+/*Actions that can appear in commands. Moving actions know their Direction.*/
+enum Action {
+    UP(Direction.UP),
+    DOWN(Direction.DOWN),
+    LEFT(Direction.LEFT),
+    RIGHT(Direction.RIGHT),
+    COPY(null),
+    STYLE(null);
+
+    private final Direction direction;
+
+    Action(Direction direction) {
+        this.direction = direction;
+    }
+
+    public Direction getDirection() {
+        return this.direction;
+    }
+}
+
+/*CommandReader decodes the input directly from bytes of a buffered InputStream.
+* Integers are parsed in place, figure tokens are resolved to figure slots
+* through the SymbolTable of the match and action tokens are compared with
+* predefined byte arrays, so reading a command does not allocate any objects.*/
+class CommandReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final int INITIAL_TOKEN = 32;
+    private static final long MIN_EMPTY_READ_PAUSE = 1_000;
+    private static final long MAX_EMPTY_READ_PAUSE = 1_000_000;
+    private static final int UNKNOWN = -1;
+    private static final Action[] ACTIONS = Action.values();
+    private static final byte[][] ACTION_TOKENS = new byte[ACTIONS.length][];
+
+    static {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            ACTION_TOKENS[i] = OutputBuffer.ascii(ACTIONS[i].name());
+        }
+    }
+
+    private InputStream in;
+    private ReadableByteChannel channel;
+    private ByteBuffer channelBuffer;
+    private FileChannel file;
+    private ByteBuffer mapped;
+    private long mappedEnd;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private byte[] token;
+    private int tokenLength;
+    private int figure;
+    private Action action;
+    private SymbolTable symbols;
+    private MetricsRecorder metrics;
+    private OutputBuffer reply;
+
+    public CommandReader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.token = new byte[INITIAL_TOKEN];
+    }
+
+    /*Commands are read from the channel as they arrive, e.g. from a pipe or a socket.
+    * Channel bytes land directly in the same buffer, so memory does not depend on input length.*/
+    public CommandReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.channelBuffer = ByteBuffer.wrap(this.buffer);
+        this.token = new byte[INITIAL_TOKEN];
+    }
+
+    /*Input file is memory-mapped in windows of MAP_WINDOW bytes, and bytes are
+    * copied from the mapping to the buffer in bulk, without read system calls.*/
+    public CommandReader(FileChannel file) {
+        this.file = file;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.token = new byte[INITIAL_TOKEN];
+    }
+
+    /*Closes the memory-mapped input file and drops the current window.
+    * Streams and channels given to other constructors are closed by their owners.*/
+    public void close() throws IOException {
+        if (this.file != null) {
+            this.mapped = null;
+            this.file.close();
+        }
+    }
+
+    /*Given output is flushed before the reader waits for more bytes of a channel,
+    * so replies to all commands received so far are sent in one batch.*/
+    public void setReplyBuffer(OutputBuffer reply) {
+        this.reply = reply;
+    }
+
+    /*Skips whitespace and tells whether anything else is left in the input.*/
+    public boolean hasMoreInput() throws IOException {
+        int c = this.read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = this.read();
+        }
+        if (c == -1) {
+            return false;
+        }
+        this.position--;
+        return true;
+    }
+
+    /*Figure names are resolved through symbols of the match being played.*/
+    public void setSymbols(SymbolTable symbols) {
+        this.symbols = symbols;
+    }
+
+    /*Reads a whitespace-separated word. Used for names in match header only.*/
+    public String readWord() throws IOException {
+        int c = this.read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = this.read();
+        }
+        if (c == -1) {
+            throw new IOException("Word expected");
+        }
+        this.readToken(c);
+        return new String(this.token, 0, this.tokenLength, StandardCharsets.US_ASCII);
+    }
+
+    public int readInt() throws IOException {
+        int c = this.read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = this.read();
+        }
+        boolean negative = c == '-';
+        if (negative) {
+            c = this.read();
+        }
+        if (c < '0' || c > '9') {
+            throw new IOException("Integer expected");
+        }
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            c = this.read();
+        }
+        return negative ? -value : value;
+    }
+
+    /*Time spent reading commands is recorded to metrics, if they are enabled.*/
+    public void setMetrics(MetricsRecorder metrics) {
+        this.metrics = metrics;
+    }
+
+    /*Reads next "FIGURE ACTION" line. Decoded values are available through
+    * getFigure() and getAction(). Returns false when the input is over.*/
+    public boolean readCommand() throws IOException {
+        if (this.metrics == null) {
+            return this.decodeCommand();
+        }
+        long start = System.nanoTime();
+        boolean read = this.decodeCommand();
+        this.metrics.parsed(System.nanoTime() - start);
+        return read;
+    }
+
+    private boolean decodeCommand() throws IOException {
+        int c = this.read();
+        while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            c = this.read();
+        }
+        if (c == -1) {
+            return false;
+        }
+        c = this.readToken(c);
+        int slot = this.symbols.get(this.token, this.tokenLength);
+        this.figure = slot == SymbolTable.ABSENT ? PlayingSystem.NO_FIGURE : slot;
+        while (c == ' ' || c == '\t') {
+            c = this.read();
+        }
+        if (c == '\n' || c == '\r' || c == -1) {
+            this.action = null;
+            return true;
+        }
+        c = this.readToken(c);
+        int actionIndex = match(ACTION_TOKENS, this.token, this.tokenLength);
+        this.action = actionIndex == UNKNOWN ? null : ACTIONS[actionIndex];
+        //Anything after the action token is ignored.
+        while (c != '\n' && c != -1) {
+            c = this.read();
+        }
+        return true;
+    }
+
+    public int getFigure() {
+        return this.figure;
+    }
+
+    public Action getAction() {
+        return this.action;
+    }
+
+    /*Stores bytes of the token starting with c and returns the byte after it.
+    * Token array only grows for names longer than all previous ones.*/
+    private int readToken(int c) throws IOException {
+        this.tokenLength = 0;
+        while (c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != -1) {
+            if (this.tokenLength == this.token.length) {
+                this.token = Arrays.copyOf(this.token, 2 * this.token.length);
+            }
+            this.token[this.tokenLength] = (byte) c;
+            this.tokenLength++;
+            c = this.read();
+        }
+        return c;
+    }
+
+    private static int match(byte[][] known, byte[] token, int length) {
+        for (int i = 0; i < known.length; i++) {
+            if (known[i].length == length && Arrays.equals(known[i], 0, length, token, 0, length)) {
+                return i;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private int read() throws IOException {
+        if (this.position == this.limit) {
+            this.limit = this.fill();
+            this.position = 0;
+            if (this.limit <= 0) {
+                this.limit = 0;
+                return -1;
+            }
+        }
+        return this.buffer[this.position++] & 0xFF;
+    }
+
+    /*Non-blocking channels may return no bytes, then reading is repeated until data or end of input,
+    * parking the thread for a doubling pause between empty reads, so waiting does not spin a core.*/
+    private int fill() throws IOException {
+        if (this.file != null) {
+            if (this.mapped == null || !this.mapped.hasRemaining()) {
+                long size = this.file.size();
+                if (this.mappedEnd >= size) {
+                    return -1;
+                }
+                long length = Math.min(MAP_WINDOW, size - this.mappedEnd);
+                this.mapped = this.file.map(FileChannel.MapMode.READ_ONLY, this.mappedEnd, length);
+                this.mappedEnd += length;
+            }
+            int length = Math.min(this.mapped.remaining(), this.buffer.length);
+            this.mapped.get(this.buffer, 0, length);
+            return length;
+        }
+        if (this.channel == null) {
+            return this.in.read(this.buffer, 0, this.buffer.length);
+        }
+        if (this.reply != null) {
+            this.reply.flush();
+        }
+        this.channelBuffer.clear();
+        int read = this.channel.read(this.channelBuffer);
+        for (long pause = MIN_EMPTY_READ_PAUSE; read == 0; pause = Math.min(2 * pause, MAX_EMPTY_READ_PAUSE)) {
+            LockSupport.parkNanos(pause);
+            read = this.channel.read(this.channelBuffer);
+        }
+        return read;
+    }
+}
+
+/*OutputBuffer collects output bytes in one reusable array and writes them
+* to the underlying stream only when the array is full or on flush().
+* Numbers are written digit by digit, so no Strings are created.*/
+class OutputBuffer {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private OutputStream sink;
+    private byte[] buffer;
+    private int size;
+    private MetricsRecorder metrics;
+    private byte[] digits;
+
+    public OutputBuffer(OutputStream sink) {
+        this.sink = sink;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.digits = new byte[20];
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public OutputBuffer append(byte[] bytes) throws IOException {
+        if (this.size + bytes.length > this.buffer.length) {
+            this.flushBuffer();
+            if (bytes.length > this.buffer.length) {
+                this.sink.write(bytes);
+                return this;
+            }
+        }
+        System.arraycopy(bytes, 0, this.buffer, this.size, bytes.length);
+        this.size += bytes.length;
+        return this;
+    }
+
+    public OutputBuffer append(char c) throws IOException {
+        if (this.size == this.buffer.length) {
+            this.flushBuffer();
+        }
+        this.buffer[this.size++] = (byte) c;
+        return this;
+    }
+
+    public OutputBuffer append(long value) throws IOException {
+        if (value < 0) {
+            this.append('-');
+        }
+        int length = 0;
+        do {
+            this.digits[length++] = (byte) ('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0);
+        while (length > 0) {
+            this.append((char) this.digits[--length]);
+        }
+        return this;
+    }
+
+    public OutputBuffer newLine() throws IOException {
+        return this.append('\n');
+    }
+
+    public void flush() throws IOException {
+        this.flushBuffer();
+        this.sink.flush();
+    }
+
+    /*Time spent writing to the sink is recorded to metrics, if they are enabled.*/
+    void setMetrics(MetricsRecorder metrics) {
+        this.metrics = metrics;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (this.metrics == null) {
+            this.sink.write(this.buffer, 0, this.size);
+        } else {
+            long start = System.nanoTime();
+            this.sink.write(this.buffer, 0, this.size);
+            this.metrics.written(System.nanoTime() - start);
+        }
+        this.size = 0;
+    }
+}
+
+//Events
+/*Types of events published by PlayingSystem. COLLECTED and KILLED are
+* published before the MOVED event of the same move.*/
+enum MatchEventType {
+    MOVED,
+    COLLECTED,
+    KILLED,
+    CLONED,
+    STYLE_CHANGED,
+    INVALID;
+}
+
+/*What publisher does when consumers are slower than the game and the ring is full.*/
+enum BackPressure {
+    DROP,
+    BLOCK,
+    SPILL;
+}
+
+/*Subscriber of match events. Meaning of value depends on type: coin value for
+* COLLECTED, killed figure slot for KILLED, clone slot for CLONED, 1 (attacking)
+* or 0 (normal) for STYLE_CHANGED, Action ordinal for INVALID. For INVALID
+* coordinates are zero. Listeners are called from the dispatcher thread only.*/
+interface MatchEventListener {
+    void onEvent(long command, MatchEventType type, int figure, int x, int y, int value) throws IOException;
+
+    default void onClose() throws IOException {
+    }
+}
+
+/*EventRing is a bounded lock-free ring buffer for exactly one producer and one
+* consumer thread. Events are stored as primitive fields in one long array, so
+* publishing does not allocate. The producer publishes slots by ordered write of
+* tail and the consumer frees them by ordered write of head.*/
+class EventRing {
+    private static final int FIELDS = 6;
+    private final long[] slots;
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private long cachedHead;
+
+    public EventRing(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new long[this.capacity * FIELDS];
+    }
+
+    public boolean offer(long command, int type, int figure, int x, int y, int value) {
+        long t = this.tail.get();
+        if (t - this.cachedHead >= this.capacity) {
+            this.cachedHead = this.head.get();
+            if (t - this.cachedHead >= this.capacity) {
+                return false;
+            }
+        }
+        int base = (int)(t & this.mask) * FIELDS;
+        this.slots[base] = command;
+        this.slots[base + 1] = type;
+        this.slots[base + 2] = figure;
+        this.slots[base + 3] = x;
+        this.slots[base + 4] = y;
+        this.slots[base + 5] = value;
+        this.tail.lazySet(t + 1);
+        return true;
+    }
+
+    /*Passes all currently published events to the stream and returns their number.*/
+    public int drain(EventStream stream) throws IOException {
+        long h = this.head.get();
+        long t = this.tail.get();
+        for (long i = h; i < t; i++) {
+            int base = (int)(i & this.mask) * FIELDS;
+            stream.dispatch(this.slots[base], (int) this.slots[base + 1], (int) this.slots[base + 2],
+                    (int) this.slots[base + 3], (int) this.slots[base + 4], (int) this.slots[base + 5]);
+            this.head.lazySet(i + 1);
+        }
+        return (int)(t - h);
+    }
+}
+
+/*EventStream connects one match (the producer) with any number of listeners.
+* Listeners are called on a separate dispatcher thread, so slow consumers never
+* run inside the game loop; how the game loop waits for them is chosen by
+* BackPressure. In SPILL mode events that do not fit into the ring are appended
+* to a temporary file, and until the file is read back, all further events go to
+* the file too, so listeners always see events in the order of publishing.
+* Listeners are subscribed before start(); a stream that was never started
+* has no dispatcher, so blocking on it or closing it is an IllegalStateException.*/
+class EventStream {
+    private static final int RECORD_SIZE = Long.BYTES + 5 * Integer.BYTES;
+    private static final long PARK_NANOS = 50_000;
+    private static final MatchEventType[] TYPES = MatchEventType.values();
+    private final EventRing ring;
+    private final BackPressure policy;
+    private final List<MatchEventListener> listeners = new CopyOnWriteArrayList<>();
+    private final Object spillLock = new Object();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final ByteBuffer spillBuffer = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel spill;
+    private long spillWritten;
+    private long spillRead;
+    private volatile boolean spilling;
+    private volatile boolean closed;
+    private volatile long dropped;
+    private Thread dispatcher;
+    private IOException failure;
+
+    public EventStream(int capacity, BackPressure policy) {
+        this.ring = new EventRing(capacity);
+        this.policy = policy;
+    }
+
+    public void subscribe(MatchEventListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void start() {
+        if (this.dispatcher != null) {
+            throw new IllegalStateException("Event stream is already started");
+        }
+        this.dispatcher = new Thread(this::dispatchLoop, "match-events");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /*Called by the game loop only.*/
+    public void publish(long command, MatchEventType type, int figure, int x, int y, int value) throws IOException {
+        if (this.spilling) {
+            this.spill(command, type.ordinal(), figure, x, y, value);
+            return;
+        }
+        if (this.ring.offer(command, type.ordinal(), figure, x, y, value)) {
+            return;
+        }
+        switch (this.policy) {
+            case DROP:
+                this.dropped++;
+                break;
+            case BLOCK:
+                if (this.dispatcher == null) {
+                    throw new IllegalStateException("Event stream is full and was never started");
+                }
+                while (!this.ring.offer(command, type.ordinal(), figure, x, y, value)) {
+                    if (!this.dispatcher.isAlive()) {
+                        throw new IOException("Event dispatcher stopped", this.failure);
+                    }
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                break;
+            case SPILL:
+                this.spill(command, type.ordinal(), figure, x, y, value);
+                break;
+        }
+    }
+
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /*Waits until every published event is delivered, then closes listeners.*/
+    public void close() throws IOException {
+        if (this.dispatcher == null) {
+            throw new IllegalStateException("Event stream was never started");
+        }
+        this.closed = true;
+        try {
+            this.dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.spill != null) {
+            this.spill.close();
+        }
+        for (MatchEventListener listener : this.listeners) {
+            listener.onClose();
+        }
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /*A listener failing with RuntimeException is reported and misses only this event.*/
+    void dispatch(long command, int type, int figure, int x, int y, int value) throws IOException {
+        for (MatchEventListener listener : this.listeners) {
+            try {
+                listener.onEvent(command, TYPES[type], figure, x, y, value);
+            } catch (RuntimeException e) {
+                System.err.println("Event listener failed on command " + command + ": " + e);
+            }
+        }
+    }
+
+    private void dispatchLoop() {
+        try {
+            while (true) {
+                //Closed flag is read before draining, so nothing published before close() is lost.
+                boolean stop = this.closed;
+                int delivered = this.ring.drain(this);
+                if (this.spilling) {
+                    delivered += this.drainSpill();
+                }
+                if (delivered == 0) {
+                    if (stop) {
+                        return;
+                    }
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            this.failure = e;
+        }
+    }
+
+    private void spill(long command, int type, int figure, int x, int y, int value) throws IOException {
+        synchronized (this.spillLock) {
+            if (this.spill == null) {
+                Path file = Files.createTempFile("match-events", ".spill");
+                this.spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            this.record.clear();
+            this.record.putLong(command).putInt(type).putInt(figure).putInt(x).putInt(y).putInt(value).flip();
+            while (this.record.hasRemaining()) {
+                this.spillWritten += this.spill.write(this.record, this.spillWritten);
+            }
+            this.spilling = true;
+        }
+    }
+
+    /*Ring is drained once more under the lock: events published to the ring
+    * before the spilled ones must be delivered first.*/
+    private int drainSpill() throws IOException {
+        synchronized (this.spillLock) {
+            int delivered = this.ring.drain(this);
+            while (this.spillRead < this.spillWritten) {
+                this.spillBuffer.clear();
+                while (this.spillBuffer.hasRemaining()) {
+                    this.spillRead += this.spill.read(this.spillBuffer, this.spillRead);
+                }
+                this.spillBuffer.flip();
+                this.dispatch(this.spillBuffer.getLong(), this.spillBuffer.getInt(), this.spillBuffer.getInt(),
+                        this.spillBuffer.getInt(), this.spillBuffer.getInt(), this.spillBuffer.getInt());
+                delivered++;
+            }
+            this.spill.truncate(0);
+            this.spillRead = 0;
+            this.spillWritten = 0;
+            this.spilling = false;
+            return delivered;
+        }
+    }
+}
+
+/*Scoreboard keeps live team scores built from COLLECTED events.
+* Scores can be read from any thread while the match is running.*/
+class Scoreboard implements MatchEventListener {
+    private final FigureRegistry figures;
+    private final AtomicIntegerArray scores;
+
+    public Scoreboard(FigureRegistry figures) {
+        this.figures = figures;
+        this.scores = new AtomicIntegerArray(figures.getTeamCount());
+    }
+
+    public void onEvent(long command, MatchEventType type, int figure, int x, int y, int value) {
+        if (type == MatchEventType.COLLECTED) {
+            this.scores.addAndGet(this.figures.teamOf(figure), value);
+        }
+    }
+
+    public int getScore(int team) {
+        return this.scores.get(team);
+    }
+}
+
+/*EventLogSink persists every event as a fixed-size binary record.*/
+class EventLogSink implements MatchEventListener {
+    private DataOutputStream out;
+
+    public EventLogSink(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    public void onEvent(long command, MatchEventType type, int figure, int x, int y, int value) throws IOException {
+        this.out.writeLong(command);
+        this.out.writeByte(type.ordinal());
+        this.out.writeInt(figure);
+        this.out.writeInt(x);
+        this.out.writeInt(y);
+        this.out.writeInt(value);
+    }
+
+    public void onClose() throws IOException {
+        this.out.close();
+    }
+}
+
+/*TextEventPrinter turns events back into the classic text output of the game.
+* COLLECTED and KILLED only remember the suffix for the following MOVED line.*/
+class TextEventPrinter implements MatchEventListener {
+    private static final byte[] INVALID_ACTION = OutputBuffer.ascii("INVALID ACTION");
+    private static final byte[] MOVED_TO = OutputBuffer.ascii(" MOVED TO ");
+    private static final byte[] AND_COLLECTED = OutputBuffer.ascii(" AND COLLECTED ");
+    private static final byte[] AND_KILLED = OutputBuffer.ascii(" AND KILLED ");
+    private static final byte[] CLONED_TO = OutputBuffer.ascii(" CLONED TO ");
+    private static final byte[] STYLE_ATTACKING = OutputBuffer.ascii(" CHANGED STYLE TO ATTACKING");
+    private static final byte[] STYLE_NORMAL = OutputBuffer.ascii(" CHANGED STYLE TO NORMAL");
+    private OutputBuffer out;
+    private FigureRegistry figures;
+    private MatchEventType pending;
+    private int pendingValue;
+
+    public TextEventPrinter(OutputBuffer out, FigureRegistry figures) {
+        this.out = out;
+        this.figures = figures;
+    }
+
+    public void onEvent(long command, MatchEventType type, int figure, int x, int y, int value) throws IOException {
+        switch (type) {
+            case COLLECTED:
+            case KILLED:
+                this.pending = type;
+                this.pendingValue = value;
+                break;
+            case MOVED:
+                this.out.append(this.figures.nameOf(figure)).append(MOVED_TO).append(x).append(' ').append(y);
+                if (this.pending == MatchEventType.COLLECTED) {
+                    this.out.append(AND_COLLECTED).append(this.pendingValue);
+                } else if (this.pending == MatchEventType.KILLED) {
+                    this.out.append(AND_KILLED).append(this.figures.nameOf(this.pendingValue));
+                }
+                this.out.newLine();
+                this.pending = null;
+                break;
+            case CLONED:
+                this.out.append(this.figures.nameOf(figure)).append(CLONED_TO)
+                        .append(x).append(' ').append(y).newLine();
+                break;
+            case STYLE_CHANGED:
+                this.out.append(this.figures.nameOf(figure))
+                        .append(value == 1 ? STYLE_ATTACKING : STYLE_NORMAL).newLine();
+                break;
+            case INVALID:
+                this.out.append(INVALID_ACTION).newLine();
+                break;
+        }
+    }
+
+    public void onClose() throws IOException {
+        this.out.flush();
+    }
+}
+
+/*EventLog connects matches played from the command line and by MatchServer to
+* an EventStream, so events can be consumed while the match runs without parsing its output.
+* Usage: FightOfFigures --events <DROP | BLOCK | SPILL> <capacity> <file> [other options]
+* Events are written to the file by the dispatcher thread, in the classic text
+* output format if the file name ends with ".txt" and as EventLogSink records
+* otherwise. Server writes every match to its own file, with the match number
+* put before the extension: events.txt becomes events.1.txt, events.2.txt and so on.
+* Capacity is the size of the ring, and the policy decides what the game does
+* when the writer falls that far behind.*/
+class EventLog {
+    private static final int MAX_CAPACITY = 1 << 24;
+    private static BackPressure policy;
+    private static int capacity;
+    private static Path file;
+    private final EventStream events;
+    private final OutputStream sink;
+    private final Path target;
+
+    private EventLog(EventStream events, OutputStream sink, Path target) {
+        this.events = events;
+        this.sink = sink;
+        this.target = target;
+    }
+
+    /*Removes event options from arguments and remembers them.
+    * Returns null after printing usage if the options are incomplete or wrong.*/
+    static String[] configure(String[] args) {
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--events")) {
+                if (i + 3 >= args.length || !validPolicy(args[i + 1]) || !validCapacity(args[i + 2])) {
+                    System.out.println("Usage: FightOfFigures --events <DROP | BLOCK | SPILL> <capacity 1.."
+                            + MAX_CAPACITY + "> <file> [other options]");
+                    return null;
+                }
+                policy = BackPressure.valueOf(args[i + 1]);
+                capacity = Integer.parseInt(args[i + 2]);
+                file = Paths.get(args[i + 3]);
+                i += 3;
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        return rest.toArray(new String[0]);
+    }
+
+    private static boolean validPolicy(String name) {
+        for (BackPressure value : BackPressure.values()) {
+            if (value.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean validCapacity(String number) {
+        if (number.isEmpty() || number.length() > 9 || !number.chars().allMatch(Character::isDigit)) {
+            return false;
+        }
+        int value = Integer.parseInt(number);
+        return value >= 1 && value <= MAX_CAPACITY;
+    }
+
+    /*Starts publishing events of the match to the file, or returns null if events were not asked for.*/
+    static EventLog open(PlayingSystem sys) throws IOException {
+        return file == null ? null : open(sys, file);
+    }
+
+    /*Same for one of many matches of a server.*/
+    static EventLog open(PlayingSystem sys, long match) throws IOException {
+        if (file == null) {
+            return null;
+        }
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0) {
+            dot = name.length();
+        }
+        return open(sys, file.resolveSibling(name.substring(0, dot) + "." + match + name.substring(dot)));
+    }
+
+    private static EventLog open(PlayingSystem sys, Path target) throws IOException {
+        OutputStream sink = new FileOutputStream(target.toFile());
+        EventStream events = new EventStream(capacity, policy);
+        if (target.toString().endsWith(".txt")) {
+            events.subscribe(new TextEventPrinter(new OutputBuffer(sink), sys.getFigures()));
+        } else {
+            events.subscribe(new EventLogSink(sink));
+        }
+        events.start();
+        sys.setEventStream(events);
+        return new EventLog(events, sink, target);
+    }
+
+    /*Waits until every event is written, then closes the file.*/
+    public void close() throws IOException {
+        try {
+            this.events.close();
+        } finally {
+            this.sink.close();
+        }
+        if (this.events.getDropped() > 0) {
+            System.err.println("Dropped " + this.events.getDropped() + " events of " + this.target);
+        }
+    }
+}
+
+//Snapshots
+/*MatchSnapshot stores full state of a running match in a compact binary
+* layout and restores it. All numbers are big-endian, layout (version 3):
+*   int magic "FOFS", int version, int N, long command index, int attacking step,
+*   int number of teams T, for every team: short name length, name bytes, int score,
+*   int number of original figures K, for every one: short name length, name bytes, int team,
+*   for every one of 2K figure slots: byte flags, int x, int y,
+*   int number of coins, for every coin on the board: int x, int y, int value.
+* Figure and coin records have fixed size, so a snapshot file is read straight
+* from a memory mapping without any intermediate objects. Older snapshots are still read,
+* all of them with attacking step 2: version 2 (same layout without the attacking step)
+* and version 1 (classic match only, written before teams were generalized).*/
+class MatchSnapshot {
+    static final int MAGIC = 0x464F4653;
+    static final int VERSION = 3;
+    private static final int CLASSIC_VERSION = 1;
+    private static final int NO_STEP_VERSION = 2;
+    private static final int FIGURE_SIZE = 1 + 2 * Integer.BYTES;
+    private static final int COIN_SIZE = 3 * Integer.BYTES;
+    private static final int EXISTS = 1;
+    private static final int DEAD = 2;
+    private static final int ATTACKING = 4;
+    private static final int WAS_CLONED = 8;
+
+    /*Snapshot is written to a temporary file first, so a crash while saving keeps the previous one.*/
+    public static void save(PlayingSystem sys, Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size(sys));
+        write(sys, buffer);
+        buffer.flip();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static PlayingSystem load(Path file, OutputBuffer out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), out);
+        }
+    }
+
+    public static int size(PlayingSystem sys) {
+        FigureRegistry figures = sys.getFigures();
+        int size = 3 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+        for (int team = 0; team < figures.getTeamCount(); team++) {
+            size += Short.BYTES + figures.getTeamName(team).length + Integer.BYTES;
+        }
+        size += Integer.BYTES;
+        for (int slot = 0; slot < figures.getOriginalCount(); slot++) {
+            size += Short.BYTES + figures.nameOf(slot).length + Integer.BYTES;
+        }
+        return size + figures.size() * FIGURE_SIZE + Integer.BYTES + sys.countCoinsOnBoard() * COIN_SIZE;
+    }
+
+    public static void write(PlayingSystem sys, ByteBuffer buffer) {
+        FigureRegistry figures = sys.getFigures();
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(sys.getBoard().getDimension())
+                .putLong(sys.getCommandIndex()).putInt(sys.getAttackingStep()).putInt(figures.getTeamCount());
+        for (int team = 0; team < figures.getTeamCount(); team++) {
+            putName(buffer, figures.getTeamName(team));
+            buffer.putInt(sys.getScore(team));
+        }
+        buffer.putInt(figures.getOriginalCount());
+        for (int slot = 0; slot < figures.getOriginalCount(); slot++) {
+            putName(buffer, figures.nameOf(slot));
+            buffer.putInt(figures.teamOf(slot));
+        }
+        for (int slot = 0; slot < figures.size(); slot++) {
+            writeFigure(buffer, figures.get(slot));
+        }
+        buffer.putInt(sys.countCoinsOnBoard());
+        CoinStore coins = sys.getCoins();
+        for (int id = 0; id < coins.size(); id++) {
+            if (coins.isOnBoard(id)) {
+                buffer.putInt(coins.getX(id)).putInt(coins.getY(id)).putInt(coins.getValue(id));
+            }
+        }
+    }
+
+    public static PlayingSystem read(ByteBuffer buffer, OutputBuffer out) throws IOException {
+        if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a match snapshot");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION && version != NO_STEP_VERSION && version != CLASSIC_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        int n = buffer.getInt();
+        long commandIndex = buffer.getLong();
+        FigureRegistry figures;
+        int[] scores;
+        int step = AttackingStyle.DEFAULT_STEP;
+        if (version == CLASSIC_VERSION) {
+            figures = FigureRegistry.classic();
+            scores = new int[] {buffer.getInt(), buffer.getInt()};
+            buffer.getInt();
+        } else {
+            if (version == VERSION) {
+                step = buffer.getInt();
+            }
+            String[] teamNames = new String[buffer.getInt()];
+            scores = new int[teamNames.length];
+            for (int team = 0; team < teamNames.length; team++) {
+                teamNames[team] = getName(buffer);
+                scores[team] = buffer.getInt();
+            }
+            String[] names = new String[buffer.getInt()];
+            int[] teams = new int[names.length];
+            for (int slot = 0; slot < names.length; slot++) {
+                names[slot] = getName(buffer);
+                teams[slot] = buffer.getInt();
+            }
+            figures = new FigureRegistry(teamNames, names, teams);
+        }
+        PlayingSystem sys = new PlayingSystem(n, figures, out);
+        sys.restoreProgress(commandIndex, scores);
+        sys.setAttackingStep(step);
+        for (int slot = 0; slot < figures.size(); slot++) {
+            int flags = buffer.get();
+            int x = buffer.getInt();
+            int y = buffer.getInt();
+            if ((flags & EXISTS) == 0) {
+                continue;
+            }
+            Figure fig;
+            if (!figures.isClone(slot)) {
+                OriginalFigure original = figures.createOriginal(slot, x, y);
+                original.setWasCloned((flags & WAS_CLONED) != 0);
+                fig = original;
+            } else {
+                fig = figures.createClone(slot, x, y);
+            }
+            fig.restore((flags & DEAD) != 0, (flags & ATTACKING) != 0);
+            sys.placeFigure(fig);
+        }
+        int coins = buffer.getInt();
+        sys.getCoins().ensureCapacity(coins);
+        for (int i = 0; i < coins; i++) {
+            sys.placeCoin(buffer.getInt(), buffer.getInt(), buffer.getInt());
+        }
+        return sys;
+    }
+
+    private static void writeFigure(ByteBuffer buffer, Figure fig) {
+        if (fig == null) {
+            buffer.put((byte) 0).putInt(0).putInt(0);
+            return;
+        }
+        int flags = EXISTS;
+        if (fig.isDead()) {
+            flags |= DEAD;
+        }
+        if (fig.isAttacking()) {
+            flags |= ATTACKING;
+        }
+        if (fig instanceof OriginalFigure && ((OriginalFigure) fig).wasCloned()) {
+            flags |= WAS_CLONED;
+        }
+        buffer.put((byte) flags).putInt(fig.getX()).putInt(fig.getY());
+    }
+
+    private static void putName(ByteBuffer buffer, byte[] name) {
+        buffer.putShort((short) name.length).put(name);
+    }
+
+    private static String getName(ByteBuffer buffer) {
+        byte[] name = new byte[buffer.getShort()];
+        buffer.get(name);
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    /*Reads the header of a match input (everything before command count),
+    * which is not needed when the match is restored from a snapshot.*/
+    public static void skipHeader(CommandReader in, boolean arena) throws IOException {
+        in.readInt();
+        if (arena) {
+            int T = in.readInt();
+            for (int team = 0; team < T; team++) {
+                in.readWord();
+                int F = in.readInt();
+                for (int i = 0; i < F; i++) {
+                    in.readWord();
+                    in.readInt();
+                    in.readInt();
+                }
+            }
+        } else {
+            for (int i = 0; i < 4; i++) {
+                in.readInt();
+            }
+        }
+        int M = in.readInt();
+        for (int i = 0; i < 3 * M; i++) {
+            in.readInt();
+        }
+    }
+}
+
+//Journal
+/*MatchJournal records every decoded command of a match and its outcome,
+* and every keyframeInterval commands it stores a keyframe (a MatchSnapshot)
+* of the whole match. Two files are written, all numbers are big-endian:
+*   journal: int magic "FOFJ", int version, long index of the first keyframe,
+*     then for every command: int figure slot, byte action, byte status, short 0;
+*   journal.keyframes: for every keyframe: int length, snapshot bytes,
+*     and on close the index: for every keyframe long command index and
+*     long offset, then int number of keyframes and int magic "FOFK".
+* Command records have fixed size, so the record of command k is found
+* without reading the others, and the keyframe index is searched by
+* binary search, see JournalReplay.*/
+class MatchJournal {
+    static final int MAGIC = 0x464F464A;
+    static final int INDEX_MAGIC = 0x464F464B;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+    static final int RECORD_SIZE = 8;
+    /*Action byte of a command with unknown action, status byte of a command that was not an action.*/
+    static final byte NO_ACTION = -1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private FileChannel records;
+    private FileChannel keyframes;
+    private ByteBuffer buffer;
+    private int keyframeInterval;
+    private List<long[]> index;
+    private long keyframesSize;
+
+    private MatchJournal(FileChannel records, FileChannel keyframes, int keyframeInterval) {
+        this.records = records;
+        this.keyframes = keyframes;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.keyframeInterval = keyframeInterval;
+        this.index = new ArrayList<>();
+    }
+
+    /*Starts a journal of the match from its current state, which becomes the first keyframe.*/
+    public static MatchJournal create(Path file, PlayingSystem sys, int keyframeInterval) throws IOException {
+        if (keyframeInterval <= 0) {
+            throw new IllegalArgumentException("Keyframe interval must be positive: " + keyframeInterval);
+        }
+        FileChannel records = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        FileChannel keyframes = FileChannel.open(keyframesOf(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        MatchJournal journal = new MatchJournal(records, keyframes, keyframeInterval);
+        journal.buffer.putInt(MAGIC).putInt(VERSION).putLong(sys.getCommandIndex());
+        journal.writeKeyframe(sys);
+        return journal;
+    }
+
+    static Path keyframesOf(Path file) {
+        return file.resolveSibling(file.getFileName() + ".keyframes");
+    }
+
+    /*Called by PlayingSystem after every command. Action and status are null for
+    * commands with unknown action.*/
+    public void record(PlayingSystem sys, int figure, Action action, ActionStatus status) throws IOException {
+        if (this.buffer.remaining() < RECORD_SIZE) {
+            this.flush();
+        }
+        this.buffer.putInt(figure)
+                .put(action == null ? NO_ACTION : (byte) action.ordinal())
+                .put(status == null ? NO_ACTION : (byte) status.ordinal())
+                .putShort((short) 0);
+        if (sys.getCommandIndex() % this.keyframeInterval == 0) {
+            this.writeKeyframe(sys);
+        }
+    }
+
+    /*Records up to the keyframe are flushed first, so every keyframe on disk
+    * is followed by the records it was taken after, even if the journal is never closed.*/
+    private void writeKeyframe(PlayingSystem sys) throws IOException {
+        this.flush();
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + MatchSnapshot.size(sys));
+        frame.putInt(frame.capacity() - Integer.BYTES);
+        MatchSnapshot.write(sys, frame);
+        frame.flip();
+        this.index.add(new long[] {sys.getCommandIndex(), this.keyframesSize});
+        this.keyframesSize += frame.remaining();
+        writeFully(this.keyframes, frame);
+    }
+
+    private void flush() throws IOException {
+        this.buffer.flip();
+        writeFully(this.records, this.buffer);
+        this.buffer.clear();
+    }
+
+    /*Writes the keyframe index. Journal that was not closed is still readable,
+    * its keyframes are then found by walking over their lengths.*/
+    public void close() throws IOException {
+        this.flush();
+        ByteBuffer footer = ByteBuffer.allocate(this.index.size() * 2 * Long.BYTES + 2 * Integer.BYTES);
+        for (long[] keyframe : this.index) {
+            footer.putLong(keyframe[0]).putLong(keyframe[1]);
+        }
+        footer.putInt(this.index.size()).putInt(INDEX_MAGIC);
+        footer.flip();
+        writeFully(this.keyframes, footer);
+        this.records.close();
+        this.keyframes.close();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
+
+/*JournalReplay restores a match at any command of its journal: it finds
+* the last keyframe before the command by binary search over the keyframe
+* index, loads it and re-executes only the commands after it, so seeking
+* to command k costs O(log n + distance to keyframe).
+* Usage: FightOfFigures --replay <journal> <k> [snapshot]
+* Prints the output of command k and the state of the match after it:
+* a line "NAME X Y [DEAD] [ATTACKING]" for every figure and a line with scores.
+* If snapshot file is given, the state is also saved there for --resume.*/
+class JournalReplay implements AutoCloseable {
+    private static final Action[] ACTIONS = Action.values();
+    private static final ActionStatus[] STATUSES = ActionStatus.values();
+    private static final byte[] SCORE = OutputBuffer.ascii("SCORE ");
+    private static final byte[] DEAD = OutputBuffer.ascii(" DEAD");
+    private static final byte[] ATTACKING = OutputBuffer.ascii(" ATTACKING");
+    private FileChannel records;
+    private FileChannel keyframes;
+    private long first;
+    private long last;
+    private long[] keyframeCommands;
+    private long[] keyframeOffsets;
+
+    public JournalReplay(Path file) throws IOException {
+        this.records = FileChannel.open(file, StandardOpenOption.READ);
+        this.keyframes = FileChannel.open(MatchJournal.keyframesOf(file), StandardOpenOption.READ);
+        ByteBuffer header = this.readAt(this.records, 0, MatchJournal.HEADER_SIZE);
+        if (header.getInt() != MatchJournal.MAGIC || header.getInt() != MatchJournal.VERSION) {
+            throw new IOException("Not a match journal");
+        }
+        this.first = header.getLong();
+        this.last = this.first + (this.records.size() - MatchJournal.HEADER_SIZE) / MatchJournal.RECORD_SIZE;
+        this.readIndex();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: FightOfFigures --replay <journal> <k> [snapshot]");
+            return;
+        }
+        OutputBuffer out = new OutputBuffer(System.out);
+        try (JournalReplay replay = new JournalReplay(Paths.get(args[1]))) {
+            long k = Long.parseLong(args[2]);
+            if (k <= replay.first || k > replay.last) {
+                throw new IOException("Command " + k + " is not in the journal ("
+                        + (replay.first + 1) + ".." + replay.last + ")");
+            }
+            PlayingSystem sys = replay.seek(k - 1, new OutputBuffer(OutputStream.nullOutputStream()));
+            sys.setOutput(out);
+            replay.replay(sys, k);
+            printState(sys, out);
+            out.flush();
+            if (args.length > 3) {
+                MatchSnapshot.save(sys, Paths.get(args[3]));
+            }
+        }
+    }
+
+    /*Index of the command the journal starts after.*/
+    public long getFirst() {
+        return this.first;
+    }
+
+    /*Index of the last command in the journal.*/
+    public long getLast() {
+        return this.last;
+    }
+
+    /*Returns the match right after command k, writing output of re-executed commands to out.*/
+    public PlayingSystem seek(long k, OutputBuffer out) throws IOException {
+        if (k < this.first || k > this.last) {
+            throw new IOException("Command " + k + " is not in the journal (" + this.first + ".." + this.last + ")");
+        }
+        int found = Arrays.binarySearch(this.keyframeCommands, k);
+        if (found < 0) {
+            found = -found - 2;
+        }
+        long offset = this.keyframeOffsets[found];
+        int length = this.readAt(this.keyframes, offset, Integer.BYTES).getInt();
+        PlayingSystem sys = MatchSnapshot.read(
+                this.keyframes.map(FileChannel.MapMode.READ_ONLY, offset + Integer.BYTES, length), out);
+        this.replay(sys, k);
+        return sys;
+    }
+
+    /*Re-executes journal commands after the current one up to command k.
+    * Status of every command is checked against the recorded one.*/
+    public void replay(PlayingSystem sys, long k) throws IOException {
+        long from = sys.getCommandIndex();
+        if (k <= from) {
+            return;
+        }
+        ByteBuffer commands = this.records.map(FileChannel.MapMode.READ_ONLY,
+                MatchJournal.HEADER_SIZE + (from - this.first) * MatchJournal.RECORD_SIZE,
+                (k - from) * MatchJournal.RECORD_SIZE);
+        while (commands.hasRemaining()) {
+            int figure = commands.getInt();
+            byte action = commands.get();
+            byte status = commands.get();
+            commands.getShort();
+            ActionStatus result = sys.processCommand(figure, action == MatchJournal.NO_ACTION ? null : ACTIONS[action]);
+            if ((result == null ? MatchJournal.NO_ACTION : (byte) result.ordinal()) != status) {
+                throw new IOException("Replay diverges from the journal at command " + sys.getCommandIndex()
+                        + ": " + result + " instead of " + (status == MatchJournal.NO_ACTION ? null : STATUSES[status]));
+            }
+        }
+    }
+
+    static void printState(PlayingSystem sys, OutputBuffer out) throws IOException {
+        FigureRegistry figures = sys.getFigures();
+        for (int slot = 0; slot < figures.size(); slot++) {
+            Figure fig = figures.get(slot);
+            if (fig == null) {
+                continue;
+            }
+            out.append(fig.getNameBytes()).append(' ').append(fig.getX()).append(' ').append(fig.getY());
+            if (fig.isDead()) {
+                out.append(DEAD);
+            }
+            if (fig.isAttacking()) {
+                out.append(ATTACKING);
+            }
+            out.newLine();
+        }
+        out.append(SCORE);
+        for (int team = 0; team < sys.getTeamCount(); team++) {
+            if (team > 0) {
+                out.append(' ');
+            }
+            out.append(sys.getScore(team));
+        }
+        out.newLine();
+    }
+
+    /*Index written on close is read from the end of keyframes file, otherwise
+    * keyframes are walked over by their lengths.*/
+    private void readIndex() throws IOException {
+        long size = this.keyframes.size();
+        if (size >= 2 * Integer.BYTES) {
+            ByteBuffer tail = this.readAt(this.keyframes, size - 2 * Integer.BYTES, 2 * Integer.BYTES);
+            int count = tail.getInt();
+            if (tail.getInt() == MatchJournal.INDEX_MAGIC) {
+                ByteBuffer index = this.keyframes.map(FileChannel.MapMode.READ_ONLY,
+                        size - 2 * Integer.BYTES - (long) count * 2 * Long.BYTES, (long) count * 2 * Long.BYTES);
+                this.keyframeCommands = new long[count];
+                this.keyframeOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    this.keyframeCommands[i] = index.getLong();
+                    this.keyframeOffsets[i] = index.getLong();
+                }
+                return;
+            }
+        }
+        List<long[]> found = new ArrayList<>();
+        long offset = 0;
+        //Command index is stored in a snapshot after magic, version and N.
+        while (offset + Integer.BYTES + 3 * Integer.BYTES + Long.BYTES <= size) {
+            ByteBuffer head = this.readAt(this.keyframes, offset, Integer.BYTES + 3 * Integer.BYTES + Long.BYTES);
+            int length = head.getInt();
+            if (offset + Integer.BYTES + length > size) {
+                break;
+            }
+            head.position(Integer.BYTES + 3 * Integer.BYTES);
+            found.add(new long[] {head.getLong(), offset});
+            offset += Integer.BYTES + length;
+        }
+        this.keyframeCommands = found.stream().mapToLong(keyframe -> keyframe[0]).toArray();
+        this.keyframeOffsets = found.stream().mapToLong(keyframe -> keyframe[1]).toArray();
+        if (this.keyframeCommands.length == 0) {
+            throw new IOException("Journal has no keyframes");
+        }
+    }
+
+    private ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public void close() throws IOException {
+        this.records.close();
+        this.keyframes.close();
+    }
+}
+
+//History
+/*MatchHistory keeps the last commands of a match for undo and redo. Every
+* command is one record of RECORD ints: figure slot and action (encoded like
+* in MatchScript), old x and y of the figure, and what a move took: id + 1
+* of the collected coin or -(slot + 1) of the killed figure. Score delta is
+* the value of that coin, and style flip and clone are known from the action,
+* so they need no room. Rejected and unknown commands are NONE records,
+* they only move the command index.
+* Records live in one ring buffer allocated up front: when it is full, the
+* oldest record is overwritten, so a long match keeps the heap bounded and
+* only the last capacity commands can be undone. A new command after undo
+* drops the records that could be redone.*/
+class MatchHistory {
+    static final int RECORD = 4;
+    /*Action code of commands that did not change the match.*/
+    static final int NONE = 7;
+    private int[] records;
+    private int capacity;
+    private int head;
+    private int undoable;
+    private int redoable;
+
+    public MatchHistory(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("History capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.records = new int[capacity * RECORD];
+    }
+
+    public void push(int figure, int action, int oldX, int oldY, int taken) {
+        int at = this.head * RECORD;
+        this.records[at] = (figure << 3) | action;
+        this.records[at + 1] = oldX;
+        this.records[at + 2] = oldY;
+        this.records[at + 3] = taken;
+        this.head = (this.head + 1) % this.capacity;
+        this.undoable = Math.min(this.undoable + 1, this.capacity);
+        this.redoable = 0;
+    }
+
+    public boolean canUndo() {
+        return this.undoable > 0;
+    }
+
+    public boolean canRedo() {
+        return this.redoable > 0;
+    }
+
+    /*Steps back and returns position of the record to undo in getRecords.*/
+    int undo() {
+        this.head = (this.head + this.capacity - 1) % this.capacity;
+        this.undoable--;
+        this.redoable++;
+        return this.head * RECORD;
+    }
+
+    /*Steps forward and returns position of the record to redo in getRecords.*/
+    int redo() {
+        int at = this.head * RECORD;
+        this.head = (this.head + 1) % this.capacity;
+        this.undoable++;
+        this.redoable--;
+        return at;
+    }
+
+    int[] getRecords() {
+        return this.records;
+    }
+
+    public int getUndoable() {
+        return this.undoable;
+    }
+
+    public int getRedoable() {
+        return this.redoable;
+    }
+
+    /*Forgets all records, the buffer is kept for the next match.*/
+    public void clear() {
+        this.head = 0;
+        this.undoable = 0;
+        this.redoable = 0;
+    }
+}
+
+/*MatchAnalyzer lets an analyst step through a journaled match back and forth.
+* Usage: FightOfFigures --analyze <journal> <k> [history]
+* The match is restored right after command k (see JournalReplay), then steps
+* are read from standard input, one per line: "+ n" goes n commands forward,
+* "- n" goes n commands back (n is 1 if omitted). After every step the state
+* of the match is printed like by --replay, preceded by "COMMAND k".
+* Steps back are undone from a MatchHistory of the last history commands
+* (65536 by default), steps forward are redone or replayed from the journal.
+* Only going back further than the history seeks from a keyframe again.*/
+class MatchAnalyzer {
+    static final int DEFAULT_HISTORY = 1 << 16;
+    private static final byte[] COMMAND = OutputBuffer.ascii("COMMAND ");
+    private JournalReplay replay;
+    private PlayingSystem sys;
+    private int history;
+
+    public MatchAnalyzer(JournalReplay replay, long k, int history) throws IOException {
+        this.replay = replay;
+        this.history = history;
+        this.seek(k);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int history = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_HISTORY;
+        //History of zero commands could not undo anything and would break MatchHistory.
+        if (args.length < 3 || history < 1) {
+            System.out.println("Usage: FightOfFigures --analyze <journal> <k> [history]");
+            return;
+        }
+        OutputBuffer out = new OutputBuffer(System.out);
+        try (JournalReplay replay = new JournalReplay(Paths.get(args[1]))) {
+            MatchAnalyzer analyzer = new MatchAnalyzer(replay, Long.parseLong(args[2]), history);
+            analyzer.print(out);
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII));
+            String step;
+            while ((step = in.readLine()) != null) {
+                String[] parts = step.trim().split("\\s+");
+                long count = parts.length > 1 ? Long.parseLong(parts[1]) : 1;
+                if (parts[0].equals("+")) {
+                    analyzer.forward(count);
+                } else if (parts[0].equals("-")) {
+                    analyzer.back(count);
+                }
+                analyzer.print(out);
+            }
+        }
+    }
+
+    public void forward(long count) throws IOException {
+        for (long i = 0; i < count; i++) {
+            if (!this.sys.redo()) {
+                if (this.sys.getCommandIndex() >= this.replay.getLast()) {
+                    return;
+                }
+                this.replay.replay(this.sys, this.sys.getCommandIndex() + 1);
+            }
+        }
+    }
+
+    public void back(long count) throws IOException {
+        long target = Math.max(this.sys.getCommandIndex() - count, this.replay.getFirst());
+        while (this.sys.getCommandIndex() > target) {
+            if (!this.sys.undo()) {
+                this.seek(target);
+            }
+        }
+    }
+
+    private void seek(long k) throws IOException {
+        this.sys = this.replay.seek(k, new OutputBuffer(OutputStream.nullOutputStream()));
+        this.sys.setHistory(new MatchHistory(this.history));
+    }
+
+    public PlayingSystem getMatch() {
+        return this.sys;
+    }
+
+    public void print(OutputBuffer out) throws IOException {
+        out.append(COMMAND).append(this.sys.getCommandIndex()).newLine();
+        JournalReplay.printState(this.sys, out);
+        out.flush();
+    }
+}
+
+//Batch replay
+/*BatchRunner replays every match input file of a directory in parallel.
+* Usage: FightOfFigures --batch <inputDir> <outputDir> [threads]
+* Each match is played by its own PlayingSystem and writes its output
+* to <outputDir>/<input file name>.out. When all matches are finished,
+* aggregate results and throughput are printed to standard output.*/
+class BatchRunner {
+    private File inputDir;
+    private File outputDir;
+    private int threads;
+
+    public BatchRunner(File inputDir, File outputDir, int threads) {
+        this.inputDir = inputDir;
+        this.outputDir = outputDir;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: FightOfFigures --batch <inputDir> <outputDir> [threads]");
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 3) {
+            threads = Integer.parseInt(args[3]);
+        }
+        new BatchRunner(new File(args[1]), new File(args[2]), threads).run();
+    }
+
+    public void run() {
+        File[] inputs = this.inputDir.listFiles(File::isFile);
+        if (inputs == null) {
+            System.out.println("Cannot read directory " + this.inputDir);
+            return;
+        }
+        Arrays.sort(inputs);
+        this.outputDir.mkdirs();
+
+        List<Callable<MatchResult>> tasks = new ArrayList<>();
+        for (File input : inputs) {
+            tasks.add(() -> this.replay(input));
+        }
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        BatchSummary summary = new BatchSummary(inputs.length);
+        try {
+            for (Future<MatchResult> result : pool.invokeAll(tasks)) {
+                summary.add(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Batch failed: " + e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        summary.print(System.out, System.nanoTime() - start, this.threads);
+    }
+
+    /*Replays one match. Malformed, truncated or unreadable inputs do not stop the batch,
+    * they are reported and counted as failed matches.*/
+    private MatchResult replay(File input) {
+        File output = new File(this.outputDir, input.getName() + ".out");
+        try (InputStream inStream = new FileInputStream(input);
+             OutputStream outStream = new FileOutputStream(output)) {
+            CommandReader in = new CommandReader(inStream);
+            in.setMetrics(Metrics.recorder());
+            PlayingSystem sys = new PlayingSystem(in, new OutputBuffer(outStream));
+            int P = in.readInt();
+            int played = 0;
+            for (; played < P && in.readCommand(); played++) {
+                sys.processCommand(in.getFigure(), in.getAction());
+            }
+            sys.printWinner();
+            if (played < P) {
+                //A truncated match would otherwise count its missing commands as played.
+                System.err.println("Cannot replay " + input.getName() + ": input ends after " + played + " of " + P + " commands");
+                return MatchResult.FAILED;
+            }
+            return new MatchResult(sys.getScore(PlayingSystem.GREEN_TEAM), sys.getScore(PlayingSystem.RED_TEAM), P);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Cannot replay " + input.getName() + ": " + e);
+            return MatchResult.FAILED;
+        } finally {
+            Metrics.retire();
+        }
+    }
+}
+
+/*Final scores and number of commands of one replayed match.*/
+class MatchResult {
+    static final MatchResult FAILED = new MatchResult(0, 0, -1);
+    private int greenScore;
+    private int redScore;
+    private int commands;
+
+    public MatchResult(int greenScore, int redScore, int commands) {
+        this.greenScore = greenScore;
+        this.redScore = redScore;
+        this.commands = commands;
+    }
+
+    public int getGreenScore() {
+        return this.greenScore;
+    }
+
+    public int getRedScore() {
+        return this.redScore;
+    }
+
+    public int getCommands() {
+        return this.commands;
+    }
+
+    public boolean isFailed() {
+        return this.commands < 0;
+    }
+}
+
+/*BatchSummary aggregates results of all matches: win/tie counts,
+* percentiles of team scores (same scores printWinner reports) and throughput.*/
+class BatchSummary {
+    private int greenWins;
+    private int redWins;
+    private int ties;
+    private int failed;
+    private long commands;
+    private int played;
+    private int[] greenScores;
+    private int[] redScores;
+
+    public BatchSummary(int capacity) {
+        this.greenScores = new int[capacity];
+        this.redScores = new int[capacity];
+    }
+
+    public void add(MatchResult result) {
+        if (result.isFailed()) {
+            this.failed++;
+            return;
+        }
+        if (result.getGreenScore() > result.getRedScore()) {
+            this.greenWins++;
+        } else if (result.getGreenScore() < result.getRedScore()) {
+            this.redWins++;
+        } else {
+            this.ties++;
+        }
+        this.greenScores[this.played] = result.getGreenScore();
+        this.redScores[this.played] = result.getRedScore();
+        this.played++;
+        this.commands += result.getCommands();
+    }
+
+    public void print(PrintStream out, long elapsedNanos, int threads) {
+        double seconds = Math.max(elapsedNanos, 1) / 1e9;
+        out.println("MATCHES " + this.played + " FAILED " + this.failed + " THREADS " + threads);
+        out.println("GREEN WINS " + this.greenWins + " RED WINS " + this.redWins + " TIES " + this.ties);
+        out.println("GREEN SCORE " + distribution(this.greenScores, this.played));
+        out.println("RED SCORE " + distribution(this.redScores, this.played));
+        out.printf("THROUGHPUT %.1f matches/sec %.1f commands/sec (%.3f s)%n",
+                this.played / seconds, this.commands / seconds, seconds);
+    }
+
+    private static String distribution(int[] scores, int count) {
+        if (count == 0) {
+            return "-";
+        }
+        int[] sorted = Arrays.copyOf(scores, count);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (int score : sorted) {
+            sum += score;
+        }
+        return String.format("min %d p50 %d p90 %d p99 %d max %d mean %.2f",
+                sorted[0], percentile(sorted, 50), percentile(sorted, 90),
+                percentile(sorted, 99), sorted[count - 1], (double) sum / count);
+    }
+
+    private static int percentile(int[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+}
+
+//Benchmarks
+/*Benchmark is a harness for the hot path of the game: NormalStyle.move,
+* AttackingStyle.move, PlayingStyle.collectOrKill and PlayingSystem.processCommand.
+* JMH needs a build system, which this single-file program does not have, so
+* warm-up, measurement and allocation accounting are done here by hand.
+* Usage: FightOfFigures --bench [sizes=8,64,1024] [densities=0,0.05,0.25]
+*        [mixes=MOVES,STYLE_FLIPS,CLONE_HEAVY,KILL_HEAVY] [commands=200000]
+*        [warmup=5] [iterations=10] [seed=42]
+* For every configuration ops/sec and allocation per op are printed. Allocation
+* is taken from com.sun.management.ThreadMXBean, like the GC profiler of JMH does.*/
+class Benchmark {
+    private static final int KILL_MATCH_LENGTH = 64;
+    private static final int MAX_COINS = 1_000_000;
+    private int[] sizes = {8, 64, 1024};
+    private double[] densities = {0, 0.05, 0.25};
+    private CommandMix[] mixes = CommandMix.values();
+    private int commands = 200_000;
+    private int warmup = 5;
+    private int iterations = 10;
+    private long seed = 42;
+
+    public static void main(String[] args) throws IOException {
+        Benchmark bench = new Benchmark();
+        for (int i = 1; i < args.length; i++) {
+            bench.configure(args[i]);
+        }
+        bench.run(System.out);
+    }
+
+    private void configure(String arg) {
+        String[] option = arg.split("=");
+        String[] values = option[1].split(",");
+        switch (option[0]) {
+            case "sizes":
+                this.sizes = Arrays.stream(values).mapToInt(Integer::parseInt).toArray();
+                break;
+            case "densities":
+                this.densities = Arrays.stream(values).mapToDouble(Double::parseDouble).toArray();
+                break;
+            case "mixes":
+                this.mixes = Arrays.stream(values).map(CommandMix::valueOf).toArray(CommandMix[]::new);
+                break;
+            case "commands":
+                this.commands = Integer.parseInt(values[0]);
+                break;
+            case "warmup":
+                this.warmup = Integer.parseInt(values[0]);
+                break;
+            case "iterations":
+                this.iterations = Integer.parseInt(values[0]);
+                break;
+            case "seed":
+                this.seed = Long.parseLong(values[0]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option[0]);
+        }
+    }
+
+    public void run(PrintStream report) throws IOException {
+        report.printf("%-24s %8s %8s %-12s %14s %12s %10s%n",
+                "BENCHMARK", "SIZE", "DENSITY", "MIX", "OPS/SEC", "ERROR", "B/OP");
+        for (int n : this.sizes) {
+            for (double density : this.densities) {
+                MatchGenerator generator = new MatchGenerator(this.seed);
+                byte[] header = generator.header(n, density, MAX_COINS, false);
+                report.println(this.benchStyleMove(header, false).format("NormalStyle.move", n, density, "-"));
+                report.println(this.benchStyleMove(header, true).format("AttackingStyle.move", n, density, "-"));
+                report.println(this.benchCollectOrKill(header).format("collectOrKill", n, density, "-"));
+                for (CommandMix mix : this.mixes) {
+                    List<MatchScript> scripts = generator.scripts(n, density, MAX_COINS, mix,
+                            this.commands, mix == CommandMix.KILL_HEAVY ? KILL_MATCH_LENGTH : this.commands);
+                    report.println(this.benchProcessCommand(scripts).format("processCommand", n, density, mix.name()));
+                }
+            }
+        }
+    }
+
+    /*Figure walks along a square, so every move stays inside the board.*/
+    private BenchResult benchStyleMove(byte[] header, boolean attacking) throws IOException {
+        PlayingSystem sys = MatchGenerator.load(header);
+        Figure fig = sys.getFigure(PlayingSystem.GREEN);
+        Board board = sys.getBoard();
+        PlayingStyle style = attacking ? NormalStyle.INSTANCE.next() : NormalStyle.INSTANCE;
+        int step = style.getStep();
+        boolean forward = fig.getX() + step <= board.getDimension();
+        boolean right = fig.getY() + step <= board.getDimension();
+        Direction[] square = {
+                forward ? Direction.DOWN : Direction.UP,
+                right ? Direction.RIGHT : Direction.LEFT,
+                forward ? Direction.UP : Direction.DOWN,
+                right ? Direction.LEFT : Direction.RIGHT
+        };
+        BenchResult result = new BenchResult();
+        for (int it = -this.warmup; it < this.iterations; it++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < this.commands; i++) {
+                //The square may cross the other figure, it does not matter for measurement.
+                style.move(board, fig, square[i & 3]);
+            }
+            if (it >= 0) {
+                result.add(this.commands, System.nanoTime() - start, allocatedBytes() - allocated);
+            }
+        }
+        return result;
+    }
+
+    /*Target field is filled in turns with a coin and with an enemy figure.*/
+    private BenchResult benchCollectOrKill(byte[] header) throws IOException {
+        PlayingSystem sys = MatchGenerator.load(header);
+        Board board = sys.getBoard();
+        Figure fig = sys.getFigure(PlayingSystem.GREEN);
+        Figure victim = sys.getFigure(PlayingSystem.RED);
+        PlayingStyle style = NormalStyle.INSTANCE;
+        int x = victim.getX();
+        int y = victim.getY();
+        board.removeItem(x, y);
+        int coin = board.getCoins().add(x, y, 1);
+        board.getCoins().remove(coin);
+        BenchResult result = new BenchResult();
+        for (int it = -this.warmup; it < this.iterations; it++) {
+            long allocated = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < this.commands; i++) {
+                if ((i & 1) == 0) {
+                    board.getCoins().restore(coin);
+                } else {
+                    board.placeItem(x, y, victim);
+                }
+                style.collectOrKill(board, fig, x, y);
+                fig.setPointsAmount(0);
+            }
+            if (it >= 0) {
+                result.add(this.commands, System.nanoTime() - start, allocatedBytes() - allocated);
+            }
+        }
+        return result;
+    }
+
+    /*Matches are loaded before the timer starts, only command processing is measured.*/
+    private BenchResult benchProcessCommand(List<MatchScript> scripts) throws IOException {
+        OutputBuffer sink = new OutputBuffer(OutputStream.nullOutputStream());
+        Action[] actions = Action.values();
+        BenchResult result = new BenchResult();
+        for (int it = -this.warmup; it < this.iterations; it++) {
+            long ops = 0;
+            long nanos = 0;
+            long bytes = 0;
+            for (MatchScript script : scripts) {
+                PlayingSystem sys = new PlayingSystem(new CommandReader(new ByteArrayInputStream(script.getHeader())), sink);
+                int[] encoded = script.getCommands();
+                long allocated = allocatedBytes();
+                long start = System.nanoTime();
+                for (int command : encoded) {
+                    sys.processCommand(MatchScript.figureOf(command), actions[MatchScript.actionOf(command)]);
+                }
+                nanos += System.nanoTime() - start;
+                bytes += allocatedBytes() - allocated;
+                ops += encoded.length;
+            }
+            if (it >= 0) {
+                result.add(ops, nanos, bytes);
+            }
+        }
+        return result;
+    }
+
+    static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
+
+/*Command mixes used by benchmarks.*/
+enum CommandMix {
+    MOVES,
+    STYLE_FLIPS,
+    CLONE_HEAVY,
+    KILL_HEAVY;
+}
+
+/*Header of a match input and commands prepared for it. Command is encoded
+* in one int as figure slot and Action ordinal.*/
+class MatchScript {
+    private byte[] header;
+    private int[] commands;
+
+    public MatchScript(byte[] header, int[] commands) {
+        this.header = header;
+        this.commands = commands;
+    }
+
+    static int encode(int figure, Action action) {
+        return (figure << 3) | action.ordinal();
+    }
+
+    static int figureOf(int command) {
+        return command >> 3;
+    }
+
+    static int actionOf(int command) {
+        return command & 7;
+    }
+
+    public byte[] getHeader() {
+        return this.header;
+    }
+
+    public int[] getCommands() {
+        return this.commands;
+    }
+}
+
+/*MatchGenerator creates random boards and command streams for a given mix.
+* Commands are chosen while the match is actually played, so kill-heavy
+* streams can steer figures towards their enemies.*/
+class MatchGenerator {
+    private static final Action[] MOVES = {Action.UP, Action.DOWN, Action.LEFT, Action.RIGHT};
+    private Random random;
+
+    public MatchGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    static PlayingSystem load(byte[] header) throws IOException {
+        return new PlayingSystem(new CommandReader(new ByteArrayInputStream(header)),
+                new OutputBuffer(OutputStream.nullOutputStream()));
+    }
+
+    /*Builds input header with N, figure positions and coins (without command count).
+    * If close is true, figures start near each other in the middle of the board.*/
+    public byte[] header(int n, double density, int maxCoins, boolean close) {
+        HashSet<Long> used = new HashSet<>();
+        int gx, gy, rx, ry;
+        if (close) {
+            gx = (n + 1) / 2;
+            gy = Math.max(1, (n + 1) / 2 - 1);
+            rx = gx;
+            ry = Math.min(n, gy + 2);
+        } else {
+            gx = 1 + this.random.nextInt(n);
+            gy = 1 + this.random.nextInt(n);
+            do {
+                rx = 1 + this.random.nextInt(n);
+                ry = 1 + this.random.nextInt(n);
+            } while (rx == gx && ry == gy);
+        }
+        used.add((long) gx * n + gy);
+        used.add((long) rx * n + ry);
+        long wanted = Math.min((long) (density * n * n), Math.min(maxCoins, (long) n * n - 2));
+        StringBuilder sb = new StringBuilder();
+        sb.append(n).append('\n').append(gx).append(' ').append(gy).append('\n')
+                .append(rx).append(' ').append(ry).append('\n').append(wanted).append('\n');
+        for (long i = 0; i < wanted; i++) {
+            int x, y;
+            do {
+                x = 1 + this.random.nextInt(n);
+                y = 1 + this.random.nextInt(n);
+            } while (!used.add((long) x * n + y));
+            sb.append(x).append(' ').append(y).append(' ').append(1 + this.random.nextInt(20)).append('\n');
+        }
+        return OutputBuffer.ascii(sb.toString());
+    }
+
+    /*Splits total number of commands into matches of given length.*/
+    public List<MatchScript> scripts(int n, double density, int maxCoins, CommandMix mix,
+                                     int total, int matchLength) throws IOException {
+        List<MatchScript> scripts = new ArrayList<>();
+        for (int done = 0; done < total; done += matchLength) {
+            byte[] header = this.header(n, density, maxCoins, mix == CommandMix.KILL_HEAVY);
+            scripts.add(new MatchScript(header, this.commands(header, mix, Math.min(matchLength, total - done))));
+        }
+        return scripts;
+    }
+
+    public int[] commands(byte[] header, CommandMix mix, int count) throws IOException {
+        PlayingSystem sys = load(header);
+        int[] commands = new int[count];
+        for (int i = 0; i < count; i++) {
+            int figure = this.pickFigure(sys);
+            Action action;
+            int roll = this.random.nextInt(10);
+            switch (mix) {
+                case STYLE_FLIPS:
+                    action = roll < 5 ? Action.STYLE : this.randomMove();
+                    break;
+                case CLONE_HEAVY:
+                    action = roll < 4 ? Action.COPY : this.randomMove();
+                    break;
+                case KILL_HEAVY:
+                    action = roll < 8 ? this.chase(sys, figure) : this.randomMove();
+                    break;
+                default:
+                    action = this.randomMove();
+            }
+            commands[i] = MatchScript.encode(figure, action);
+            sys.processCommand(figure, action);
+        }
+        return commands;
+    }
+
+    private int pickFigure(PlayingSystem sys) {
+        int figure;
+        do {
+            figure = this.random.nextInt(sys.getFigures().size());
+        } while (sys.getFigure(figure) == null);
+        return figure;
+    }
+
+    private Action randomMove() {
+        return MOVES[this.random.nextInt(MOVES.length)];
+    }
+
+    private Action chase(PlayingSystem sys, int figure) {
+        Action action = towardsEnemy(sys, figure);
+        return action == null ? this.randomMove() : action;
+    }
+
+    /*Direction that brings figure closer to the nearest alive enemy, or null if there is none.*/
+    static Action towardsEnemy(PlayingSystem sys, int figure) {
+        Figure fig = sys.getFigure(figure);
+        Figure target = null;
+        int best = Integer.MAX_VALUE;
+        for (int slot = 0; slot < sys.getFigures().size(); slot++) {
+            Figure enemy = sys.getFigure(slot);
+            if (enemy != null && !enemy.isDead() && enemy.getTeam() != fig.getTeam()) {
+                int distance = Math.abs(enemy.getX() - fig.getX()) + Math.abs(enemy.getY() - fig.getY());
+                if (distance < best) {
+                    best = distance;
+                    target = enemy;
+                }
+            }
+        }
+        if (target == null) {
+            return null;
+        }
+        if (target.getX() != fig.getX()) {
+            return target.getX() < fig.getX() ? Action.UP : Action.DOWN;
+        }
+        return target.getY() < fig.getY() ? Action.LEFT : Action.RIGHT;
+    }
+}
+
+/*Collects measurements of one benchmark configuration.*/
+class BenchResult {
+    private List<Double> opsPerSecond = new ArrayList<>();
+    private long ops;
+    private long nanos;
+    private long bytes;
+
+    public void add(long ops, long nanos, long bytes) {
+        this.opsPerSecond.add(ops * 1e9 / Math.max(nanos, 1));
+        this.ops += ops;
+        this.nanos += nanos;
+        this.bytes += bytes;
+    }
+
+    public String format(String name, int n, double density, String mix) {
+        double mean = 0;
+        for (double value : this.opsPerSecond) {
+            mean += value;
+        }
+        mean /= this.opsPerSecond.size();
+        double variance = 0;
+        for (double value : this.opsPerSecond) {
+            variance += (value - mean) * (value - mean);
+        }
+        double error = Math.sqrt(variance / Math.max(1, this.opsPerSecond.size() - 1));
+        return String.format("%-24s %8d %8.3f %-12s %14.0f %12.0f %10.2f",
+                name, n, density, mix, mean, error, (double) this.bytes / Math.max(this.ops, 1));
+    }
+}
+
+//Simulation
+/*Simulation plays a lot of random matches to check balance of the rules:
+* how often each team wins, how scores are distributed and how soon the first
+* figure gets killed. Figures and coins are placed at random, coin values and
+* the step of AttackingStyle can be tuned.
+* Usage: FightOfFigures --simulate [games=100000] [size=8] [density=0.2]
+*        [values=1-20] [step=2] [commands=200] [policy=RANDOM|CHASE]
+*        [threads=<cores>] [seed=42]
+* Games are split into a fixed number of shards with their own seeds, so
+* results do not depend on the number of threads. Every thread plays its shards
+* on one SimulationWorker, which reuses the same PlayingSystem, Board and
+* figures for all games, so a game does not allocate anything.*/
+class Simulation {
+    private static final int SHARDS = 256;
+    private long games = 100_000;
+    private int size = 8;
+    private double density = 0.2;
+    private int minValue = 1;
+    private int maxValue = 20;
+    private int step = AttackingStyle.DEFAULT_STEP;
+    private int commands = 200;
+    private SimulationPolicy policy = SimulationPolicy.RANDOM;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long seed = 42;
+
+    public static void main(String[] args) {
+        Simulation simulation = new Simulation();
+        for (int i = 1; i < args.length; i++) {
+            simulation.configure(args[i]);
+        }
+        simulation.run(System.out);
+    }
+
+    private void configure(String arg) {
+        String[] option = arg.split("=");
+        switch (option[0]) {
+            case "games":
+                this.games = Long.parseLong(option[1]);
+                break;
+            case "size":
+                this.size = Integer.parseInt(option[1]);
+                break;
+            case "density":
+                this.density = Double.parseDouble(option[1]);
+                break;
+            case "values":
+                String[] range = option[1].split("-");
+                this.minValue = Integer.parseInt(range[0]);
+                this.maxValue = Integer.parseInt(range[range.length - 1]);
+                break;
+            case "step":
+                this.step = Integer.parseInt(option[1]);
+                break;
+            case "commands":
+                this.commands = Integer.parseInt(option[1]);
+                break;
+            case "policy":
+                this.policy = SimulationPolicy.valueOf(option[1].toUpperCase());
+                break;
+            case "threads":
+                this.threads = Integer.parseInt(option[1]);
+                break;
+            case "seed":
+                this.seed = Long.parseLong(option[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + option[0]);
+        }
+    }
+
+    public void run(PrintStream report) {
+        ThreadLocal<SimulationWorker> workers = ThreadLocal.withInitial(() -> new SimulationWorker(this));
+        SplittableRandom seeds = new SplittableRandom(this.seed);
+        List<Callable<SimulationStats>> shards = new ArrayList<>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            long games = this.games / SHARDS + (shard < this.games % SHARDS ? 1 : 0);
+            SplittableRandom random = seeds.split();
+            shards.add(() -> workers.get().play(random, games));
+        }
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        SimulationStats total = new SimulationStats();
+        try {
+            for (Future<SimulationStats> result : pool.invokeAll(shards)) {
+                result.get().addTo(total);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Simulation failed: " + e.getCause());
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        report.printf("games %d size %d density %.3f values %d-%d step %d commands %d policy %s threads %d%n",
+                this.games, this.size, this.density, this.minValue, this.maxValue, this.step,
+                this.commands, this.policy, this.threads);
+        total.print(report, FigureRegistry.classic(), System.nanoTime() - start);
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public double getDensity() {
+        return this.density;
+    }
+
+    public int getMinValue() {
+        return this.minValue;
+    }
+
+    public int getMaxValue() {
+        return this.maxValue;
+    }
+
+    public int getStep() {
+        return this.step;
+    }
+
+    public int getCommands() {
+        return this.commands;
+    }
+
+    public SimulationPolicy getPolicy() {
+        return this.policy;
+    }
+}
+
+/*How simulated teams choose their moves: at random or towards the nearest enemy.*/
+enum SimulationPolicy {
+    RANDOM,
+    CHASE;
+}
+
+/*SimulationWorker plays classic matches one after another on the same
+* PlayingSystem. Between games the match is reset and original figures are
+* placed again, clones are reused by OriginalFigure.copy. Teams take turns,
+* a random alive figure of the team gets a random command: COPY and STYLE
+* with probability 1/10 each, otherwise a move (with CHASE policy mostly
+* towards the nearest enemy).*/
+class SimulationWorker {
+    private static final Action[] MOVES = {Action.UP, Action.DOWN, Action.LEFT, Action.RIGHT};
+    private Simulation simulation;
+    private PlayingSystem sys;
+    private OriginalFigure[] originals;
+    private int[] candidates;
+
+    public SimulationWorker(Simulation simulation) {
+        this.simulation = simulation;
+        FigureRegistry registry = FigureRegistry.classic();
+        this.sys = new PlayingSystem(simulation.getSize(), registry,
+                new OutputBuffer(OutputStream.nullOutputStream()));
+        this.sys.setAttackingStep(simulation.getStep());
+        this.originals = new OriginalFigure[registry.getOriginalCount()];
+        for (int slot = 0; slot < this.originals.length; slot++) {
+            this.originals[slot] = registry.createOriginal(slot, 1, 1);
+        }
+        this.candidates = new int[registry.size()];
+    }
+
+    /*Plays given number of games of one shard. Allocation is measured only
+    * around the games, stats of the shard are created before.*/
+    public SimulationStats play(SplittableRandom random, long games) throws IOException {
+        SimulationStats stats = new SimulationStats();
+        long allocated = Benchmark.allocatedBytes();
+        for (long game = 0; game < games; game++) {
+            this.playGame(random, stats);
+        }
+        stats.allocated(Benchmark.allocatedBytes() - allocated);
+        return stats;
+    }
+
+    private void playGame(SplittableRandom random, SimulationStats stats) throws IOException {
+        PlayingSystem sys = this.sys;
+        Board board = sys.getBoard();
+        int n = this.simulation.getSize();
+        sys.reset();
+        for (OriginalFigure fig : this.originals) {
+            int x, y;
+            do {
+                x = 1 + random.nextInt(n);
+                y = 1 + random.nextInt(n);
+            } while (!board.isEmpty(x, y));
+            fig.reset(x, y);
+            sys.placeFigure(fig);
+        }
+        long cells = (long) n * n;
+        long coins = Math.min((long) (this.simulation.getDensity() * cells), cells - this.originals.length);
+        for (long i = 0; i < coins; i++) {
+            int x, y;
+            do {
+                x = 1 + random.nextInt(n);
+                y = 1 + random.nextInt(n);
+            } while (!board.isEmpty(x, y));
+            sys.placeCoin(x, y, random.nextInt(this.simulation.getMinValue(), this.simulation.getMaxValue() + 1));
+        }
+
+        int firstKill = -1;
+        int teams = sys.getTeamCount();
+        for (int command = 0; command < this.simulation.getCommands(); command++) {
+            int figure = this.pickFigure(random, command % teams);
+            Action action = this.pickAction(random, figure);
+            ActionStatus status = sys.processCommand(figure, action);
+            //Taken item is left in the figure only by a move.
+            if (firstKill == -1 && status == ActionStatus.OK && action.getDirection() != null
+                    && sys.getFigure(figure).getTaken() instanceof Figure) {
+                firstKill = command + 1;
+            }
+        }
+        stats.game(sys.getScore(PlayingSystem.GREEN_TEAM), sys.getScore(PlayingSystem.RED_TEAM), firstKill);
+    }
+
+    /*Random alive figure of the team. Team without alive figures passes the turn to the other one.*/
+    private int pickFigure(SplittableRandom random, int team) {
+        FigureRegistry figures = this.sys.getFigures();
+        for (int attempt = 0; attempt < figures.getTeamCount(); attempt++) {
+            int count = 0;
+            for (int slot = 0; slot < figures.size(); slot++) {
+                Figure fig = figures.get(slot);
+                if (fig != null && !fig.isDead() && fig.getTeam() == team) {
+                    this.candidates[count++] = slot;
+                }
+            }
+            if (count > 0) {
+                return this.candidates[random.nextInt(count)];
+            }
+            team = (team + 1) % figures.getTeamCount();
+        }
+        throw new IllegalStateException("No alive figures");
+    }
+
+    private Action pickAction(SplittableRandom random, int figure) {
+        int roll = random.nextInt(10);
+        if (roll == 0) {
+            return Action.COPY;
+        } else if (roll == 1) {
+            return Action.STYLE;
+        } else if (this.simulation.getPolicy() == SimulationPolicy.CHASE && roll < 8) {
+            Action action = MatchGenerator.towardsEnemy(this.sys, figure);
+            if (action != null) {
+                return action;
+            }
+        }
+        return MOVES[random.nextInt(MOVES.length)];
+    }
+}
+
+/*Results of simulated games of the classic match. Win rates are printed with
+* 95% confidence intervals (normal approximation), scores and first kills
+* as percentiles of Histograms.*/
+class SimulationStats {
+    private long games;
+    private long[] wins = new long[2];
+    private long ties;
+    private Histogram[] scores = {new Histogram(), new Histogram()};
+    private Histogram firstKill = new Histogram();
+    private long bytes;
+
+    /*firstKill is the number of the command that killed the first figure, or -1.*/
+    public void game(int green, int red, int firstKill) {
+        this.games++;
+        if (green > red) {
+            this.wins[PlayingSystem.GREEN_TEAM]++;
+        } else if (red > green) {
+            this.wins[PlayingSystem.RED_TEAM]++;
+        } else {
+            this.ties++;
+        }
+        this.scores[PlayingSystem.GREEN_TEAM].record(green);
+        this.scores[PlayingSystem.RED_TEAM].record(red);
+        if (firstKill != -1) {
+            this.firstKill.record(firstKill);
+        }
+    }
+
+    public void allocated(long bytes) {
+        this.bytes += bytes;
+    }
+
+    void addTo(SimulationStats total) {
+        total.games += this.games;
+        for (int team = 0; team < this.wins.length; team++) {
+            total.wins[team] += this.wins[team];
+            this.scores[team].addTo(total.scores[team]);
+        }
+        total.ties += this.ties;
+        this.firstKill.addTo(total.firstKill);
+        total.bytes += this.bytes;
+    }
+
+    public void print(PrintStream report, FigureRegistry registry, long nanos) {
+        long games = Math.max(this.games, 1);
+        for (int team = 0; team < this.wins.length; team++) {
+            String name = new String(registry.getTeamName(team), StandardCharsets.US_ASCII);
+            report.printf("%-5s wins %s score p10 %d p50 %d p90 %d p99 %d max %d mean %.2f%n",
+                    name, rate(this.wins[team], games), this.scores[team].percentile(10),
+                    this.scores[team].percentile(50), this.scores[team].percentile(90),
+                    this.scores[team].percentile(99), this.scores[team].getMax(), this.scores[team].getMean());
+        }
+        report.printf("TIE   %s%n", rate(this.ties, games));
+        report.printf("first kill in %s of games, at command p10 %d p50 %d p90 %d mean %.1f%n",
+                rate(this.firstKill.getCount(), games), this.firstKill.percentile(10),
+                this.firstKill.percentile(50), this.firstKill.percentile(90), this.firstKill.getMean());
+        double perSecond = this.games * 1e9 / Math.max(nanos, 1);
+        report.printf("%.0f games/sec, %.0f games/hour, %.1f B/game%n",
+                perSecond, perSecond * 3600, (double) this.bytes / games);
+    }
+
+    private static String rate(long count, long games) {
+        double p = (double) count / games;
+        return String.format("%6.2f%% +- %.2f%%", 100 * p, 196 * Math.sqrt(p * (1 - p) / games));
+    }
+}
+
+//Board check
+/*BoardCheck is a differential check of BitBoard against the generic Board.
+* Usage: FightOfFigures --check-board [games=1000] [commands=200] [seed=42]
+* Random matches of sizes 2..BitBoard.LIMIT with random attacking steps are
+* played on both boards with random command streams of every CommandMix.
+* After every command statuses, scores and all cells of both boards (item,
+* probe for every team and isEmpty) are compared, after the match the output.
+* The first mismatch is printed and stops the check.*/
+class BoardCheck {
+    private int games = 1000;
+    private int commands = 200;
+    private long seed = 42;
+
+    public static void main(String[] args) throws IOException {
+        BoardCheck check = new BoardCheck();
+        for (int i = 1; i < args.length; i++) {
+            String[] option = args[i].split("=");
+            switch (option[0]) {
+                case "games":
+                    check.games = Integer.parseInt(option[1]);
+                    break;
+                case "commands":
+                    check.commands = Integer.parseInt(option[1]);
+                    break;
+                case "seed":
+                    check.seed = Long.parseLong(option[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option[0]);
+            }
+        }
+        check.run(System.out);
+    }
+
+    public boolean run(PrintStream report) throws IOException {
+        Random random = new Random(this.seed);
+        CommandMix[] mixes = CommandMix.values();
+        Action[] actions = Action.values();
+        long cells = 0;
+        for (int game = 0; game < this.games; game++) {
+            int n = 2 + random.nextInt(BitBoard.LIMIT - 1);
+            int step = 1 + random.nextInt(3);
+            CommandMix mix = mixes[game % mixes.length];
+            MatchGenerator generator = new MatchGenerator(random.nextLong());
+            byte[] header = generator.header(n, random.nextDouble() * 0.5, n * n, mix == CommandMix.KILL_HEAVY);
+            int[] script = generator.commands(header, mix, this.commands);
+
+            ByteArrayOutputStream expectedOut = new ByteArrayOutputStream();
+            ByteArrayOutputStream actualOut = new ByteArrayOutputStream();
+            PlayingSystem expected = new PlayingSystem(new CommandReader(new ByteArrayInputStream(header)),
+                    new OutputBuffer(expectedOut), false);
+            PlayingSystem actual = new PlayingSystem(new CommandReader(new ByteArrayInputStream(header)),
+                    new OutputBuffer(actualOut), true);
+            expected.setAttackingStep(step);
+            actual.setAttackingStep(step);
+            String where = String.format("game %d (size %d, step %d, mix %s)", game, n, step, mix);
+            if (!(actual.getBoard() instanceof BitBoard)) {
+                report.println("MISMATCH " + where + ": board is not a BitBoard");
+                return false;
+            }
+            for (int i = 0; i < script.length; i++) {
+                int figure = MatchScript.figureOf(script[i]);
+                Action action = actions[MatchScript.actionOf(script[i])];
+                ActionStatus expectedStatus = expected.processCommand(figure, action);
+                ActionStatus actualStatus = actual.processCommand(figure, action);
+                String difference = expectedStatus != actualStatus ? "status " + expectedStatus + " vs " + actualStatus
+                        : compare(expected, actual);
+                if (difference != null) {
+                    report.printf("MISMATCH %s, command %d %s: %s%n", where, i + 1, action, difference);
+                    return false;
+                }
+                cells += (long) n * n;
+            }
+            expected.printWinner();
+            actual.printWinner();
+            if (!Arrays.equals(expectedOut.toByteArray(), actualOut.toByteArray())) {
+                report.printf("MISMATCH %s: output differs%n", where);
+                return false;
+            }
+        }
+        report.printf("Board check passed: %d games, %d commands, %d cell comparisons%n",
+                this.games, (long) this.games * this.commands, cells);
+        return true;
+    }
+
+    /*Returns description of the first difference, or null if matches are equal.*/
+    private static String compare(PlayingSystem expected, PlayingSystem actual) {
+        for (int team = 0; team < expected.getTeamCount(); team++) {
+            if (expected.getScore(team) != actual.getScore(team)) {
+                return "score of team " + team;
+            }
+        }
+        Board expectedBoard = expected.getBoard();
+        Board actualBoard = actual.getBoard();
+        int n = expectedBoard.getDimension();
+        for (int x = 1; x <= n; x++) {
+            for (int y = 1; y <= n; y++) {
+                if (describe(expectedBoard.getItemFromField(x, y)) != describe(actualBoard.getItemFromField(x, y))
+                        || expectedBoard.isEmpty(x, y) != actualBoard.isEmpty(x, y)) {
+                    return "cell " + x + " " + y;
+                }
+                for (int team = 0; team < expected.getTeamCount(); team++) {
+                    if (expectedBoard.probe(x, y, team) != actualBoard.probe(x, y, team)) {
+                        return "probe of cell " + x + " " + y + " for team " + team;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /*Figure is described by its slot, coin by its id and value.*/
+    private static long describe(FieldItem item) {
+        if (item instanceof Figure) {
+            return -1 - ((Figure) item).getSlot();
+        } else if (item instanceof Coin) {
+            return ((long) ((Coin) item).getId() << 32) + ((Coin) item).getValue() + 1;
+        }
+        return 0;
+    }
+}
+
+//Server
+/*MatchServer is a long-running process that plays many matches at once, so
+* JVM start-up and JIT warm-up are paid once instead of for every match.
+* Usage: FightOfFigures --serve <port | socket path> [threads]
+* A number is a TCP port on the loopback interface, anything else is the path
+* of a Unix-domain socket. Every connection is a session: the client sends
+* classic matches in the usual input format one after another and gets the
+* usual output of every match. Every match gets its own PlayingSystem and Board.
+* Sessions read and write their SocketChannel directly through CommandReader
+* and OutputBuffer. Output is flushed when a session has processed everything
+* received so far (see CommandReader.setReplyBuffer), so a client streaming
+* many commands gets replies in big batches.
+* With --events (see EventLog) every match publishes its events to its own file.
+* Sessions run on virtual threads if the runtime has them (Java 21 and later),
+* otherwise on a pool of "threads" platform threads, where further sessions wait in line.*/
+class MatchServer {
+    static final int DEFAULT_THREADS = 256;
+    private static final long ACCEPT_RETRY_NANOS = 100_000_000;
+    private ServerSocketChannel server;
+    private ExecutorService sessions;
+    private LongAdder matches = new LongAdder();
+    private AtomicLong started = new AtomicLong();
+
+    public MatchServer(ServerSocketChannel server, ExecutorService sessions) {
+        this.server = server;
+        this.sessions = sessions;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: FightOfFigures --serve <port | socket path> [threads]");
+            return;
+        }
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREADS;
+        ServerSocketChannel server = bind(args[1]);
+        MatchServer matchServer = new MatchServer(server, executor(threads));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.err.printf("Served %d matches%n", matchServer.getMatches());
+            if (!args[1].chars().allMatch(Character::isDigit)) {
+                deleteSocket(Paths.get(args[1]));
+            }
+        }));
+        System.err.println("Serving on " + server.getLocalAddress());
+        matchServer.run();
+    }
+
+    static ServerSocketChannel bind(String address) throws IOException {
+        if (address.chars().allMatch(Character::isDigit)) {
+            return ServerSocketChannel.open().bind(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address)));
+        }
+        //Socket file left by a previous server would make bind fail, anything else at the path is kept.
+        Path socket = Paths.get(address);
+        if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            if (!isStaleSocket(socket)) {
+                throw new IOException("Cannot serve on " + address + ": it exists and is not a stale socket");
+            }
+            Files.delete(socket);
+        }
+        return ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(UnixDomainSocketAddress.of(socket));
+    }
+
+    /*Socket is stale when nothing accepts connections on it anymore.*/
+    private static boolean isStaleSocket(Path path) throws IOException {
+        if (!Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+            return false;
+        }
+        try (SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /*Called at exit for the socket this server bound, it is deleted only if it is still a socket.*/
+    private static void deleteSocket(Path path) {
+        try {
+            if (Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+                Files.delete(path);
+            }
+        } catch (IOException e) {
+            //Already gone or replaced, nothing of this server is left to delete.
+        }
+    }
+
+    /*Virtual threads are looked up by reflection, so the program still compiles and runs on Java 17.*/
+    static ExecutorService executor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    /*Accepts connections until the server channel is closed. Other errors of accept
+    * (for example too many open files) are reported and accepting goes on after a pause.*/
+    public void run() {
+        while (true) {
+            SocketChannel client;
+            try {
+                client = this.server.accept();
+            } catch (ClosedChannelException e) {
+                this.sessions.shutdown();
+                return;
+            } catch (IOException e) {
+                System.err.println("Cannot accept connection: " + e);
+                LockSupport.parkNanos(ACCEPT_RETRY_NANOS);
+                continue;
+            }
+            this.sessions.execute(() -> this.serve(client));
+        }
+    }
+
+    /*Plays matches of one session until the client closes its side. Malformed
+    * input ends the session, its error is sent to the client like main prints it.*/
+    private void serve(SocketChannel client) {
+        try (client) {
+            CommandReader in = new CommandReader(client);
+            OutputBuffer out = new OutputBuffer(Channels.newOutputStream(client));
+            in.setReplyBuffer(out);
+            try {
+                while (in.hasMoreInput()) {
+                    PlayingSystem sys = new PlayingSystem(in, out);
+                    EventLog events = EventLog.open(sys, this.started.incrementAndGet());
+                    try {
+                        int P = in.readInt();
+                        for (int i = 0; i < P && in.readCommand(); i++) {
+                            sys.processCommand(in.getFigure(), in.getAction());
+                        }
+                    } finally {
+                        if (events != null) {
+                            events.close();
+                        }
+                    }
+                    sys.printWinner();
+                    this.matches.increment();
+                }
+            } catch (IOException | RuntimeException e) {
+                out.append(OutputBuffer.ascii(String.valueOf(e.getMessage()))).newLine();
+                out.flush();
+            }
+        } catch (IOException e) {
+            //Client went away, nothing can be sent to it anymore.
+        } finally {
+            Metrics.retire();
+        }
+    }
+
+    public long getMatches() {
+        return this.matches.sum();
+    }
+
+    public void close() throws IOException {
+        this.server.close();
+    }
+}
+
+//Bots
+/*Bot chooses commands for a team by alpha-beta search. Searching on real
+* figures and Board would need deep copies, so every search thread plays on
+* its own SearchState, a compact copy of the match in primitive arrays, where
+* commands are made and unmade in place. Rules are the same as in
+* PlayingStyle.move, PlayingStyle.collectOrKill and OriginalFigure.copy.
+* Positions are hashed with Zobrist keys and stored in a TranspositionTable
+* shared by all threads. Root commands are split between threads of a
+* ForkJoinPool: the first (best so far) command is searched alone to get a
+* bound, then the rest are searched in parallel with that bound.
+* With more than two teams the search is paranoid: all other teams are
+* treated as one opponent moving in turns with the bot's team.*/
+class Bot {
+    static final int DEFAULT_TABLE_MEGABYTES = 64;
+    private static final Action[] ACTIONS = Action.values();
+    private PlayingSystem sys;
+    private int depth;
+    private int threads;
+    private TranspositionTable table;
+    private ThreadLocal<Searcher> searchers;
+    private LongAdder nodes = new LongAdder();
+    private long nanos;
+
+    public Bot(PlayingSystem sys, int depth, int threads, int tableMegabytes) {
+        this.sys = sys;
+        this.depth = depth;
+        this.threads = threads;
+        this.table = new TranspositionTable(tableMegabytes);
+        this.searchers = ThreadLocal.withInitial(() -> new Searcher(this.sys, this.table, this.depth));
+    }
+
+    /*Continues the match with given number of commands chosen by bots.
+    * Teams take turns starting from the first one, every chosen command is
+    * printed in the input format before the output of processCommand.*/
+    public void play(OutputBuffer out, int commands) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(this.threads);
+        try {
+            for (int i = 0; i < commands; i++) {
+                int team = i % this.sys.getTeamCount();
+                int command = this.choose(team, pool);
+                if (command == -1) {
+                    continue;
+                }
+                Action action = ACTIONS[MatchScript.actionOf(command)];
+                int figure = MatchScript.figureOf(command);
+                out.append(this.sys.getFigures().nameOf(figure)).append(' ')
+                        .append(OutputBuffer.ascii(action.name())).newLine();
+                this.sys.processCommand(figure, action);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /*Returns command chosen for given team, encoded like in MatchScript,
+    * or -1 if the team has no alive figures.*/
+    public int choose(int team, ForkJoinPool pool) {
+        long start = System.nanoTime();
+        this.table.nextAge();
+        SearchState root = new SearchState(this.sys);
+        int[] moves = new int[root.maxMoves()];
+        int count = root.generate(team, true, moves);
+        if (count == 0) {
+            return -1;
+        }
+        int[] values = new int[count];
+        Searcher main = this.searchers.get();
+        for (int d = 1; d <= this.depth; d++) {
+            sortByValues(moves, values, count);
+            main.reset(root, team);
+            int firstValue = main.searchRoot(moves[0], d, Searcher.MIN_VALUE);
+            this.nodes.add(main.takeNodes());
+            RootBound bound = new RootBound(firstValue);
+            values[0] = firstValue;
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 1; i < count; i++) {
+                int index = i;
+                int depth = d;
+                tasks.add(() -> {
+                    Searcher searcher = this.searchers.get();
+                    searcher.reset(root, team);
+                    int value = searcher.searchRoot(moves[index], depth, bound.get());
+                    this.nodes.add(searcher.takeNodes());
+                    values[index] = value;
+                    bound.offer(value, index);
+                    return null;
+                });
+            }
+            for (Future<Void> task : pool.invokeAll(tasks)) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            //Best command goes first, its value is exact, values of other commands are only bounds.
+            int best = bound.getIndex();
+            int move = moves[best];
+            moves[best] = moves[0];
+            moves[0] = move;
+            values[best] = values[0];
+            values[0] = Integer.MAX_VALUE;
+        }
+        this.nanos += System.nanoTime() - start;
+        return moves[0];
+    }
+
+    public long getNodes() {
+        return this.nodes.sum();
+    }
+
+    public double getNodesPerSecond() {
+        return this.nodes.sum() * 1e9 / Math.max(this.nanos, 1);
+    }
+
+    /*Insertion sort of commands by values from the previous iteration, highest first.*/
+    private static void sortByValues(int[] moves, int[] values, int count) {
+        for (int i = 1; i < count; i++) {
+            int move = moves[i];
+            int value = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] < value) {
+                moves[j + 1] = moves[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            moves[j + 1] = move;
+            values[j + 1] = value;
+        }
+    }
+}
+
+/*Best value found among root commands so far and index of its command.*/
+class RootBound {
+    private volatile int value;
+    private int index;
+
+    public RootBound(int value) {
+        this.value = value;
+        this.index = 0;
+    }
+
+    public int get() {
+        return this.value;
+    }
+
+    /*Only values above the bound are exact, so only they can change the best command.*/
+    public synchronized void offer(int value, int index) {
+        if (value > this.value) {
+            this.value = value;
+            this.index = index;
+        }
+    }
+
+    public synchronized int getIndex() {
+        return this.index;
+    }
+}
+
+/*Searcher runs alpha-beta (negamax form) on its own SearchState.
+* Side 0 is the team of the bot, side 1 are all other teams.*/
+class Searcher {
+    static final int MIN_VALUE = -Integer.MAX_VALUE;
+    private static final int SCORE_WEIGHT = 4;
+    private static final int FIGURE_VALUE = 40;
+    private SearchState state;
+    private TranspositionTable table;
+    private int[][] moves;
+    private int[][] order;
+    private int team;
+    private long nodes;
+
+    public Searcher(PlayingSystem sys, TranspositionTable table, int maxDepth) {
+        this.state = new SearchState(sys);
+        this.table = table;
+        this.moves = new int[maxDepth + 1][this.state.maxMoves()];
+        this.order = new int[maxDepth + 1][this.state.maxMoves()];
+    }
+
+    public void reset(SearchState root, int team) {
+        this.state.copyFrom(root);
+        this.team = team;
+    }
+
+    public int searchRoot(int move, int depth, int alpha) {
+        this.state.make(move);
+        int value = -this.search(depth - 1, 1, MIN_VALUE, -alpha, 1);
+        this.state.unmake();
+        return value;
+    }
+
+    private int search(int depth, int ply, int alpha, int beta, int side) {
+        this.nodes++;
+        if (depth == 0) {
+            return this.evaluate(side);
+        }
+        long key = this.state.getHash() ^ SearchState.zobrist(SearchState.TURN, this.team * 2 + side);
+        long entry = this.table.probe(key);
+        int hashMove = -1;
+        if (entry != 0) {
+            hashMove = TranspositionTable.moveOf(entry);
+            if (TranspositionTable.depthOf(entry) >= depth) {
+                int value = TranspositionTable.valueOf(entry);
+                int flag = TranspositionTable.flagOf(entry);
+                if (flag == TranspositionTable.EXACT
+                        || (flag == TranspositionTable.LOWER && value >= beta)
+                        || (flag == TranspositionTable.UPPER && value <= alpha)) {
+                    return value;
+                }
+            }
+        }
+        int[] moves = this.moves[ply];
+        int count = this.state.generate(this.team, side == 0, moves);
+        if (count == 0) {
+            return this.evaluate(side);
+        }
+        this.orderMoves(moves, this.order[ply], count, hashMove);
+        int originalAlpha = alpha;
+        int best = MIN_VALUE;
+        int bestMove = moves[0];
+        for (int i = 0; i < count; i++) {
+            this.state.make(moves[i]);
+            int value = -this.search(depth - 1, ply + 1, -beta, -alpha, 1 - side);
+            this.state.unmake();
+            if (value > best) {
+                best = value;
+                bestMove = moves[i];
+            }
+            if (value > alpha) {
+                alpha = value;
+                if (alpha >= beta) {
+                    break;
+                }
+            }
+        }
+        int flag = best <= originalAlpha ? TranspositionTable.UPPER
+                : best >= beta ? TranspositionTable.LOWER : TranspositionTable.EXACT;
+        this.table.store(key, depth, flag, best, bestMove);
+        return best;
+    }
+
+    /*Hash command first, then kills and coins, then other moves, clones and style changes.*/
+    private void orderMoves(int[] moves, int[] keys, int count, int hashMove) {
+        for (int i = 0; i < count; i++) {
+            keys[i] = moves[i] == hashMove ? Integer.MAX_VALUE : this.state.orderKey(moves[i]);
+        }
+        for (int i = 1; i < count; i++) {
+            int move = moves[i];
+            int key = keys[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j] < key) {
+                moves[j + 1] = moves[j];
+                keys[j + 1] = keys[j];
+                j--;
+            }
+            moves[j + 1] = move;
+            keys[j + 1] = key;
+        }
+    }
+
+    private int evaluate(int side) {
+        int value = SCORE_WEIGHT * this.state.scoreLead(this.team) + FIGURE_VALUE * this.state.figureLead(this.team);
+        return side == 0 ? value : -value;
+    }
+
+    long takeNodes() {
+        long taken = this.nodes;
+        this.nodes = 0;
+        return taken;
+    }
+}
+
+/*SearchState is a match in primitive arrays. Cell keeps 0 if it is empty,
+* coin value if there is a coin, and -(slot + 1) if there is a figure.
+* Every make pushes three ints (command, previous position and content of
+* the target cell), which is all that unmake needs. The hash covers the
+* scores too, because positions with the same board but different scores
+* are evaluated differently.*/
+class SearchState {
+    static final int COIN = 0;
+    static final int FIGURE = 1;
+    static final int STYLE = 2;
+    static final int CLONED = 3;
+    static final int TURN = 4;
+    static final int SCORE = 5;
+    private static final int KINDS = 6;
+    private static final int ALIVE = 1;
+    private static final int ATTACKING = 2;
+    private static final int WAS_CLONED = 4;
+    private static final Action[] ACTIONS = Action.values();
+    private int n;
+    private int[] cells;
+    private int originals;
+    private int[] teams;
+    private int[] xs;
+    private int[] ys;
+    private byte[] flags;
+    private int[] scores;
+    private int[] alive;
+    private int attackingStep;
+    private long hash;
+    private int[] undo;
+    private int top;
+
+    public SearchState(PlayingSystem sys) {
+        Board board = sys.getBoard();
+        this.n = board.getDimension();
+        if (this.n > BoardStorage.DENSE_LIMIT) {
+            throw new IllegalArgumentException("Bots support boards up to " + BoardStorage.DENSE_LIMIT);
+        }
+        FigureRegistry figures = sys.getFigures();
+        int slots = figures.size();
+        this.cells = new int[this.n * this.n];
+        this.originals = figures.getOriginalCount();
+        this.teams = new int[slots];
+        this.xs = new int[slots];
+        this.ys = new int[slots];
+        this.flags = new byte[slots];
+        this.scores = new int[sys.getTeamCount()];
+        this.alive = new int[sys.getTeamCount()];
+        this.undo = new int[48];
+        this.attackingStep = sys.getAttackingStep();
+        CoinStore coins = sys.getCoins();
+        for (int id = 0; id < coins.size(); id++) {
+            if (coins.isOnBoard(id)) {
+                int cell = (coins.getX(id) - 1) * this.n + coins.getY(id) - 1;
+                this.cells[cell] = coins.getValue(id);
+                this.hash ^= zobrist(COIN, cell);
+            }
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            this.teams[slot] = figures.teamOf(slot);
+            Figure fig = sys.getFigure(slot);
+            if (fig == null) {
+                continue;
+            }
+            if (fig instanceof OriginalFigure && ((OriginalFigure)fig).wasCloned()) {
+                this.flags[slot] |= WAS_CLONED;
+                this.hash ^= zobrist(CLONED, slot);
+            }
+            if (fig.isAttacking()) {
+                this.flags[slot] |= ATTACKING;
+                this.hash ^= zobrist(STYLE, slot);
+            }
+            if (!fig.isDead()) {
+                this.xs[slot] = fig.getX() - 1;
+                this.ys[slot] = fig.getY() - 1;
+                this.flags[slot] |= ALIVE;
+                this.alive[this.teams[slot]]++;
+                int cell = this.xs[slot] * this.n + this.ys[slot];
+                this.cells[cell] = -(slot + 1);
+                this.hash ^= zobrist(FIGURE, (long) slot * this.cells.length + cell);
+            }
+        }
+        for (int team = 0; team < this.scores.length; team++) {
+            this.scores[team] = sys.getScore(team);
+            this.hash ^= this.scoreKey(team);
+        }
+    }
+
+    /*Copies given state of the same match into this one.*/
+    public void copyFrom(SearchState other) {
+        System.arraycopy(other.cells, 0, this.cells, 0, this.cells.length);
+        System.arraycopy(other.xs, 0, this.xs, 0, this.xs.length);
+        System.arraycopy(other.ys, 0, this.ys, 0, this.ys.length);
+        System.arraycopy(other.flags, 0, this.flags, 0, this.flags.length);
+        System.arraycopy(other.scores, 0, this.scores, 0, this.scores.length);
+        System.arraycopy(other.alive, 0, this.alive, 0, this.alive.length);
+        this.hash = other.hash;
+        this.top = 0;
+    }
+
+    /*Every alive figure has at most 6 commands.*/
+    public int maxMoves() {
+        return 6 * this.teams.length;
+    }
+
+    /*Writes valid commands of the team (own = true) or of all other teams (own = false).*/
+    public int generate(int team, boolean own, int[] moves) {
+        int count = 0;
+        for (int slot = 0; slot < this.teams.length; slot++) {
+            if ((this.flags[slot] & ALIVE) == 0 || (this.teams[slot] == team) != own) {
+                continue;
+            }
+            int step = (this.flags[slot] & ATTACKING) != 0 ? this.attackingStep : 1;
+            for (int a = 0; a < 4; a++) {
+                Direction direction = ACTIONS[a].getDirection();
+                int x = this.xs[slot] + direction.getDx() * step;
+                int y = this.ys[slot] + direction.getDy() * step;
+                if (x < 0 || x >= this.n || y < 0 || y >= this.n) {
+                    continue;
+                }
+                int item = this.cells[x * this.n + y];
+                if (item < 0 && this.teams[-item - 1] == this.teams[slot]) {
+                    continue;
+                }
+                moves[count++] = MatchScript.encode(slot, ACTIONS[a]);
+            }
+            if (slot < this.originals && (this.flags[slot] & WAS_CLONED) == 0
+                    && this.xs[slot] != this.ys[slot] && this.cells[this.ys[slot] * this.n + this.xs[slot]] == 0) {
+                moves[count++] = MatchScript.encode(slot, Action.COPY);
+            }
+            moves[count++] = MatchScript.encode(slot, Action.STYLE);
+        }
+        return count;
+    }
+
+    /*Plays a valid command produced by generate.*/
+    public void make(int move) {
+        int slot = MatchScript.figureOf(move);
+        int from = this.xs[slot] * this.n + this.ys[slot];
+        int captured = 0;
+        switch (ACTIONS[MatchScript.actionOf(move)]) {
+            case STYLE:
+                this.flags[slot] ^= ATTACKING;
+                this.hash ^= zobrist(STYLE, slot);
+                break;
+            case COPY: {
+                int clone = this.originals + slot;
+                this.xs[clone] = this.ys[slot];
+                this.ys[clone] = this.xs[slot];
+                this.flags[clone] = ALIVE;
+                this.flags[slot] |= WAS_CLONED;
+                this.alive[this.teams[clone]]++;
+                int cell = this.xs[clone] * this.n + this.ys[clone];
+                this.cells[cell] = -(clone + 1);
+                this.hash ^= zobrist(FIGURE, (long) clone * this.cells.length + cell) ^ zobrist(CLONED, slot);
+                break;
+            }
+            default: {
+                Direction direction = ACTIONS[MatchScript.actionOf(move)].getDirection();
+                int step = (this.flags[slot] & ATTACKING) != 0 ? this.attackingStep : 1;
+                this.xs[slot] += direction.getDx() * step;
+                this.ys[slot] += direction.getDy() * step;
+                int to = this.xs[slot] * this.n + this.ys[slot];
+                captured = this.cells[to];
+                if (captured > 0) {
+                    this.addScore(this.teams[slot], captured);
+                    this.hash ^= zobrist(COIN, to);
+                } else if (captured < 0) {
+                    int victim = -captured - 1;
+                    this.flags[victim] &= ~ALIVE;
+                    this.alive[this.teams[victim]]--;
+                    this.hash ^= zobrist(FIGURE, (long) victim * this.cells.length + to);
+                }
+                this.cells[from] = 0;
+                this.cells[to] = -(slot + 1);
+                this.hash ^= zobrist(FIGURE, (long) slot * this.cells.length + from)
+                        ^ zobrist(FIGURE, (long) slot * this.cells.length + to);
+            }
+        }
+        if (this.top + 3 > this.undo.length) {
+            this.undo = Arrays.copyOf(this.undo, this.undo.length * 2);
+        }
+        this.undo[this.top++] = move;
+        this.undo[this.top++] = from;
+        this.undo[this.top++] = captured;
+    }
+
+    /*Takes back the last command played by make.*/
+    public void unmake() {
+        int captured = this.undo[--this.top];
+        int from = this.undo[--this.top];
+        int move = this.undo[--this.top];
+        int slot = MatchScript.figureOf(move);
+        switch (ACTIONS[MatchScript.actionOf(move)]) {
+            case STYLE:
+                this.flags[slot] ^= ATTACKING;
+                this.hash ^= zobrist(STYLE, slot);
+                break;
+            case COPY: {
+                int clone = this.originals + slot;
+                int cell = this.xs[clone] * this.n + this.ys[clone];
+                this.flags[clone] = 0;
+                this.flags[slot] &= ~WAS_CLONED;
+                this.alive[this.teams[clone]]--;
+                this.cells[cell] = 0;
+                this.hash ^= zobrist(FIGURE, (long) clone * this.cells.length + cell) ^ zobrist(CLONED, slot);
+                break;
+            }
+            default: {
+                int to = this.xs[slot] * this.n + this.ys[slot];
+                if (captured > 0) {
+                    this.addScore(this.teams[slot], -captured);
+                    this.hash ^= zobrist(COIN, to);
+                } else if (captured < 0) {
+                    int victim = -captured - 1;
+                    this.flags[victim] |= ALIVE;
+                    this.alive[this.teams[victim]]++;
+                    this.hash ^= zobrist(FIGURE, (long) victim * this.cells.length + to);
+                }
+                this.cells[to] = captured;
+                this.cells[from] = -(slot + 1);
+                this.xs[slot] = from / this.n;
+                this.ys[slot] = from % this.n;
+                this.hash ^= zobrist(FIGURE, (long) slot * this.cells.length + from)
+                        ^ zobrist(FIGURE, (long) slot * this.cells.length + to);
+            }
+        }
+    }
+
+    private void addScore(int team, int points) {
+        this.hash ^= this.scoreKey(team);
+        this.scores[team] += points;
+        this.hash ^= this.scoreKey(team);
+    }
+
+    private long scoreKey(int team) {
+        return zobrist(SCORE, (long) this.scores[team] * this.scores.length + team);
+    }
+
+    /*Higher keys are searched first: kills, then coins by value, then the rest.*/
+    public int orderKey(int move) {
+        int slot = MatchScript.figureOf(move);
+        Action action = ACTIONS[MatchScript.actionOf(move)];
+        if (action == Action.STYLE) {
+            return -1;
+        }
+        if (action == Action.COPY) {
+            return 0;
+        }
+        int step = (this.flags[slot] & ATTACKING) != 0 ? this.attackingStep : 1;
+        int x = this.xs[slot] + action.getDirection().getDx() * step;
+        int y = this.ys[slot] + action.getDirection().getDy() * step;
+        int item = this.cells[x * this.n + y];
+        if (item < 0) {
+            return Integer.MAX_VALUE - 1;
+        }
+        return item + 1;
+    }
+
+    /*Score of the team minus the best score of other teams.*/
+    public int scoreLead(int team) {
+        int other = Integer.MIN_VALUE;
+        for (int t = 0; t < this.scores.length; t++) {
+            if (t != team) {
+                other = Math.max(other, this.scores[t]);
+            }
+        }
+        return this.scores[team] - other;
+    }
+
+    /*Alive figures of the team minus alive figures of all other teams.*/
+    public int figureLead(int team) {
+        int lead = 0;
+        for (int t = 0; t < this.alive.length; t++) {
+            lead += t == team ? this.alive[t] : -this.alive[t];
+        }
+        return lead;
+    }
+
+    public long getHash() {
+        return this.hash;
+    }
+
+    /*Zobrist keys are not stored in tables: key of a feature is its number
+    * mixed with the SplitMix64 finalizer, so boards of any size need no memory for keys.*/
+    static long zobrist(int kind, long feature) {
+        long z = feature * KINDS + kind + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+/*TranspositionTable is a fixed-size table of searched positions shared by
+* all search threads without locks. Entry is two longs: packed data and
+* key XOR data, so an entry torn by concurrent writes just fails the key check.
+* Every bucket has two entries: the first keeps the deepest result of the
+* current search and is replaced only by deeper results or results of a
+* newer search, the second is always replaced.*/
+class TranspositionTable {
+    static final int EXACT = 0;
+    static final int LOWER = 1;
+    static final int UPPER = 2;
+    private static final int NO_MOVE = 0xFFFF;
+    private long[] keys;
+    private long[] data;
+    private int mask;
+    private int age;
+
+    public TranspositionTable(int megabytes) {
+        long entries = Math.max(2, ((long) megabytes << 20) / 16);
+        int buckets = Integer.highestOneBit((int) Math.min(entries / 2, 1 << 28));
+        this.keys = new long[buckets * 2];
+        this.data = new long[buckets * 2];
+        this.mask = buckets - 1;
+    }
+
+    public void nextAge() {
+        this.age = (this.age + 1) & 63;
+    }
+
+    /*Returns packed data of the position, or 0 if it is not in the table.*/
+    public long probe(long key) {
+        int index = ((int) key & this.mask) << 1;
+        for (int i = index; i < index + 2; i++) {
+            long entry = this.data[i];
+            if ((this.keys[i] ^ entry) == key && entry != 0) {
+                return entry;
+            }
+        }
+        return 0;
+    }
+
+    public void store(long key, int depth, int flag, int value, int move) {
+        int index = ((int) key & this.mask) << 1;
+        long first = this.data[index];
+        if (first == 0 || ageOf(first) != this.age || depthOf(first) <= depth
+                || (this.keys[index] ^ first) == key) {
+            this.write(index, key, depth, flag, value, move);
+        } else {
+            this.write(index + 1, key, depth, flag, value, move);
+        }
+    }
+
+    private void write(int index, long key, int depth, int flag, int value, int move) {
+        //Depth is stored plus one, so packed data of a real entry is never 0.
+        long entry = (value & 0xFFFFFFFFL)
+                | (long) (Math.min(depth, 254) + 1) << 32
+                | (long) flag << 40
+                | (long) this.age << 42
+                | (long) (move >= 0 && move < NO_MOVE ? move : NO_MOVE) << 48;
+        this.data[index] = entry;
+        this.keys[index] = key ^ entry;
+    }
+
+    static int valueOf(long entry) {
+        return (int) entry;
+    }
+
+    static int depthOf(long entry) {
+        return (int) (entry >>> 32 & 0xFF) - 1;
+    }
+
+    static int flagOf(long entry) {
+        return (int) (entry >>> 40 & 3);
+    }
+
+    static int moveOf(long entry) {
+        int move = (int) (entry >>> 48 & 0xFFFF);
+        return move == NO_MOVE ? -1 : move;
+    }
+
+    private static int ageOf(long entry) {
+        return (int) (entry >>> 42 & 63);
+    }
+}
+
+//Metrics
+/*Metrics collects counters and latency histograms of processCommand.
+* Every thread records into its own MetricsRecorder, so concurrent matches
+* never write to shared memory; recorders are summed only when metrics are
+* dumped, so a dump taken while matches run may be slightly behind.
+* Threads that finish their work (server sessions, batch matches) retire
+* their recorder: its counts are added to one retired total and it is dropped,
+* so a long-running server keeps recorders only of sessions still playing.
+* Dump is rewritten every interval by a daemon thread and once more at exit,
+* as JSON if the file name ends with ".json" and as text otherwise.
+* Usage: FightOfFigures --metrics <file> <intervalMillis> [other options]*/
+class Metrics {
+    private static final Set<MetricsRecorder> RECORDERS = ConcurrentHashMap.newKeySet();
+    private static final ThreadLocal<MetricsRecorder> RECORDER = new ThreadLocal<>();
+    //Guarded by itself, also held while live recorders are summed, so a retiring one is counted exactly once.
+    private static final MetricsRecorder RETIRED = new MetricsRecorder();
+    private static volatile boolean enabled;
+
+    /*Removes metrics options from arguments and starts dumping if they were given.
+    * Returns null after printing usage if the options are incomplete or the interval is not positive.*/
+    static String[] configure(String[] args) {
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--metrics")) {
+                if (i + 2 >= args.length || !validInterval(args[i + 2])) {
+                    System.out.println("Usage: FightOfFigures --metrics <file> <intervalMillis> [other options]");
+                    return null;
+                }
+                enable(Paths.get(args[i + 1]), Long.parseLong(args[i + 2]));
+                i += 2;
+            } else {
+                rest.add(args[i]);
+            }
+        }
+        return rest.toArray(new String[0]);
+    }
+
+    /*Interval of 0 would rewrite the dump nonstop, longer than 12 digits would overflow nanoseconds.*/
+    private static boolean validInterval(String number) {
+        return !number.isEmpty() && number.length() <= 12 && number.chars().allMatch(Character::isDigit)
+                && Long.parseLong(number) >= 1;
+    }
+
+    static void enable(Path file, long intervalMillis) {
+        enabled = true;
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(intervalMillis * 1_000_000L);
+                dumpQuietly(file);
+            }
+        }, "metrics-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> dumpQuietly(file)));
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /*Recorder of the current thread, or null if metrics are disabled.*/
+    static MetricsRecorder recorder() {
+        if (!enabled) {
+            return null;
+        }
+        MetricsRecorder recorder = RECORDER.get();
+        if (recorder == null) {
+            recorder = new MetricsRecorder();
+            RECORDER.set(recorder);
+            RECORDERS.add(recorder);
+        }
+        return recorder;
+    }
+
+    /*Adds counts of the current thread to the retired total and drops its recorder.
+    * Must be called only when nothing holding the recorder will record anymore.*/
+    static void retire() {
+        MetricsRecorder recorder = RECORDER.get();
+        if (recorder == null) {
+            return;
+        }
+        synchronized (RETIRED) {
+            recorder.addTo(RETIRED);
+            RECORDERS.remove(recorder);
+        }
+        RECORDER.remove();
+    }
+
+    static MetricsRecorder total() {
+        MetricsRecorder total = new MetricsRecorder();
+        synchronized (RETIRED) {
+            RETIRED.addTo(total);
+            for (MetricsRecorder recorder : RECORDERS) {
+                recorder.addTo(total);
+            }
+        }
+        return total;
+    }
+
+    /*Dump is written to a temporary file first, so readers never see a half-written one.
+    * Reporter thread and the shutdown hook share the temporary file, so dumps never overlap.*/
+    static synchronized void dump(Path file) throws IOException {
+        MetricsRecorder total = total();
+        String text = file.toString().endsWith(".json") ? total.toJson() : total.toText();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, text.getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void dumpQuietly(Path file) {
+        try {
+            dump(file);
+        } catch (IOException e) {
+            System.err.println("Cannot write metrics: " + e);
+        }
+    }
+}
+
+/*Counters of one thread. Only the owning thread writes them.
+* Time is split into parsing (CommandReader), processing (processCommand
+* without writes to the output stream) and writing output to the stream.*/
+class MetricsRecorder {
+    private static final Action[] ACTIONS = Action.values();
+    private static final ActionStatus[] STATUSES = ActionStatus.values();
+    private long[] actions = new long[ACTIONS.length];
+    private long unknownActions;
+    private long[] statuses = new long[STATUSES.length];
+    private Histogram latency = new Histogram();
+    private long[] coins = new long[2];
+    private long[] points = new long[2];
+    private long[] kills = new long[2];
+    private long parseNanos;
+    private long outputNanos;
+
+    public void command(Action action, ActionStatus status, long nanos) {
+        if (action == null) {
+            this.unknownActions++;
+        } else {
+            this.actions[action.ordinal()]++;
+            this.statuses[status.ordinal()]++;
+        }
+        this.latency.record(nanos);
+    }
+
+    public void collected(int team, int value) {
+        this.ensureTeam(team);
+        this.coins[team]++;
+        this.points[team] += value;
+    }
+
+    public void killed(int team) {
+        this.ensureTeam(team);
+        this.kills[team]++;
+    }
+
+    public void parsed(long nanos) {
+        this.parseNanos += nanos;
+    }
+
+    public void written(long nanos) {
+        this.outputNanos += nanos;
+    }
+
+    private void ensureTeam(int team) {
+        if (team >= this.coins.length) {
+            int length = Math.max(team + 1, 2 * this.coins.length);
+            this.coins = Arrays.copyOf(this.coins, length);
+            this.points = Arrays.copyOf(this.points, length);
+            this.kills = Arrays.copyOf(this.kills, length);
+        }
+    }
+
+    void addTo(MetricsRecorder total) {
+        for (int i = 0; i < this.actions.length; i++) {
+            total.actions[i] += this.actions[i];
+        }
+        total.unknownActions += this.unknownActions;
+        for (int i = 0; i < this.statuses.length; i++) {
+            total.statuses[i] += this.statuses[i];
+        }
+        this.latency.addTo(total.latency);
+        long[] coins = this.coins;
+        long[] points = this.points;
+        long[] kills = this.kills;
+        for (int team = 0; team < Math.min(coins.length, Math.min(points.length, kills.length)); team++) {
+            total.ensureTeam(team);
+            total.coins[team] += coins[team];
+            total.points[team] += points[team];
+            total.kills[team] += kills[team];
+        }
+        total.parseNanos += this.parseNanos;
+        total.outputNanos += this.outputNanos;
+    }
+
+    private long processNanos() {
+        return Math.max(0, this.latency.getSum() - this.outputNanos);
+    }
+
+    String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("commands ").append(this.latency.getCount()).append('\n');
+        sb.append("actions");
+        for (Action action : ACTIONS) {
+            sb.append(' ').append(action.name()).append('=').append(this.actions[action.ordinal()]);
+        }
+        sb.append(" UNKNOWN=").append(this.unknownActions).append('\n');
+        sb.append("invalid");
+        for (ActionStatus status : STATUSES) {
+            if (status != ActionStatus.OK) {
+                sb.append(' ').append(status.name()).append('=').append(this.statuses[status.ordinal()]);
+            }
+        }
+        sb.append('\n');
+        sb.append(String.format("latency_ns count=%d mean=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                this.latency.getCount(), this.latency.getMean(), this.latency.percentile(50),
+                this.latency.percentile(90), this.latency.percentile(99), this.latency.percentile(99.9),
+                this.latency.getMax()));
+        for (int team = 0; team < this.coins.length; team++) {
+            sb.append("team ").append(team).append(" coins=").append(this.coins[team])
+                    .append(" points=").append(this.points[team]).append(" kills=").append(this.kills[team]).append('\n');
+        }
+        sb.append("time_ns parse=").append(this.parseNanos).append(" process=").append(this.processNanos())
+                .append(" output=").append(this.outputNanos).append('\n');
+        return sb.toString();
+    }
+
+    String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"commands\":").append(this.latency.getCount()).append(",\"actions\":{");
+        for (Action action : ACTIONS) {
+            sb.append('"').append(action.name()).append("\":").append(this.actions[action.ordinal()]).append(',');
+        }
+        sb.append("\"UNKNOWN\":").append(this.unknownActions).append("},\"invalid\":{");
+        String separator = "";
+        for (ActionStatus status : STATUSES) {
+            if (status != ActionStatus.OK) {
+                sb.append(separator).append('"').append(status.name()).append("\":").append(this.statuses[status.ordinal()]);
+                separator = ",";
+            }
+        }
+        sb.append(String.format("},\"latencyNanos\":{\"count\":%d,\"mean\":%.1f,\"p50\":%d,\"p90\":%d,"
+                        + "\"p99\":%d,\"p999\":%d,\"max\":%d},\"teams\":[",
+                this.latency.getCount(), this.latency.getMean(), this.latency.percentile(50),
+                this.latency.percentile(90), this.latency.percentile(99), this.latency.percentile(99.9),
+                this.latency.getMax()));
+        for (int team = 0; team < this.coins.length; team++) {
+            sb.append(team > 0 ? "," : "").append("{\"coins\":").append(this.coins[team])
+                    .append(",\"points\":").append(this.points[team])
+                    .append(",\"kills\":").append(this.kills[team]).append('}');
+        }
+        sb.append("],\"timeNanos\":{\"parse\":").append(this.parseNanos).append(",\"process\":")
+                .append(this.processNanos()).append(",\"output\":").append(this.outputNanos).append("}}\n");
+        return sb.toString();
+    }
+}
+
+/*Histogram of command latencies and of simulated match results. It has the
+* log-linear layout of HdrHistogram: values below 2^SUB_BITS have their own
+* buckets, and every further power of two is split into 2^(SUB_BITS - 1) equal
+* buckets, so any value is kept with relative error below 1/64 in a fixed array of counts.*/
+class Histogram {
+    private static final int SUB_BITS = 7;
+    private static final long MAX_VALUE = 1L << 40;
+    private long[] counts = new long[indexOf(MAX_VALUE) + 1];
+    private long count;
+    private long sum;
+    private long max;
+
+    public void record(long value) {
+        value = Math.min(Math.max(value, 0), MAX_VALUE);
+        this.counts[indexOf(value)]++;
+        this.count++;
+        this.sum += value;
+        this.max = Math.max(this.max, value);
+    }
+
+    static int indexOf(long value) {
+        if (value < (1 << SUB_BITS)) {
+            return (int) value;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (bucket << (SUB_BITS - 1)) + (int) (value >>> bucket);
+    }
+
+    /*Highest value that falls into the bucket with given index.*/
+    static long highestValueOf(int index) {
+        if (index < (1 << SUB_BITS)) {
+            return index;
+        }
+        int bucket = (index >> (SUB_BITS - 1)) - 1;
+        long lowest = (long) (index - (bucket << (SUB_BITS - 1))) << bucket;
+        return lowest + (1L << bucket) - 1;
+    }
+
+    public long percentile(double percent) {
+        long rank = (long) Math.ceil(percent / 100 * this.count);
+        long seen = 0;
+        for (int i = 0; i < this.counts.length; i++) {
+            seen += this.counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(highestValueOf(i), this.max);
+            }
+        }
+        return 0;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public long getSum() {
+        return this.sum;
+    }
+
+    public long getMax() {
+        return this.max;
+    }
+
+    public double getMean() {
+        return this.count == 0 ? 0 : (double) this.sum / this.count;
+    }
+
+    void addTo(Histogram total) {
+        for (int i = 0; i < this.counts.length; i++) {
+            total.counts[i] += this.counts[i];
+        }
+        total.count += this.count;
+        total.sum += this.sum;
+        total.max = Math.max(total.max, this.max);
+    }
+}
+
+//Board
+/*Class board represents NxN board used in game. Every match creates
+* its own Board and passes it to figures and playing styles, so boards
+* of different matches never share any state.
+* Cells themselves are kept in a BoardStorage, so the memory used by the board
+* depends on chosen storage mode rather than on Board itself.*/
+class Board {
+    /*What a figure finds on a cell, see probe.*/
+    static final int EMPTY = 0;
+    static final int COIN = 1;
+    static final int FRIEND = 2;
+    static final int ENEMY = 3;
+    private BoardStorage storage;
+    private CoinStore coins;
+    private Coin view;
+    private int dimension;
+
+    public Board(int n) {
+        this(n, BoardStorage.forDimension(n));
+    }
+
+    public Board(int n, BoardStorage storage) {
+        this(n, storage, new CoinStore(n));
+    }
+
+    protected Board(int n, BoardStorage storage, CoinStore coins) {
+        this.dimension = n;
+        this.storage = storage;
+        this.coins = coins;
+        this.view = new Coin(0, 0, 0);
+    }
+
+    /*Small boards are BitBoards, unless bitboards is false.*/
+    static Board forDimension(int n, boolean bitboards) {
+        if (bitboards && n <= BitBoard.LIMIT) {
+            return new BitBoard(n);
+        } else {
+            return new Board(n);
+        }
+    }
+
+    /*Figures are kept in the storage, coins are added through getCoins().*/
+    public void placeItem(int x, int y, FieldItem item) {
+        this.storage.put(x-1, y-1, item);
+    }
+
+    /*Coin is returned in one view object reused by every call, so moves create
+    * no garbage. It stays valid until the next call, which is enough for a move.*/
+    public FieldItem getItemFromField(int x, int y) {
+        FieldItem item = this.storage.get(x-1, y-1);
+        if (item != null) {
+            return item;
+        }
+        int coin = this.coins.find(x, y);
+        return coin == -1 ? null : this.coinView(coin);
+    }
+
+    protected Coin coinView(int coin) {
+        return this.coins.view(coin, this.view);
+    }
+
+    public void removeItem(int x, int y) {
+        if (this.storage.get(x-1, y-1) != null) {
+            this.storage.remove(x-1, y-1);
+        } else {
+            int coin = this.coins.find(x, y);
+            if (coin != -1) {
+                this.coins.remove(coin);
+            }
         }
-        sys.printWinner();
     }
-}
 
-//Exceptions
-class InvalidActionException extends Exception {
-    public String getMessage() {
-        return "INVALID ACTION";
+    /*Moves figure from its cell to an empty cell (x, y), figure itself is not changed.*/
+    public void moveFigure(Figure fig, int x, int y) {
+        this.storage.remove(fig.getX()-1, fig.getY()-1);
+        this.storage.put(x-1, y-1, fig);
+    }
+
+    public boolean isEmpty(int x, int y) {
+        return this.storage.get(x-1, y-1) == null && this.coins.find(x, y) == -1;
+    }
+
+    /*What a figure of given team finds on the cell: EMPTY, COIN, FRIEND or ENEMY.*/
+    public int probe(int x, int y, int team) {
+        FieldItem item = this.storage.get(x-1, y-1);
+        if (item != null) {
+            //Storage keeps only figures.
+            return ((Figure) item).getTeam() == team ? FRIEND : ENEMY;
+        }
+        return this.coins.find(x, y) == -1 ? EMPTY : COIN;
+    }
+
+    /*Takes the coin from the cell. It is returned in the same reused view as in getItemFromField.*/
+    public Coin collectCoin(int x, int y) {
+        int coin = this.coins.find(x, y);
+        this.coins.remove(coin);
+        return this.coinView(coin);
+    }
+
+    public Figure takeFigure(int x, int y) {
+        Figure fig = (Figure) this.storage.get(x-1, y-1);
+        this.removeItem(x, y);
+        return fig;
+    }
+
+    public CoinStore getCoins() {
+        return this.coins;
+    }
+
+    public int getDimension() {
+        return this.dimension;
     }
 }
 
-//System
-/*PlayingSystem is a Facade that unites functionality
- of other program classes providing more convenient interaction.*/
-class PlayingSystem {
-    private ArrayList<Coin> coins;
-    private OriginalFigure green;
-    private OriginalFigure red;
-    private ClonedFigure greenClone;
-    private ClonedFigure redClone;
-    private int greenScore;
-    private int redScore;
+/*BitBoard is the Board of small matches (up to LIMIT x LIMIT), which are most
+* of ranked matches. Figures are kept in a flat array of cells together with
+* occupancy bitboards: one of all figures and one per team, and its CoinStore
+* keeps one of coins. Cell (x, y) is bit (x-1)*N + y-1 of these long words, so
+* checks of the target cell of a move are bit tests instead of lookups and instanceof.*/
+class BitBoard extends Board {
+    static final int LIMIT = 16;
+    private int n;
+    private CoinStore coins;
+    private Figure[] cells;
+    private long[] figures;
+    private long[][] teams;
 
-    /*I pass instance of Scanner to PlayingSystem constructor,
-    * and scan all the input (except commands) right here.*/
-    public PlayingSystem(Scanner in) {
-        int n = Integer.parseInt(in.nextLine());
-        Board.initialize(n);
-        this.coins = new ArrayList<>();
-        this.greenScore = 0;
-        this.redScore = 0;
-
-        int x = in.nextInt();
-        int y = in.nextInt();
-        in.nextLine();
-        this.green = new OriginalFigure(x, y, Color.GREEN);
-        Board.getInstance().placeItem(x, y, this.green);
-
-        x = in.nextInt();
-        y = in.nextInt();
-        in.nextLine();
-        this.red = new OriginalFigure(x, y, Color.RED);
-        Board.getInstance().placeItem(x, y, this.red);
-
-        int M = Integer.parseInt(in.nextLine());
-        int v;
-        for (int i = 0; i < M; i++) {
-            x = in.nextInt();
-            y = in.nextInt();
-            v = in.nextInt();
-            in.nextLine();
-            Coin newCoin = new Coin(x, y, v);
-            this.coins.add(newCoin);
-            Board.getInstance().placeItem(x, y, newCoin);
+    public BitBoard(int n) {
+        //Figures are kept by BitBoard itself, so it needs no BoardStorage.
+        super(n, null, new CoinStore(n, true));
+        this.n = n;
+        this.coins = this.getCoins();
+        this.cells = new Figure[n * n];
+        this.figures = new long[words(n)];
+        this.teams = new long[2][words(n)];
+    }
+
+    static int words(int n) {
+        return (n * n + 63) >>> 6;
+    }
+
+    public void placeItem(int x, int y, FieldItem item) {
+        int cell = (x - 1) * this.n + y - 1;
+        if (this.cells[cell] != null) {
+            this.clear(cell);
+        }
+        if (item != null) {
+            Figure fig = (Figure) item;
+            int team = fig.getTeam();
+            if (team >= this.teams.length) {
+                int length = this.teams.length;
+                this.teams = Arrays.copyOf(this.teams, team + 1);
+                for (int t = length; t <= team; t++) {
+                    this.teams[t] = new long[this.figures.length];
+                }
+            }
+            this.cells[cell] = fig;
+            this.figures[cell >>> 6] |= 1L << cell;
+            this.teams[team][cell >>> 6] |= 1L << cell;
         }
+    }
 
-        this.greenClone = null;
-        this.redClone = null;
+    public FieldItem getItemFromField(int x, int y) {
+        int cell = (x - 1) * this.n + y - 1;
+        if (this.cells[cell] != null) {
+            return this.cells[cell];
+        }
+        if ((this.coins.getCellWord(cell >>> 6) & (1L << cell)) == 0) {
+            return null;
+        }
+        return this.coinView(this.coins.find(x, y));
     }
 
-    public void processCommand(String[] command) {
-        try {
-            switch (command[1]) {
-                case "UP":
-                    this.move(command[0], Direction.UP);
-                    break;
-                case "DOWN":
-                    this.move(command[0], Direction.DOWN);
-                    break;
-                case "LEFT":
-                    this.move(command[0], Direction.LEFT);
-                    break;
-                case "RIGHT":
-                    this.move(command[0], Direction.RIGHT);
-                    break;
-                case "COPY":
-                    this.copy(command[0]);
-                    break;
-                case "STYLE":
-                    this.changeStyle(command[0]);
-                    break;
+    public void removeItem(int x, int y) {
+        int cell = (x - 1) * this.n + y - 1;
+        if (this.cells[cell] != null) {
+            this.clear(cell);
+        } else {
+            int coin = this.coins.find(x, y);
+            if (coin != -1) {
+                this.coins.remove(coin);
             }
-        } catch(InvalidActionException e) {
-            System.out.println(e.getMessage());
         }
     }
 
-    public void move(String fig, Direction direction) throws InvalidActionException {
-        Figure curFig = this.findFigure(fig);
-        String extraMessage = curFig.move(direction);
-        increaseScore(curFig.getColor(), curFig.getPointsCollectedForMove());
-        curFig.setPointsAmount(0);
-        System.out.println(fig + " MOVED TO " + curFig.getX() + " " + curFig.getY() + extraMessage);
+    public void moveFigure(Figure fig, int x, int y) {
+        int from = (fig.getX() - 1) * this.n + fig.getY() - 1;
+        int to = (x - 1) * this.n + y - 1;
+        long[] team = this.teams[fig.getTeam()];
+        this.cells[from] = null;
+        this.cells[to] = fig;
+        this.figures[from >>> 6] &= ~(1L << from);
+        this.figures[to >>> 6] |= 1L << to;
+        team[from >>> 6] &= ~(1L << from);
+        team[to >>> 6] |= 1L << to;
+    }
+
+    public boolean isEmpty(int x, int y) {
+        int cell = (x - 1) * this.n + y - 1;
+        return ((this.figures[cell >>> 6] | this.coins.getCellWord(cell >>> 6)) & (1L << cell)) == 0;
+    }
+
+    public int probe(int x, int y, int team) {
+        int cell = (x - 1) * this.n + y - 1;
+        int word = cell >>> 6;
+        long bit = 1L << cell;
+        if ((this.figures[word] & bit) != 0) {
+            return team < this.teams.length && (this.teams[team][word] & bit) != 0 ? FRIEND : ENEMY;
+        }
+        return (this.coins.getCellWord(word) & bit) != 0 ? COIN : EMPTY;
+    }
+
+    public Figure takeFigure(int x, int y) {
+        int cell = (x - 1) * this.n + y - 1;
+        Figure fig = this.cells[cell];
+        this.clear(cell);
+        return fig;
     }
 
-    public void copy(String fig) throws InvalidActionException {
-        Figure curFig = this.findFigure(fig);
-        ClonedFigure clone = curFig.copy();
-        if (clone.getColor() == Color.GREEN) {
-            this.greenClone = clone;
+    private void clear(int cell) {
+        long mask = ~(1L << cell);
+        this.figures[cell >>> 6] &= mask;
+        this.teams[this.cells[cell].getTeam()][cell >>> 6] &= mask;
+        this.cells[cell] = null;
+    }
+}
+
+//Board storages
+/*BoardStorage hides the way cells of the board are stored. Coordinates
+* passed here are already zero-based. Dense storage is the plain NxN array,
+* sparse storage keeps only occupied cells, so its memory grows with
+* the number of figures and coins instead of N*N.*/
+interface BoardStorage {
+    /*Boards with bigger side than this one are stored sparsely by default.*/
+    int DENSE_LIMIT = 2048;
+
+    FieldItem get(int x, int y);
+
+    void put(int x, int y, FieldItem item);
+
+    void remove(int x, int y);
+
+    static BoardStorage forDimension(int n) {
+        if (n <= DENSE_LIMIT) {
+            return new DenseStorage(n);
         } else {
-            this.redClone = clone;
+            return new SparseStorage(n);
+        }
+    }
+}
+
+class DenseStorage implements BoardStorage {
+    private FieldItem[][] cells;
+
+    public DenseStorage(int n) {
+        this.cells = new FieldItem[n][n];
+    }
+
+    public FieldItem get(int x, int y) {
+        return this.cells[x][y];
+    }
+
+    public void put(int x, int y, FieldItem item) {
+        this.cells[x][y] = item;
+    }
+
+    public void remove(int x, int y) {
+        this.cells[x][y] = null;
+    }
+}
+
+/*SparseStorage is an open-addressing hash map with linear probing.
+* Cell (x, y) is encoded as primitive long key x*N + y, so no boxing happens
+* on lookups. Removal uses backward shift instead of tombstones, so long
+* matches with many moves do not degrade the table.*/
+class SparseStorage implements BoardStorage {
+    private static final long EMPTY = -1L;
+    private static final int INITIAL_CAPACITY = 64;
+    private long[] keys;
+    private FieldItem[] values;
+    private int size;
+    private int mask;
+    private long n;
+
+    public SparseStorage(int n) {
+        this.n = n;
+        this.allocate(INITIAL_CAPACITY);
+    }
+
+    public FieldItem get(int x, int y) {
+        long key = x * this.n + y;
+        int i = this.slot(key);
+        while (this.keys[i] != EMPTY) {
+            if (this.keys[i] == key) {
+                return this.values[i];
+            }
+            i = (i + 1) & this.mask;
+        }
+        return null;
+    }
+
+    public void put(int x, int y, FieldItem item) {
+        if (item == null) {
+            this.remove(x, y);
+            return;
+        }
+        long key = x * this.n + y;
+        int i = this.slot(key);
+        while (this.keys[i] != EMPTY) {
+            if (this.keys[i] == key) {
+                this.values[i] = item;
+                return;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = item;
+        this.size++;
+        //Table is kept at most half full to keep probe sequences short.
+        if (this.size * 2 > this.keys.length) {
+            this.rehash(this.keys.length * 2);
+        }
+    }
+
+    public void remove(int x, int y) {
+        long key = x * this.n + y;
+        int i = this.slot(key);
+        while (this.keys[i] != key) {
+            if (this.keys[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & this.mask;
+        }
+        //Shift following entries of the same probe chain back into the freed slot.
+        int gap = i;
+        int j = (i + 1) & this.mask;
+        while (this.keys[j] != EMPTY) {
+            int home = this.slot(this.keys[j]);
+            if (((j - home) & this.mask) >= ((j - gap) & this.mask)) {
+                this.keys[gap] = this.keys[j];
+                this.values[gap] = this.values[j];
+                gap = j;
+            }
+            j = (j + 1) & this.mask;
+        }
+        this.keys[gap] = EMPTY;
+        this.values[gap] = null;
+        this.size--;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & this.mask;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        Arrays.fill(this.keys, EMPTY);
+        this.values = new FieldItem[capacity];
+        this.mask = capacity - 1;
+        this.size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        FieldItem[] oldValues = this.values;
+        this.allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = this.slot(oldKeys[i]);
+                while (this.keys[j] != EMPTY) {
+                    j = (j + 1) & this.mask;
+                }
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+                this.size++;
+            }
         }
-        Board.getInstance().placeItem(clone.getX(), clone.getY(), clone);
-        System.out.println(curFig.getName() + " CLONED TO " + clone.getX() + " " + clone.getY());
+    }
+}
+
+//Coin store
+/*CoinStore keeps coins of a match column by column: coin with id i lies at
+* (xs[i], ys[i]) and is worth values[i], so loading millions of coins creates
+* no objects. Board slots map cells to coin ids (id + 1, 0 is an empty slot):
+* dense boards have a slot for every cell, sparse boards have an
+* open-addressing table of ids, where keys are not stored but compared
+* through xs and ys. Collected coins stay in columns and are only cleared
+* from onBoard. Coin objects are created as views, when a figure steps on a coin.
+* Stores of BitBoards also keep a bitboard of cells with coins on board.*/
+class CoinStore {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int PARTITION_BITS = 12;
+    private int n;
+    private boolean dense;
+    private int size;
+    private int[] xs;
+    private int[] ys;
+    private int[] values;
+    private BitSet onBoard;
+    private int[] slots;
+    private int mask;
+    private long[] cells;
+
+    public CoinStore(int n) {
+        this(n, false);
     }
 
-    public void changeStyle(String fig) throws InvalidActionException {
-        Figure curFig = this.findFigure(fig);
-        if (curFig.changeStyle()) {
-            System.out.println(curFig.getName() + " CHANGED STYLE TO ATTACKING");
+    CoinStore(int n, boolean bitboard) {
+        this.n = n;
+        this.dense = n <= BoardStorage.DENSE_LIMIT;
+        if (bitboard) {
+            this.cells = new long[BitBoard.words(n)];
+        }
+        this.xs = new int[INITIAL_CAPACITY];
+        this.ys = new int[INITIAL_CAPACITY];
+        this.values = new int[INITIAL_CAPACITY];
+        this.onBoard = new BitSet();
+        if (this.dense) {
+            this.slots = new int[n * n];
         } else {
-            System.out.println(curFig.getName() + " CHANGED STYLE TO NORMAL");
+            this.allocate(2 * INITIAL_CAPACITY);
+        }
+    }
+
+    /*Makes room for given number of coins at once, so loading does not regrow arrays.*/
+    public void ensureCapacity(int capacity) {
+        if (capacity > this.xs.length) {
+            this.xs = Arrays.copyOf(this.xs, capacity);
+            this.ys = Arrays.copyOf(this.ys, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
         }
+        //Table is kept at most half full to keep probe sequences short.
+        if (!this.dense && capacity * 2 > this.slots.length) {
+            this.rehash(Integer.highestOneBit(capacity * 2 - 1) << 1);
+        }
+    }
+
+    /*Puts a new coin on the board and returns its id. Coin that lay on the cell before is replaced.*/
+    public int add(int x, int y, int value) {
+        int id = this.append(x, y, value);
+        this.place(id);
+        return id;
     }
 
-    public void printWinner() {
-        if (this.greenScore > this.redScore) {
-            System.out.println("GREEN TEAM WINS. SCORE " + greenScore + " " + redScore);
-        } else if (this.greenScore < this.redScore) {
-            System.out.println("RED TEAM WINS. SCORE " + greenScore + " " + redScore);
+    /*Loads count coins in one go. Columns are filled first and board slots are
+    * built afterwards, which is much faster for big sparse boards (see rehash).*/
+    public void load(CommandReader in, int count) throws IOException {
+        this.ensureCapacity(this.size + count);
+        int first = this.size;
+        for (int i = 0; i < count; i++) {
+            this.append(in.readInt(), in.readInt(), in.readInt());
+        }
+        if (this.dense) {
+            for (int id = first; id < this.size; id++) {
+                this.place(id);
+            }
         } else {
-            System.out.println("TIE. SCORE " + greenScore + " " + redScore);
+            this.rehash(this.slots.length);
         }
     }
 
-    private Figure findFigure(String fig) throws InvalidActionException {
-        switch(fig) {
-            case "GREEN":
-                return this.green;
-            case "RED":
-                return this.red;
-            case "GREENCLONE":
-                if (this.greenClone != null) {
-                    return this.greenClone;
-                } else {
-                    throw new InvalidActionException();
-                }
-            case "REDCLONE":
-                if (this.redClone != null) {
-                    return this.redClone;
-                } else {
-                    throw new InvalidActionException();
-                }
-            default:
-                throw new InvalidActionException();
+    private int append(int x, int y, int value) {
+        if (this.size == this.xs.length) {
+            this.ensureCapacity(this.size * 2);
+        } else if (!this.dense && (this.size + 1) * 2 > this.slots.length) {
+            this.rehash(this.slots.length * 2);
         }
+        int id = this.size++;
+        this.xs[id] = x;
+        this.ys[id] = y;
+        this.values[id] = value;
+        this.onBoard.set(id);
+        if (this.cells != null) {
+            int cell = (x - 1) * this.n + y - 1;
+            this.cells[cell >>> 6] |= 1L << cell;
+        }
+        return id;
     }
 
-    private void increaseScore(Color color, int value) {
-        if (color == Color.GREEN) {
-            this.greenScore += value;
+    private void place(int id) {
+        int x = this.xs[id];
+        int y = this.ys[id];
+        if (this.dense) {
+            int cell = (x - 1) * this.n + y - 1;
+            if (this.slots[cell] != 0) {
+                this.onBoard.clear(this.slots[cell] - 1);
+            }
+            this.slots[cell] = id + 1;
         } else {
-            this.redScore += value;
+            this.insert(id);
         }
     }
-}
 
-//Board
-/*Class board represents NxN board used in game. I implemented singleton
-* in this class to ensure uniqueness of Board object. Board has methods
-* initialize(int n) to create single instance of class and
-* getInstance() to access this instance.*/
-class Board {
-    private FieldItem[][] board;
-    static private Board instance;
+    /*Returns id of the coin lying on cell (x, y), or -1 if there is none.*/
+    public int find(int x, int y) {
+        if (this.cells != null) {
+            int cell = (x - 1) * this.n + y - 1;
+            if ((this.cells[cell >>> 6] & (1L << cell)) == 0) {
+                return -1;
+            }
+        }
+        if (this.dense) {
+            int id = this.slots[(x - 1) * this.n + y - 1] - 1;
+            return id >= 0 && this.onBoard.get(id) ? id : -1;
+        }
+        int i = this.slot(x, y);
+        while (this.slots[i] != 0) {
+            int id = this.slots[i] - 1;
+            if (this.xs[id] == x && this.ys[id] == y && this.onBoard.get(id)) {
+                return id;
+            }
+            i = (i + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /*Coin is collected. Its slot is kept, lookups check onBoard anyway.*/
+    public void remove(int id) {
+        //Cell keeps at most one coin on board, so its bit is cleared together with the coin.
+        if (this.cells != null && this.onBoard.get(id)) {
+            int cell = (this.xs[id] - 1) * this.n + this.ys[id] - 1;
+            this.cells[cell >>> 6] &= ~(1L << cell);
+        }
+        this.onBoard.clear(id);
+    }
+
+    /*Puts a collected coin back on its cell.*/
+    void restore(int id) {
+        if (this.cells != null) {
+            int cell = (this.xs[id] - 1) * this.n + this.ys[id] - 1;
+            this.cells[cell >>> 6] |= 1L << cell;
+        }
+        this.onBoard.set(id);
+    }
+
+    /*Word of the coin bitboard, only for stores of BitBoards.*/
+    long getCellWord(int word) {
+        return this.cells[word];
+    }
+
+    public Coin view(int id) {
+        return this.view(id, new Coin(0, 0, 0));
+    }
 
-    private Board(int n) {
-        board = new FieldItem[n][n];
+    /*Fills given view with the coin instead of creating a new one.*/
+    Coin view(int id, Coin coin) {
+        coin.setX(this.xs[id]);
+        coin.setY(this.ys[id]);
+        coin.setValue(this.values[id]);
+        coin.setId(id);
+        return coin;
     }
 
-    static public void initialize(int n) {
-        if (instance == null) {
-            instance = new Board(n);
+    /*Takes all coins off the board and forgets them, arrays are kept for the next match.*/
+    void clear() {
+        if (this.dense) {
+            for (int id = 0; id < this.size; id++) {
+                this.slots[(this.xs[id] - 1) * this.n + this.ys[id] - 1] = 0;
+            }
+        } else {
+            Arrays.fill(this.slots, 0);
+        }
+        if (this.cells != null) {
+            Arrays.fill(this.cells, 0);
         }
+        this.onBoard.clear();
+        this.size = 0;
     }
 
-    static public Board getInstance() {
-        return instance;
+    public boolean isOnBoard(int id) {
+        return this.onBoard.get(id);
     }
 
-    public void placeItem(int x, int y, FieldItem item) {
-        this.board[x-1][y-1] = item;
+    /*Number of coins ever placed, including collected ones. Ids go from 0 to size - 1.*/
+    public int size() {
+        return this.size;
     }
 
-    public FieldItem getItemFromField(int x, int y) {
-        return this.board[x-1][y-1];
+    public int countOnBoard() {
+        return this.onBoard.cardinality();
     }
 
-    public void removeItem(int x, int y) {
-        this.board[x-1][y-1] = null;
+    public int getX(int id) {
+        return this.xs[id];
     }
 
-    public int getDimension() {
-        return this.board.length;
+    public int getY(int id) {
+        return this.ys[id];
+    }
+
+    public int getValue(int id) {
+        return this.values[id];
+    }
+
+    /*Slot of a coin with the same cell is reused, that coin is not on board anymore.*/
+    private void insert(int id) {
+        int x = this.xs[id];
+        int y = this.ys[id];
+        int i = this.slot(x, y);
+        while (this.slots[i] != 0) {
+            int other = this.slots[i] - 1;
+            if (this.xs[other] == x && this.ys[other] == y) {
+                this.onBoard.clear(other);
+                break;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.slots[i] = id + 1;
+    }
+
+    private int slot(int x, int y) {
+        long h = ((long) (x - 1) * this.n + y - 1) * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & this.mask;
+    }
+
+    private void allocate(int capacity) {
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /*Coins are inserted grouped by the top bits of their home slots, so the table
+    * is filled region by region instead of at random places all over it.*/
+    private void rehash(int capacity) {
+        this.allocate(capacity);
+        int shift = Math.max(0, Integer.numberOfTrailingZeros(capacity) - PARTITION_BITS);
+        int[] start = new int[(capacity >>> shift) + 1];
+        for (int id = 0; id < this.size; id++) {
+            start[(this.slot(this.xs[id], this.ys[id]) >>> shift) + 1]++;
+        }
+        for (int i = 1; i < start.length; i++) {
+            start[i] += start[i - 1];
+        }
+        int[] order = new int[this.size];
+        for (int id = 0; id < this.size; id++) {
+            order[start[this.slot(this.xs[id], this.ys[id]) >>> shift]++] = id;
+        }
+        for (int id : order) {
+            this.insert(id);
+        }
     }
 }
 
@@ -240,6 +5414,7 @@ abstract class FieldItem {
 
 class Coin extends FieldItem{
     private int value;
+    private int id;
 
     public Coin(int x, int y, int val) {
         super(x, y);
@@ -249,48 +5424,61 @@ class Coin extends FieldItem{
     public int getValue() {
         return value;
     }
+
+    void setValue(int value) {
+        this.value = value;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
 }
 
 /*Abstract class Figure represents features common for all figures.
 * Here I implemented pattern State (playing style).*/
 abstract class Figure extends FieldItem {
-    private Color color;
+    private int team;
     private PlayingStyle style;
     private int pointsCollectedForMove;
+    private FieldItem taken;
     private boolean isDead;
     protected String name;
+    protected byte[] nameBytes;
+    protected int slot;
 
 
-    public Figure(int x, int y, Color color) {
+    public Figure(int x, int y, int team, int slot, byte[] name) {
         super(x, y);
-        this.color = color;
+        this.team = team;
+        this.slot = slot;
+        this.nameBytes = name;
+        this.name = new String(name, StandardCharsets.US_ASCII);
         this.isDead = false;
-        this.style = new NormalStyle(this);
+        this.style = NormalStyle.INSTANCE;
         this.pointsCollectedForMove = 0;
     }
 
-    public String move(Direction direction) throws InvalidActionException {
+    public ActionStatus move(Board board, Direction direction) {
         if (isDead) {
-            throw new InvalidActionException();
+            return ActionStatus.DEAD_FIGURE;
         } else {
-            return this.style.move(direction);
+            return this.style.move(board, this, direction);
         }
     }
 
-    public boolean changeStyle() throws InvalidActionException{
+    public ActionStatus changeStyle() {
         if (this.isDead) {
-            throw new InvalidActionException();
-        }
-        if (this.style instanceof NormalStyle) {
-            this.style = new AttackingStyle(this);
-            return true;
-        } else {
-            this.style = new NormalStyle(this);
-            return false;
+            return ActionStatus.DEAD_FIGURE;
         }
+        this.style = this.style.next();
+        return ActionStatus.OK;
     }
 
-    public abstract ClonedFigure copy() throws InvalidActionException;
+    public abstract ActionStatus copy(Board board);
 
     public void kill(Figure victim) {
         victim.die();
@@ -300,18 +5488,56 @@ abstract class Figure extends FieldItem {
         this.isDead = true;
     }
 
-    public Color getColor() {
-        return this.color;
+    public int getTeam() {
+        return this.team;
     }
 
     public String getName() {
         return this.name;
     }
 
+    public byte[] getNameBytes() {
+        return this.nameBytes;
+    }
+
+    /*Slot of the figure in PlayingSystem.*/
+    public int getSlot() {
+        return this.slot;
+    }
+
     public boolean isDead() {
         return this.isDead;
     }
 
+    public boolean isAttacking() {
+        return this.style.isAttacking();
+    }
+
+    /*Sets state of a figure restored from a snapshot.*/
+    void restore(boolean dead, boolean attacking) {
+        this.isDead = dead;
+        if (attacking != this.style.isAttacking()) {
+            this.style = this.style.next();
+        }
+    }
+
+    /*Switches the figure to another pair of styles, keeping it attacking or normal.*/
+    void setStyles(NormalStyle normal) {
+        this.style = this.style.isAttacking() ? normal.next() : normal;
+    }
+
+    /*Brings the figure back to the start of a new match, so it can be reused.*/
+    void reset(int x, int y) {
+        this.setX(x);
+        this.setY(y);
+        this.isDead = false;
+        if (this.style.isAttacking()) {
+            this.style = this.style.next();
+        }
+        this.pointsCollectedForMove = 0;
+        this.taken = null;
+    }
+
     /*Before increasing team score, I temporarily store
      the value of coin collected by figure as a field inside of it.
      Here are getter and setter for this field.*/
@@ -322,186 +5548,223 @@ abstract class Figure extends FieldItem {
     public void setPointsAmount(int points) {
         this.pointsCollectedForMove = points;
     }
+
+    /*Same way the coin collected or figure killed by the last move is stored here.*/
+    public FieldItem getTaken() {
+        return this.taken;
+    }
+
+    public void setTaken(FieldItem taken) {
+        this.taken = taken;
+    }
 }
 
 class OriginalFigure extends Figure {
     private boolean wasCloned;
+    private int cloneSlot;
+    private byte[] cloneName;
+    private ClonedFigure clone;
 
-    public OriginalFigure(int x, int y, Color color) {
-        super(x, y, color);
+    /*Slot and name of the future clone are known in advance from FigureRegistry.*/
+    public OriginalFigure(int x, int y, int team, int slot, byte[] name, int cloneSlot, byte[] cloneName) {
+        super(x, y, team, slot, name);
+        this.wasCloned = false;
+        this.cloneSlot = cloneSlot;
+        this.cloneName = cloneName;
+    }
+
+    public boolean wasCloned() {
+        return this.wasCloned;
+    }
+
+    void setWasCloned(boolean wasCloned) {
+        this.wasCloned = wasCloned;
+    }
+
+    void reset(int x, int y) {
+        super.reset(x, y);
         this.wasCloned = false;
-        if (color == Color.GREEN) {
-            this.name = "GREEN";
-        } else {
-            this.name = "RED";
-        }
     }
 
-    public ClonedFigure copy() throws InvalidActionException {
-        if (this.isDead() || this.wasCloned || this.getX() == this.getY()) {
-            throw new InvalidActionException();
+    /*Clone created by successful copy is kept in the original, get it with getClone.*/
+    public ActionStatus copy(Board board) {
+        if (this.isDead()) {
+            return ActionStatus.DEAD_FIGURE;
+        } else if (this.wasCloned) {
+            return ActionStatus.ALREADY_CLONED;
+        } else if (this.getX() == this.getY()) {
+            return ActionStatus.CLONE_ON_DIAGONAL;
         } else {
-            Board board = Board.getInstance();
-            FieldItem fieldCloneTo = board.getItemFromField(this.getY(), this.getX());
-            if (fieldCloneTo != null) {
-                throw new InvalidActionException();
+            if (!board.isEmpty(this.getY(), this.getX())) {
+                return ActionStatus.CLONE_TARGET_OCCUPIED;
             } else {
-                ClonedFigure clone = new ClonedFigure(this.getY(), this.getX(), this.getColor());
+                //Clone object of a previous match played with this figure is reused.
+                if (this.clone == null) {
+                    this.clone = new ClonedFigure(this.getY(), this.getX(), this.getTeam(),
+                            this.cloneSlot, this.cloneName);
+                } else {
+                    this.clone.reset(this.getY(), this.getX());
+                }
                 this.wasCloned = true;
-                return clone;
+                return ActionStatus.OK;
             }
         }
     }
+
+    public ClonedFigure getClone() {
+        return this.clone;
+    }
 }
 
 class ClonedFigure extends Figure {
 
-    public ClonedFigure(int x, int y, Color color) {
-        super(x, y, color);
-        if (color == Color.GREEN) {
-            this.name = "GREENCLONE";
-        } else {
-            this.name = "REDCLONE";
-        }
+    public ClonedFigure(int x, int y, int team, int slot, byte[] name) {
+        super(x, y, team, slot, name);
     }
 
-    /*Call of copy method for a clone instantly throws an exception,
-    * as clones cannot be cloned.*/
-    public ClonedFigure copy() throws InvalidActionException {
-        throw new InvalidActionException();
+    /*Copy of a clone is always rejected, as clones cannot be cloned.*/
+    public ActionStatus copy(Board board) {
+        return ActionStatus.CLONE_OF_CLONE;
     }
 }
 
-//Colors
-enum Color {
-    RED,
-    GREEN;
-}
-
 //Direction
+/*Every direction knows its one-cell step along both axes.*/
 enum Direction {
-    UP,
-    DOWN,
-    LEFT,
-    RIGHT;
+    UP(-1, 0),
+    DOWN(1, 0),
+    LEFT(0, -1),
+    RIGHT(0, 1);
+
+    private final int dx;
+    private final int dy;
+
+    Direction(int dx, int dy) {
+        this.dx = dx;
+        this.dy = dy;
+    }
+
+    public int getDx() {
+        return this.dx;
+    }
+
+    public int getDy() {
+        return this.dy;
+    }
 }
 
 //Playing styles
-/*Both NormalStyle and AttackingStyle implement interface PlayingStyle
-* to make State implementation possible.*/
-interface PlayingStyle {
-    String move(Direction direction) throws InvalidActionException;
-
-    /*Logic for collecting coins and killing enemy figures is same for both playing styles.*/
-    default String collectOrKill(Figure fig, int newX, int newY) throws InvalidActionException {
-        FieldItem itemInField = Board.getInstance().getItemFromField(newX, newY);
-        if (itemInField instanceof Figure && fig.getColor() == ((Figure)itemInField).getColor()) {
-            throw new InvalidActionException();
-        }
-        if (itemInField == null) {
-            return "";
-        } else if (itemInField instanceof Coin) {
-            Coin coinInField = (Coin)itemInField;
-            int coinValue = coinInField.getValue();
-            fig.setPointsAmount(coinValue);
-            Board.getInstance().removeItem(coinInField.getX(), coinInField.getY());
-            return (" AND COLLECTED " + coinValue);
-        } else {
-            Figure figureInField = (Figure)itemInField;
-            fig.kill(figureInField);
-            Board.getInstance().removeItem(figureInField.getX(), figureInField.getY());
-            return (" AND KILLED " + figureInField.getName());
+/*PlayingStyle is the State of a figure. Styles keep no per-figure data, so
+* each style exists in a single shared instance (Flyweight) and receives the
+* figure as a parameter. NormalStyle and AttackingStyle differ only in length
+* of the step, so move logic is written once here with a precomputed step table
+* per style, and all methods are final to keep the call sites monomorphic.
+* Styles come in pairs of a normal and an attacking style, so a match can be
+* played with another attacking step (see NormalStyle.withAttackingStep).*/
+abstract class PlayingStyle {
+    private final int[] stepX;
+    private final int[] stepY;
+    private final int step;
+    private final boolean attacking;
+    private PlayingStyle partner;
+
+    protected PlayingStyle(int step, boolean attacking) {
+        Direction[] directions = Direction.values();
+        this.stepX = new int[directions.length];
+        this.stepY = new int[directions.length];
+        for (Direction direction : directions) {
+            this.stepX[direction.ordinal()] = direction.getDx() * step;
+            this.stepY[direction.ordinal()] = direction.getDy() * step;
         }
+        this.step = step;
+        this.attacking = attacking;
     }
-}
 
-class NormalStyle implements PlayingStyle {
-    private Figure fig;
+    protected final void pair(PlayingStyle partner) {
+        this.partner = partner;
+        partner.partner = this;
+    }
 
-    public NormalStyle(Figure fig) {
-        this.fig = fig;
+    /*Style that figure gets after the STYLE command.*/
+    public final PlayingStyle next() {
+        return this.partner;
     }
 
-    public String move(Direction direction) throws InvalidActionException {
-        int newX, newY;
-        Board board = Board.getInstance();
-        switch(direction) {
-            case UP:
-                newX = fig.getX() - 1;
-                newY = fig.getY();
-                break;
-            case DOWN:
-                newX = fig.getX() + 1;
-                newY = fig.getY();
-                break;
-            case LEFT:
-                newX = fig.getX();
-                newY = fig.getY() - 1;
-                break;
-            case RIGHT:
-                newX = fig.getX();
-                newY = fig.getY() + 1;
-                break;
-            default:
-                throw new InvalidActionException();
-        }
+    public final int getStep() {
+        return this.step;
+    }
+
+    public final boolean isAttacking() {
+        return this.attacking;
+    }
+
+    /*Coin collected or figure killed during the move (or null, if the new field
+    * was empty) is left in the figure, get it with getTaken.*/
+    public final ActionStatus move(Board board, Figure fig, Direction direction) {
+        int newX = fig.getX() + this.stepX[direction.ordinal()];
+        int newY = fig.getY() + this.stepY[direction.ordinal()];
 
         if (newX < 1 || newX > board.getDimension() ||
-            newY < 1 || newY > board.getDimension()) {
-            throw new InvalidActionException();
+                newY < 1 || newY > board.getDimension()) {
+            return ActionStatus.OUT_OF_BOUNDS;
         }
 
-        String extraMessage = collectOrKill(fig, newX, newY);
-        board.removeItem(fig.getX(), fig.getY());
+        ActionStatus status = collectOrKill(board, fig, newX, newY);
+        if (status != ActionStatus.OK) {
+            return status;
+        }
+        board.moveFigure(fig, newX, newY);
         fig.setX(newX);
         fig.setY(newY);
-        board.placeItem(fig.getX(), fig.getY(), fig);
-        return extraMessage;
+        return ActionStatus.OK;
+    }
+
+    /*Logic for collecting coins and killing enemy figures is same for both playing styles.
+    * Board tells what is on the new field, so no instanceof checks are needed here.*/
+    public final ActionStatus collectOrKill(Board board, Figure fig, int newX, int newY) {
+        switch (board.probe(newX, newY, fig.getTeam())) {
+            case Board.FRIEND:
+                return ActionStatus.SAME_TEAM;
+            case Board.COIN:
+                Coin coinInField = board.collectCoin(newX, newY);
+                fig.setTaken(coinInField);
+                fig.setPointsAmount(coinInField.getValue());
+                return ActionStatus.OK;
+            case Board.ENEMY:
+                Figure figureInField = board.takeFigure(newX, newY);
+                fig.setTaken(figureInField);
+                fig.kill(figureInField);
+                return ActionStatus.OK;
+            default:
+                fig.setTaken(null);
+                return ActionStatus.OK;
+        }
     }
 }
 
-class AttackingStyle implements PlayingStyle {
-    private Figure fig;
+/*Normal style keeps its attacking partner. Pairs are cached by the attacking
+* step, so every step still has a single shared pair of styles.*/
+final class NormalStyle extends PlayingStyle {
+    private static final Map<Integer, NormalStyle> PAIRS = new HashMap<>();
+    static final NormalStyle INSTANCE = withAttackingStep(AttackingStyle.DEFAULT_STEP);
 
-    public AttackingStyle(Figure fig) {
-        this.fig = fig;
+    private NormalStyle(int attackingStep) {
+        super(1, false);
+        this.pair(new AttackingStyle(attackingStep));
     }
 
-    @Override
-    public String move(Direction direction) throws InvalidActionException {
-        Board board = Board.getInstance();
-        int newX, newY;
-        switch(direction) {
-            case UP:
-                newX = fig.getX() - 2;
-                newY = fig.getY();
-                break;
-            case DOWN:
-                newX = fig.getX() + 2;
-                newY = fig.getY();
-                break;
-            case LEFT:
-                newX = fig.getX();
-                newY = fig.getY() - 2;
-                break;
-            case RIGHT:
-                newX = fig.getX();
-                newY = fig.getY() + 2;
-                break;
-            default:
-                throw new InvalidActionException();
+    static synchronized NormalStyle withAttackingStep(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("Attacking step must be positive: " + step);
         }
+        return PAIRS.computeIfAbsent(step, NormalStyle::new);
+    }
+}
 
-        if (newX < 1 || newX > board.getDimension() ||
-                newY < 1 || newY > board.getDimension()) {
-            throw new InvalidActionException();
-        }
+final class AttackingStyle extends PlayingStyle {
+    static final int DEFAULT_STEP = 2;
 
-        String extraMessage = collectOrKill(fig, newX, newY);
-        board.removeItem(fig.getX(), fig.getY());
-        fig.setX(newX);
-        fig.setY(newY);
-        board.placeItem(fig.getX(), fig.getY(), fig);
-        return extraMessage;
+    AttackingStyle(int step) {
+        super(step, true);
     }
-}
\ No newline at end of file
+}
@@ -1,43 +1,99 @@
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Main class of the program.
- * Constants introduced here represent number of devices in system and initial attribute values of some device types.
+ * Constants introduced here represent default number of devices of each type in system
+ * and initial attribute values of some device types.
  */
 public class SmartHomeManagementSystem {
 
-    static final int NUM_OF_DEVICES = 10;
+    static final int NUM_OF_LIGHTS = 4;
+    static final int NUM_OF_CAMERAS = 2;
+    static final int NUM_OF_HEATERS = 4;
     static final int INIT_ANGLE = 45;
     static final int INIT_TEMP = 20;
+    private static final int THREE_COUNTS = 3;
 
     /**
-     * main method. Here I declare an array of all presented smart devices and initialize them with initial parameters.
-     * Indexes of devices in array represent their IDs.
-     * Also, here the commands are scanned and submitted for processing.
-     * @param args default main parameter.
+     * main method. Here I register all presented smart devices with initial parameters.
+     * Devices get consecutive IDs: lights first, then cameras, then heaters.
+     * Also, here the commands are read and submitted for processing.
+     * @param args optional "--columnar" to keep device attributes in DeviceStore,
+     *             optional numbers of lights, cameras and heaters (4, 2 and 4 by default),
+     *             or "--scaling" followed by arguments of ScalingReport.
+     * @throws IOException if commands cannot be read.
+     * @throws InterruptedException if scaling report is interrupted.
      */
-    public static void main(String[] args) {
-        SmartDevice[] devices = new SmartDevice[NUM_OF_DEVICES];
-        for (int i = CommandManager.MIN_LIGHT_ID; i <= CommandManager.MAX_LIGHT_ID; i++) {
-            devices[i] = new Light(SmartDevice.Status.ON, false, Light.BrightnessLevel.LOW, Light.LightColor.YELLOW);
-            devices[i].setDeviceId(i);
-        }
-        for (int i = CommandManager.MIN_CAMERA_ID; i <= CommandManager.MAX_CAMERA_ID; i++) {
-            devices[i] = new Camera(SmartDevice.Status.ON, false, false, INIT_ANGLE);
-            devices[i].setDeviceId(i);
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("--scaling")) {
+            ScalingReport.run(args);
+            return;
         }
-        for (int i = CommandManager.MIN_HEATER_ID; i <= CommandManager.MAX_HEATER_ID; i++) {
-            devices[i] = new Heater(SmartDevice.Status.ON, INIT_TEMP);
-            devices[i].setDeviceId(i);
+        boolean columnar = args.length > 0 && args[0].equals("--columnar");
+        if (columnar) {
+            args = Arrays.copyOfRange(args, 1, args.length);
         }
+        int lights = args.length == THREE_COUNTS ? Integer.parseInt(args[0]) : NUM_OF_LIGHTS;
+        int cameras = args.length == THREE_COUNTS ? Integer.parseInt(args[1]) : NUM_OF_CAMERAS;
+        int heaters = args.length == THREE_COUNTS ? Integer.parseInt(args[2]) : NUM_OF_HEATERS;
+        DeviceRegistry devices = createDevices(lights, cameras, heaters, columnar);
 
-        String command = "";
         CommandManager manager = new CommandManager();
-        Scanner sc = new Scanner(System.in);
-        while (!command.equals("end")) {
-            command = sc.nextLine();
-            manager.detectCommand(command, devices);
+        manager.processInput(Channels.newChannel(System.in), devices);
+    }
+
+    /**
+     * Method that registers given numbers of devices with initial parameters under consecutive IDs starting from 0.
+     * @param lights number of lights.
+     * @param cameras number of cameras.
+     * @param heaters number of heaters.
+     * @return registry of created devices.
+     */
+    public static DeviceRegistry createDevices(int lights, int cameras, int heaters) {
+        return createDevices(lights, cameras, heaters, false);
+    }
+
+    /**
+     * Method that registers given numbers of devices with initial parameters under consecutive IDs starting from 0.
+     * @param lights number of lights.
+     * @param cameras number of cameras.
+     * @param heaters number of heaters.
+     * @param columnar true, if device attributes are kept in DeviceStore of the registry.
+     * @return registry of created devices.
+     */
+    public static DeviceRegistry createDevices(int lights, int cameras, int heaters, boolean columnar) {
+        DeviceRegistry devices = new DeviceRegistry(columnar);
+        int id = 0;
+        for (int i = 0; i < lights; i++, id++) {
+            SmartDevice light = new SimpleLight(SmartDevice.Status.ON, false, Light.BrightnessLevel.LOW, Light.LightColor.YELLOW);
+            light.setDeviceId(id);
+            devices.register(light);
+        }
+        for (int i = 0; i < cameras; i++, id++) {
+            SmartDevice camera = new SimpleCamera(SmartDevice.Status.ON, false, false, INIT_ANGLE);
+            camera.setDeviceId(id);
+            devices.register(camera);
+        }
+        for (int i = 0; i < heaters; i++, id++) {
+            SmartDevice heater = new SimpleHeater(SmartDevice.Status.ON, INIT_TEMP);
+            heater.setDeviceId(id);
+            devices.register(heater);
         }
+        return devices;
     }
 }
 
@@ -45,9 +101,10 @@ public class SmartHomeManagementSystem {
 /**
  * Abstract class SmartDevice represents common features of smart devices from the task.
  * This class implements methods of interface Controllable.
+ * Every device type has two kinds of devices: simple devices keep their attributes in their own fields,
+ * views keep only their slot in a DeviceStore, where their attributes are kept in columns.
  */
 abstract class SmartDevice implements Controllable {
-    private Status status;
     private int deviceId;
     private static int numberOfDevices;
 
@@ -59,15 +116,21 @@ abstract class SmartDevice implements Controllable {
         ON;
     }
 
+    public abstract String displayStatus();
+
     /**
-     * Constructor for SmartDevice class.
-     * @param status on/off status of device.
+     * Getter for type of device.
+     * @return type of smart device.
      */
-    public SmartDevice(Status status) {
-        this.status = status;
-    }
+    public abstract DeviceType getType();
 
-    public abstract String displayStatus();
+    /**
+     * Method that copies attributes of device into the slot of the store.
+     * @param store store of device attributes.
+     * @param slot slot of device in the store.
+     * @return view of the slot with ID of this device.
+     */
+    public abstract SmartDevice copyTo(DeviceStore store, int slot);
 
     /**
      * Getter for DeviceID.
@@ -91,16 +154,14 @@ abstract class SmartDevice implements Controllable {
      * @return on/off status of smart device.
      */
     public Status getStatus() {
-        return status;
+        return this.isOn() ? Status.ON : Status.OFF;
     }
 
     /**
      * Setter for status.
      * @param status on/off status of smart device.
      */
-    public void setStatus(Status status) {
-        this.status = status;
-    }
+    public abstract void setStatus(Status status);
 
     /**
      * Method checks current on/off status of device, and set it to off, if it is currently on.
@@ -126,15 +187,6 @@ abstract class SmartDevice implements Controllable {
         return false;
     }
 
-    /**
-     * Method checks, if device is currently on.
-     * @return true, if device is currently on; false, if it is off.
-     */
-    @Override
-    public boolean isOn() {
-        return status == Status.ON;
-    }
-
     /**
      * Method checks, if device's attribute can be changed.
      * All attribute setting methods of class CommandManager
@@ -152,35 +204,41 @@ abstract class SmartDevice implements Controllable {
  * Class Camera represents common features of remote control cameras from the task.
  * This class inherits from abstract class SmartDevice,
  * and implements methods of interface Chargeable.
+ * Attributes are kept by SimpleCamera or CameraView.
  */
-class Camera extends SmartDevice implements Chargeable {
-    private boolean charging;
-    private boolean recording;
-    private int angle;
+abstract class Camera extends SmartDevice implements Chargeable {
     static final int MAX_CAMERA_ANGLE = 60;
     static final int MIN_CAMERA_ANGLE = -60;
 
     /**
-     * Constructor for class Camera.
-     * @param status on/off status of camera.
-     * @param charging charging status of camera (charging or not).
-     * @param recording recording status of camera (recording or not).
+     * Getter for angle.
+     * @return angle of camera.
+     */
+    public abstract int getAngle();
+
+    /**
+     * Setter for angle, that does not check its range.
      * @param angle angle of camera.
      */
-    public Camera(Status status, boolean charging, boolean recording, int angle) {
-        super(status);
-        this.charging = charging;
-        this.recording = recording;
-        this.angle = angle;
-    }
+    protected abstract void storeAngle(int angle);
 
     /**
-     * Getter for angle.
-     * @return angle of camera.
+     * Method checks current recording status of camera.
+     * @return true, if recording status of camera is true; false, if it is false.
      */
-    public int getAngle() {
-        return angle;
-    }
+    public abstract boolean isRecording();
+
+    /**
+     * Setter for recording status.
+     * @param recording recording status of camera.
+     */
+    protected abstract void setRecording(boolean recording);
+
+    /**
+     * Setter for charging status.
+     * @param charging charging status of camera.
+     */
+    protected abstract void setCharging(boolean charging);
 
     /**
      * Setter for angle.
@@ -190,7 +248,7 @@ class Camera extends SmartDevice implements Chargeable {
      */
     public boolean setCameraAngle(int angle) {
         if (MIN_CAMERA_ANGLE <= angle && angle <= MAX_CAMERA_ANGLE) {
-            this.angle = angle;
+            this.storeAngle(angle);
             return true;
         }
         return false;
@@ -201,8 +259,8 @@ class Camera extends SmartDevice implements Chargeable {
      * @return true, if recording status of camera was false; false, if it was true.
      */
     public boolean startRecording() {
-        if (!recording) {
-            recording = true; return true;
+        if (!this.isRecording()) {
+            this.setRecording(true); return true;
         }
         return false;
     }
@@ -212,37 +270,20 @@ class Camera extends SmartDevice implements Chargeable {
      * @return true, if recording status of camera was true; false, if it was false.
      */
     public boolean stopRecording() {
-        if (recording) {
-            recording = false; return true;
+        if (this.isRecording()) {
+            this.setRecording(false); return true;
         }
         return false;
     }
 
-    /**
-     * Method checks current recording status of camera.
-     * @return true, if recording status of camera is true; false, if it is false.
-     */
-    public boolean isRecording() {
-        return recording;
-    }
-
-    /**
-     * Method checks current charging status of camera.
-     * @return true, if charging status of camera is true; false, if it is false.
-     */
-    @Override
-    public boolean isCharging() {
-        return charging;
-    }
-
     /**
      * Method checks current charging status of camera, and set it to true, if it is currently false.
      * @return true, if charging status of camera was false; false, if it was true.
      */
     @Override
     public boolean startCharging() {
-        if (!charging) {
-            charging = true; return true;
+        if (!this.isCharging()) {
+            this.setCharging(true); return true;
         }
         return false;
     }
@@ -253,12 +294,38 @@ class Camera extends SmartDevice implements Chargeable {
      */
     @Override
     public boolean stopCharging() {
-        if (charging) {
-            charging = false; return true;
+        if (this.isCharging()) {
+            this.setCharging(false); return true;
         }
         return false;
     }
 
+    /**
+     * Method that copies attributes of camera into the slot of the store.
+     * @param store store of device attributes.
+     * @param slot slot of camera in the store.
+     * @return view of the slot with ID of this camera.
+     */
+    @Override
+    public SmartDevice copyTo(DeviceStore store, int slot) {
+        store.setFlag(DeviceStore.ON, slot, this.isOn());
+        store.setFlag(DeviceStore.CHARGING, slot, this.isCharging());
+        store.setFlag(DeviceStore.RECORDING, slot, this.isRecording());
+        store.setAngle(slot, this.getAngle());
+        SmartDevice view = new CameraView(store, slot);
+        view.setDeviceId(this.getDeviceId());
+        return view;
+    }
+
+    /**
+     * Getter for type of camera.
+     * @return DeviceType.CAMERA.
+     */
+    @Override
+    public DeviceType getType() {
+        return DeviceType.CAMERA;
+    }
+
     /**
      * Method that takes current camera's attributes and display them as one string.
      * @return string that contains camera's current ID, on/off status, angle, charging status, and recording status.
@@ -275,690 +342,3401 @@ class Camera extends SmartDevice implements Chargeable {
 
 
 /**
- * Class Heater represents common features of remote control heaters form the task.
- * This class inherits from abstract class SmartDevice.
+ * Class SimpleCamera is a camera that keeps its attributes in its own fields.
  */
-class Heater extends SmartDevice {
-    private int temperature;
-    static final int MAX_HEATER_TEMP = 30;
-    static final int MIN_HEATER_TEMP = 15;
+class SimpleCamera extends Camera {
+    private Status status;
+    private boolean charging;
+    private boolean recording;
+    private int angle;
 
     /**
-     * Constructor for class Heater.
-     * @param status on/off status of heater.
-     * @param temperature temperature of heater.
+     * Constructor for class SimpleCamera.
+     * @param status on/off status of camera.
+     * @param charging charging status of camera (charging or not).
+     * @param recording recording status of camera (recording or not).
+     * @param angle angle of camera.
      */
-    public Heater(Status status, int temperature) {
-        super(status);
-        this.temperature = temperature;
+    public SimpleCamera(Status status, boolean charging, boolean recording, int angle) {
+        this.status = status;
+        this.charging = charging;
+        this.recording = recording;
+        this.angle = angle;
     }
 
     /**
-     * Getter for temperature.
-     * @return current temperature of heater.
+     * Method checks, if camera is currently on.
+     * @return true, if camera is currently on; false, if it is off.
      */
-    public int getTemperature() {
-        return temperature;
+    @Override
+    public boolean isOn() {
+        return status == Status.ON;
     }
 
     /**
-     * Setter for temperature of heater.
-     * @param temperature temperature to be set for heater
-     * @return true, if temperature is within permitted range and can be set as current temperature;
-     * false, if its value is restricted.
+     * Setter for status.
+     * @param status on/off status of camera.
      */
-    public boolean setTemperature(int temperature) {
-        if (MIN_HEATER_TEMP <= temperature && temperature <= MAX_HEATER_TEMP) {
-            this.temperature = temperature;
-            return true;
-        }
-        return false;
+    @Override
+    public void setStatus(Status status) {
+        this.status = status;
     }
 
     /**
-     * Method that takes current heater's attributes and display them as one string.
-     * @return string that contains heater's current ID, on/off status, and temperature.
+     * Getter for angle.
+     * @return angle of camera.
      */
     @Override
-    public String displayStatus() {
-        return "Heater " + this.getDeviceId() + " is "
-                + this.getStatus() + " and the temperature is "
-                + this.getTemperature() + ".";
+    public int getAngle() {
+        return angle;
     }
-}
 
+    /**
+     * Setter for angle, that does not check its range.
+     * @param angle angle of camera.
+     */
+    @Override
+    protected void storeAngle(int angle) {
+        this.angle = angle;
+    }
 
-/**
- * Class Light represents common features of remote control lights form the task.
- * This class inherits from abstract class SmartDevice,
- * and implements methods of interface Chargeable.
- */
-class Light extends SmartDevice implements Chargeable {
-    private boolean charging;
-    private BrightnessLevel brightnessLevel;
-    private LightColor lightColor;
+    /**
+     * Method checks current recording status of camera.
+     * @return true, if recording status of camera is true; false, if it is false.
+     */
+    @Override
+    public boolean isRecording() {
+        return recording;
+    }
 
     /**
-     * Enumeration LightColor represents color that can be emitted by lights (either white or yellow).
+     * Setter for recording status.
+     * @param recording recording status of camera.
      */
-    enum LightColor {
-        WHITE,
-        YELLOW;
+    @Override
+    protected void setRecording(boolean recording) {
+        this.recording = recording;
     }
 
     /**
-     * Enumeration BrightnessLevel represents brightness of light emitted by lights (either low, medium or high).
+     * Method checks current charging status of camera.
+     * @return true, if charging status of camera is true; false, if it is false.
      */
-    enum BrightnessLevel {
-        HIGH,
-        MEDIUM,
-        LOW;
+    @Override
+    public boolean isCharging() {
+        return charging;
     }
 
     /**
-     * Constructor for class Light.
-     * @param status on/off status of light.
-     * @param charging charging status of light (charging or not).
-     * @param brightnessLevel brightness level of light.
-     * @param lightColor color of light.
+     * Setter for charging status.
+     * @param charging charging status of camera.
      */
-    public Light(Status status, boolean charging, BrightnessLevel brightnessLevel, LightColor lightColor) {
-        super(status);
+    @Override
+    protected void setCharging(boolean charging) {
         this.charging = charging;
-        this.brightnessLevel = brightnessLevel;
-        this.lightColor = lightColor;
     }
+}
+
+
+/**
+ * Class CameraView is a camera whose attributes are kept in columns of DeviceStore.
+ * It keeps only its slot and the store.
+ */
+class CameraView extends Camera {
+    private final DeviceStore store;
+    private final int slot;
 
     /**
-     * Getter for lightColor.
-     * @return current color of light.
+     * Constructor for class CameraView.
+     * @param store store of device attributes.
+     * @param slot slot of camera in the store.
      */
-    public LightColor getLightColor() {
-        return lightColor;
+    public CameraView(DeviceStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
+    }
+
+    /**
+     * Method checks, if camera is currently on.
+     * @return true, if camera is currently on; false, if it is off.
+     */
+    @Override
+    public boolean isOn() {
+        return store.getFlag(DeviceStore.ON, slot);
     }
+
     /**
-     * Setter for lightColor.
-     * @param lightColor color of light to be set.
+     * Setter for status.
+     * @param status on/off status of camera.
      */
-    public void setLightColor(LightColor lightColor) {
-        this.lightColor = lightColor;
+    @Override
+    public void setStatus(Status status) {
+        store.setFlag(DeviceStore.ON, slot, status == Status.ON);
     }
 
     /**
-     * Getter for brightnessLevel.
-     * @return current brightness level of light.
+     * Getter for angle.
+     * @return angle of camera.
      */
-    public BrightnessLevel getBrightnessLevel() {
-        return brightnessLevel;
+    @Override
+    public int getAngle() {
+        return store.getAngle(slot);
     }
 
     /**
-     * Setter for brightnessLevel.
-     * @param brightnessLevel brightness level of light to be set.
+     * Setter for angle, that does not check its range.
+     * @param angle angle of camera.
      */
-    public void setBrightnessLevel(BrightnessLevel brightnessLevel) {
-        this.brightnessLevel = brightnessLevel;
+    @Override
+    protected void storeAngle(int angle) {
+        store.setAngle(slot, angle);
     }
 
     /**
-     * Method checks current charging status of light.
-     * @return true, if charging status of light is true; false, if it is false.
+     * Method checks current recording status of camera.
+     * @return true, if recording status of camera is true; false, if it is false.
      */
     @Override
-    public boolean isCharging() {
-        return charging;
+    public boolean isRecording() {
+        return store.getFlag(DeviceStore.RECORDING, slot);
     }
 
     /**
-     * Method checks current charging status of light, and set it to true, if it is currently false.
-     * @return true, if charging status of light was false; false, if it was true.
+     * Setter for recording status.
+     * @param recording recording status of camera.
      */
     @Override
-    public boolean startCharging() {
-        if (!charging) {
-            charging = true; return true;
-        } else {
-            return false;
-        }
+    protected void setRecording(boolean recording) {
+        store.setFlag(DeviceStore.RECORDING, slot, recording);
     }
 
     /**
-     * Method checks current charging status of light, and set it to false, if it is currently true.
-     * @return true, if charging status of light was true; false, if it was false.
+     * Method checks current charging status of camera.
+     * @return true, if charging status of camera is true; false, if it is false.
      */
     @Override
-    public boolean stopCharging() {
-        if (charging) {
-            charging = false; return true;
-        } else {
-            return false;
-        }
+    public boolean isCharging() {
+        return store.getFlag(DeviceStore.CHARGING, slot);
     }
 
     /**
-     * Method that takes current light's attributes and display them as one string.
-     * @return string that contains light's current ID, on/off status, color, charging status, and brightness level.
+     * Setter for charging status.
+     * @param charging charging status of camera.
      */
     @Override
-    public String displayStatus() {
-        return "Light " + this.getDeviceId() + " is "
-                + this.getStatus() + ", the color is "
-                + this.getLightColor() + ", the charging status is "
-                + this.isCharging() + ", and the brightness level is "
-                + this.getBrightnessLevel() + ".";
+    protected void setCharging(boolean charging) {
+        store.setFlag(DeviceStore.CHARGING, slot, charging);
     }
 }
 
 
 /**
- * Interface Chargeable represents common behaviour features of chargeable devices from the task.
+ * Class Heater represents common features of remote control heaters form the task.
+ * This class inherits from abstract class SmartDevice.
+ * Attributes are kept by SimpleHeater or HeaterView.
  */
-interface Chargeable {
-    boolean isCharging();
-    boolean startCharging();
+abstract class Heater extends SmartDevice {
+    static final int MAX_HEATER_TEMP = 30;
+    static final int MIN_HEATER_TEMP = 15;
+
+    /**
+     * Getter for temperature.
+     * @return current temperature of heater.
+     */
+    public abstract int getTemperature();
+
+    /**
+     * Setter for temperature, that does not check its range.
+     * @param temperature temperature of heater.
+     */
+    protected abstract void storeTemperature(int temperature);
+
+    /**
+     * Setter for temperature of heater.
+     * @param temperature temperature to be set for heater
+     * @return true, if temperature is within permitted range and can be set as current temperature;
+     * false, if its value is restricted.
+     */
+    public boolean setTemperature(int temperature) {
+        if (MIN_HEATER_TEMP <= temperature && temperature <= MAX_HEATER_TEMP) {
+            this.storeTemperature(temperature);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Method that copies attributes of heater into the slot of the store.
+     * @param store store of device attributes.
+     * @param slot slot of heater in the store.
+     * @return view of the slot with ID of this heater.
+     */
+    @Override
+    public SmartDevice copyTo(DeviceStore store, int slot) {
+        store.setFlag(DeviceStore.ON, slot, this.isOn());
+        store.setTemperature(slot, this.getTemperature());
+        SmartDevice view = new HeaterView(store, slot);
+        view.setDeviceId(this.getDeviceId());
+        return view;
+    }
+
+    /**
+     * Getter for type of heater.
+     * @return DeviceType.HEATER.
+     */
+    @Override
+    public DeviceType getType() {
+        return DeviceType.HEATER;
+    }
+
+    /**
+     * Method that takes current heater's attributes and display them as one string.
+     * @return string that contains heater's current ID, on/off status, and temperature.
+     */
+    @Override
+    public String displayStatus() {
+        return "Heater " + this.getDeviceId() + " is "
+                + this.getStatus() + " and the temperature is "
+                + this.getTemperature() + ".";
+    }
+}
+
+
+/**
+ * Class SimpleHeater is a heater that keeps its attributes in its own fields.
+ */
+class SimpleHeater extends Heater {
+    private Status status;
+    private int temperature;
+
+    /**
+     * Constructor for class SimpleHeater.
+     * @param status on/off status of heater.
+     * @param temperature temperature of heater.
+     */
+    public SimpleHeater(Status status, int temperature) {
+        this.status = status;
+        this.temperature = temperature;
+    }
+
+    /**
+     * Method checks, if heater is currently on.
+     * @return true, if heater is currently on; false, if it is off.
+     */
+    @Override
+    public boolean isOn() {
+        return status == Status.ON;
+    }
+
+    /**
+     * Setter for status.
+     * @param status on/off status of heater.
+     */
+    @Override
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    /**
+     * Getter for temperature.
+     * @return current temperature of heater.
+     */
+    @Override
+    public int getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * Setter for temperature, that does not check its range.
+     * @param temperature temperature of heater.
+     */
+    @Override
+    protected void storeTemperature(int temperature) {
+        this.temperature = temperature;
+    }
+}
+
+
+/**
+ * Class HeaterView is a heater whose attributes are kept in columns of DeviceStore.
+ * It keeps only its slot and the store.
+ */
+class HeaterView extends Heater {
+    private final DeviceStore store;
+    private final int slot;
+
+    /**
+     * Constructor for class HeaterView.
+     * @param store store of device attributes.
+     * @param slot slot of heater in the store.
+     */
+    public HeaterView(DeviceStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
+    }
+
+    /**
+     * Method checks, if heater is currently on.
+     * @return true, if heater is currently on; false, if it is off.
+     */
+    @Override
+    public boolean isOn() {
+        return store.getFlag(DeviceStore.ON, slot);
+    }
+
+    /**
+     * Setter for status.
+     * @param status on/off status of heater.
+     */
+    @Override
+    public void setStatus(Status status) {
+        store.setFlag(DeviceStore.ON, slot, status == Status.ON);
+    }
+
+    /**
+     * Getter for temperature.
+     * @return current temperature of heater.
+     */
+    @Override
+    public int getTemperature() {
+        return store.getTemperature(slot);
+    }
+
+    /**
+     * Setter for temperature, that does not check its range.
+     * @param temperature temperature of heater.
+     */
+    @Override
+    protected void storeTemperature(int temperature) {
+        store.setTemperature(slot, temperature);
+    }
+}
+
+
+/**
+ * Class Light represents common features of remote control lights form the task.
+ * This class inherits from abstract class SmartDevice,
+ * and implements methods of interface Chargeable.
+ * Attributes are kept by SimpleLight or LightView.
+ */
+abstract class Light extends SmartDevice implements Chargeable {
+
+    /**
+     * Enumeration LightColor represents color that can be emitted by lights (either white or yellow).
+     */
+    enum LightColor {
+        WHITE,
+        YELLOW;
+    }
+
+    /**
+     * Enumeration BrightnessLevel represents brightness of light emitted by lights (either low, medium or high).
+     */
+    enum BrightnessLevel {
+        HIGH,
+        MEDIUM,
+        LOW;
+    }
+
+    /**
+     * Getter for lightColor.
+     * @return current color of light.
+     */
+    public abstract LightColor getLightColor();
+
+    /**
+     * Setter for lightColor.
+     * @param lightColor color of light to be set.
+     */
+    public abstract void setLightColor(LightColor lightColor);
+
+    /**
+     * Getter for brightnessLevel.
+     * @return current brightness level of light.
+     */
+    public abstract BrightnessLevel getBrightnessLevel();
+
+    /**
+     * Setter for brightnessLevel.
+     * @param brightnessLevel brightness level of light to be set.
+     */
+    public abstract void setBrightnessLevel(BrightnessLevel brightnessLevel);
+
+    /**
+     * Setter for charging status.
+     * @param charging charging status of light.
+     */
+    protected abstract void setCharging(boolean charging);
+
+    /**
+     * Method checks current charging status of light, and set it to true, if it is currently false.
+     * @return true, if charging status of light was false; false, if it was true.
+     */
+    @Override
+    public boolean startCharging() {
+        if (!this.isCharging()) {
+            this.setCharging(true); return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Method checks current charging status of light, and set it to false, if it is currently true.
+     * @return true, if charging status of light was true; false, if it was false.
+     */
+    @Override
+    public boolean stopCharging() {
+        if (this.isCharging()) {
+            this.setCharging(false); return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Method that copies attributes of light into the slot of the store.
+     * @param store store of device attributes.
+     * @param slot slot of light in the store.
+     * @return view of the slot with ID of this light.
+     */
+    @Override
+    public SmartDevice copyTo(DeviceStore store, int slot) {
+        store.setFlag(DeviceStore.ON, slot, this.isOn());
+        store.setFlag(DeviceStore.CHARGING, slot, this.isCharging());
+        store.setBrightness(slot, (byte) this.getBrightnessLevel().ordinal());
+        store.setColor(slot, (byte) this.getLightColor().ordinal());
+        SmartDevice view = new LightView(store, slot);
+        view.setDeviceId(this.getDeviceId());
+        return view;
+    }
+
+    /**
+     * Getter for type of light.
+     * @return DeviceType.LIGHT.
+     */
+    @Override
+    public DeviceType getType() {
+        return DeviceType.LIGHT;
+    }
+
+    /**
+     * Method that takes current light's attributes and display them as one string.
+     * @return string that contains light's current ID, on/off status, color, charging status, and brightness level.
+     */
+    @Override
+    public String displayStatus() {
+        return "Light " + this.getDeviceId() + " is "
+                + this.getStatus() + ", the color is "
+                + this.getLightColor() + ", the charging status is "
+                + this.isCharging() + ", and the brightness level is "
+                + this.getBrightnessLevel() + ".";
+    }
+}
+
+
+/**
+ * Class SimpleLight is a light that keeps its attributes in its own fields.
+ */
+class SimpleLight extends Light {
+    private Status status;
+    private boolean charging;
+    private BrightnessLevel brightnessLevel;
+    private LightColor lightColor;
+
+    /**
+     * Constructor for class SimpleLight.
+     * @param status on/off status of light.
+     * @param charging charging status of light (charging or not).
+     * @param brightnessLevel brightness level of light.
+     * @param lightColor color of light.
+     */
+    public SimpleLight(Status status, boolean charging, BrightnessLevel brightnessLevel, LightColor lightColor) {
+        this.status = status;
+        this.charging = charging;
+        this.brightnessLevel = brightnessLevel;
+        this.lightColor = lightColor;
+    }
+
+    /**
+     * Method checks, if light is currently on.
+     * @return true, if light is currently on; false, if it is off.
+     */
+    @Override
+    public boolean isOn() {
+        return status == Status.ON;
+    }
+
+    /**
+     * Setter for status.
+     * @param status on/off status of light.
+     */
+    @Override
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    /**
+     * Getter for lightColor.
+     * @return current color of light.
+     */
+    @Override
+    public LightColor getLightColor() {
+        return lightColor;
+    }
+
+    /**
+     * Setter for lightColor.
+     * @param lightColor color of light to be set.
+     */
+    @Override
+    public void setLightColor(LightColor lightColor) {
+        this.lightColor = lightColor;
+    }
+
+    /**
+     * Getter for brightnessLevel.
+     * @return current brightness level of light.
+     */
+    @Override
+    public BrightnessLevel getBrightnessLevel() {
+        return brightnessLevel;
+    }
+
+    /**
+     * Setter for brightnessLevel.
+     * @param brightnessLevel brightness level of light to be set.
+     */
+    @Override
+    public void setBrightnessLevel(BrightnessLevel brightnessLevel) {
+        this.brightnessLevel = brightnessLevel;
+    }
+
+    /**
+     * Method checks current charging status of light.
+     * @return true, if charging status of light is true; false, if it is false.
+     */
+    @Override
+    public boolean isCharging() {
+        return charging;
+    }
+
+    /**
+     * Setter for charging status.
+     * @param charging charging status of light.
+     */
+    @Override
+    protected void setCharging(boolean charging) {
+        this.charging = charging;
+    }
+}
+
+
+/**
+ * Class LightView is a light whose attributes are kept in columns of DeviceStore.
+ * It keeps only its slot and the store.
+ */
+class LightView extends Light {
+    private static final BrightnessLevel[] LEVELS = BrightnessLevel.values();
+    private static final LightColor[] COLORS = LightColor.values();
+    private final DeviceStore store;
+    private final int slot;
+
+    /**
+     * Constructor for class LightView.
+     * @param store store of device attributes.
+     * @param slot slot of light in the store.
+     */
+    public LightView(DeviceStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
+    }
+
+    /**
+     * Method checks, if light is currently on.
+     * @return true, if light is currently on; false, if it is off.
+     */
+    @Override
+    public boolean isOn() {
+        return store.getFlag(DeviceStore.ON, slot);
+    }
+
+    /**
+     * Setter for status.
+     * @param status on/off status of light.
+     */
+    @Override
+    public void setStatus(Status status) {
+        store.setFlag(DeviceStore.ON, slot, status == Status.ON);
+    }
+
+    /**
+     * Getter for lightColor.
+     * @return current color of light.
+     */
+    @Override
+    public LightColor getLightColor() {
+        return COLORS[store.getColor(slot)];
+    }
+
+    /**
+     * Setter for lightColor.
+     * @param lightColor color of light to be set.
+     */
+    @Override
+    public void setLightColor(LightColor lightColor) {
+        store.setColor(slot, (byte) lightColor.ordinal());
+    }
+
+    /**
+     * Getter for brightnessLevel.
+     * @return current brightness level of light.
+     */
+    @Override
+    public BrightnessLevel getBrightnessLevel() {
+        return LEVELS[store.getBrightness(slot)];
+    }
+
+    /**
+     * Setter for brightnessLevel.
+     * @param brightnessLevel brightness level of light to be set.
+     */
+    @Override
+    public void setBrightnessLevel(BrightnessLevel brightnessLevel) {
+        store.setBrightness(slot, (byte) brightnessLevel.ordinal());
+    }
+
+    /**
+     * Method checks current charging status of light.
+     * @return true, if charging status of light is true; false, if it is false.
+     */
+    @Override
+    public boolean isCharging() {
+        return store.getFlag(DeviceStore.CHARGING, slot);
+    }
+
+    /**
+     * Setter for charging status.
+     * @param charging charging status of light.
+     */
+    @Override
+    protected void setCharging(boolean charging) {
+        store.setFlag(DeviceStore.CHARGING, slot, charging);
+    }
+}
+
+
+/**
+ * Enumeration DeviceType represents types of smart devices from the task.
+ * Every type knows its name used in commands.
+ */
+enum DeviceType {
+    LIGHT("Light"),
+    CAMERA("Camera"),
+    HEATER("Heater");
+
+    private final String name;
+    private final byte[] token;
+
+    /**
+     * Constructor for DeviceType.
+     * @param name name of device type used in commands.
+     */
+    DeviceType(String name) {
+        this.name = name;
+        this.token = ReplyBuffer.ascii(name);
+    }
+
+    /**
+     * Getter for name.
+     * @return name of device type used in commands.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Getter for name token.
+     * @return name of device type as bytes.
+     */
+    public byte[] getToken() {
+        return token;
+    }
+
+    /**
+     * Method that finds device type by its name used in commands.
+     * @param name name of device type.
+     * @return type with such name; null, if there is no such type.
+     */
+    public static DeviceType fromName(String name) {
+        switch (name) {
+            case "Light": return LIGHT;
+            case "Camera": return CAMERA;
+            case "Heater": return HEATER;
+            default: return null;
+        }
+    }
+}
+
+
+/**
+ * Class DeviceRegistry keeps all smart devices of the system.
+ * Devices can be registered at any time. Every registered device gets a slot:
+ * its position in registration order, used by indexes of the registry.
+ * Lookup by ID goes through primitive IntIntMap from ID to slot, so it takes constant time
+ * and does not box IDs. For every device type, the registry keeps a bitset of slots of devices of this type.
+ * Devices can be tagged: every tag is a bitset of slots of tagged devices.
+ * Optionally, attributes of registered devices are kept in columns of DeviceStore.
+ * Registry is not thread-safe for registration, but it can be read by many threads,
+ * when no devices are being registered.
+ */
+class DeviceRegistry {
+    static final int WORD_SHIFT = 6;
+    private static final int INIT_CAPACITY = 64;
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private SmartDevice[] devices = new SmartDevice[INIT_CAPACITY];
+    private int[] ids = new int[INIT_CAPACITY];
+    private int size;
+    private IntIntMap slots = new IntIntMap(INIT_CAPACITY);
+    private long[][] typeBits = new long[DeviceType.values().length][INIT_CAPACITY >>> WORD_SHIFT];
+    private byte[][] tagNames = new byte[0][];
+    private long[][] tagBits = new long[0][];
+    private DeviceStore store;
+
+    /**
+     * Constructor for class DeviceRegistry. Created registry is empty, and devices keep their own attributes.
+     */
+    public DeviceRegistry() {
+        this(false);
+    }
+
+    /**
+     * Constructor for class DeviceRegistry. Created registry is empty.
+     * @param columnar true, if attributes of registered devices are kept in DeviceStore of the registry.
+     */
+    public DeviceRegistry(boolean columnar) {
+        if (columnar) {
+            store = new DeviceStore(INIT_CAPACITY);
+        }
+    }
+
+    /**
+     * Method that adds device to the registry under its current ID.
+     * If registry has DeviceStore, attributes of device are copied into the store,
+     * and the registry keeps a view of them instead of the device.
+     * @param device device to be registered.
+     * @return slot of registered device.
+     * @throws IllegalArgumentException if device with the same ID is already registered.
+     */
+    public int register(SmartDevice device) {
+        if (slots.get(device.getDeviceId()) != IntIntMap.MISSING) {
+            throw new IllegalArgumentException("Device " + device.getDeviceId() + " is already registered");
+        }
+        if (size == devices.length) {
+            this.grow();
+        }
+        int slot = size++;
+        devices[slot] = store == null ? device : device.copyTo(store, slot);
+        ids[slot] = device.getDeviceId();
+        slots.put(device.getDeviceId(), slot);
+        int type = device.getType().ordinal();
+        typeBits[type][slot >>> WORD_SHIFT] |= 1L << slot;
+        return slot;
+    }
+
+    /**
+     * Method that doubles capacity of arrays indexed by slots.
+     */
+    private void grow() {
+        int capacity = devices.length * 2;
+        devices = Arrays.copyOf(devices, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        for (int i = 0; i < typeBits.length; i++) {
+            typeBits[i] = Arrays.copyOf(typeBits[i], capacity >>> WORD_SHIFT);
+        }
+        for (int i = 0; i < tagBits.length; i++) {
+            tagBits[i] = Arrays.copyOf(tagBits[i], capacity >>> WORD_SHIFT);
+        }
+        if (store != null) {
+            store.grow(capacity);
+        }
+    }
+
+    /**
+     * Getter for store.
+     * @return store of attributes of registered devices; null, if devices keep their own attributes.
+     */
+    public DeviceStore getStore() {
+        return store;
+    }
+
+    /**
+     * Method that finds tag by its name.
+     * @param name bytes of name.
+     * @param from position of the first byte of the name.
+     * @param to position after the last byte of the name.
+     * @return index of tag; IntIntMap.MISSING, if there is no such tag.
+     */
+    public int findTag(byte[] name, int from, int to) {
+        for (int i = 0; i < tagNames.length; i++) {
+            if (Arrays.equals(tagNames[i], 0, tagNames[i].length, name, from, to)) {
+                return i;
+            }
+        }
+        return IntIntMap.MISSING;
+    }
+
+    /**
+     * Method that tags selected devices, the tag is created, if it does not exist.
+     * @param name bytes of tag name.
+     * @param from position of the first byte of the name.
+     * @param to position after the last byte of the name.
+     * @param selection bitset of slots of devices to be tagged.
+     * @return number of devices that were not tagged with this tag before.
+     */
+    public int tag(byte[] name, int from, int to, long[] selection) {
+        int tag = this.findTag(name, from, to);
+        if (tag == IntIntMap.MISSING) {
+            tag = tagNames.length;
+            tagNames = Arrays.copyOf(tagNames, tag + 1);
+            tagNames[tag] = Arrays.copyOfRange(name, from, to);
+            tagBits = Arrays.copyOf(tagBits, tag + 1);
+            tagBits[tag] = new long[devices.length >>> WORD_SHIFT];
+        }
+        long[] bits = tagBits[tag];
+        int tagged = 0;
+        for (int w = 0; w < this.words(); w++) {
+            tagged += Long.bitCount(selection[w] & ~bits[w]);
+            bits[w] |= selection[w];
+        }
+        return tagged;
+    }
+
+    /**
+     * Getter for devices with the tag.
+     * @param tag index of tag.
+     * @return bitset of slots of tagged devices.
+     */
+    public long[] getTagBits(int tag) {
+        return tagBits[tag];
+    }
+
+    /**
+     * Getter for devices of given type.
+     * Returned bitset is the index itself: it must not be changed.
+     * @param type type of devices.
+     * @return bitset of slots of devices of this type, only first words() longs are valid.
+     */
+    public long[] getTypeBits(DeviceType type) {
+        return typeBits[type.ordinal()];
+    }
+
+    /**
+     * Getter for number of longs in bitsets of slots, that are used by registered devices.
+     * @return number of used longs of bitsets.
+     */
+    public int words() {
+        return (size + (1 << WORD_SHIFT) - 1) >>> WORD_SHIFT;
+    }
+
+    /**
+     * Getter for ID of device by its slot.
+     * @param slot slot of device.
+     * @return ID of device registered in this slot.
+     */
+    public int getId(int slot) {
+        return ids[slot];
+    }
+
+    /**
+     * Getter for type of device by its slot, found in bitsets of device types.
+     * @param slot slot of device.
+     * @return type of device registered in this slot; null, if no device is registered in it.
+     */
+    public DeviceType getType(int slot) {
+        for (int type = 0; type < TYPES.length; type++) {
+            if ((typeBits[type][slot >>> WORD_SHIFT] & (1L << slot)) != 0) {
+                return TYPES[type];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method that finds device by its ID.
+     * @param id ID of device.
+     * @return device with such ID; null, if there is no such device.
+     */
+    public SmartDevice find(int id) {
+        int slot = slots.get(id);
+        return slot == IntIntMap.MISSING ? null : devices[slot];
+    }
+
+    /**
+     * Method that finds device of given type by its ID.
+     * @param type type of device.
+     * @param id ID of device.
+     * @return device with such type and ID; null, if there is no such device.
+     */
+    public SmartDevice find(DeviceType type, int id) {
+        SmartDevice device = find(id);
+        return device != null && device.getType() == type ? device : null;
+    }
+
+    /**
+     * Method that finds slot of device by its ID.
+     * @param id ID of device.
+     * @return slot of device with such ID; IntIntMap.MISSING, if there is no such device.
+     */
+    public int slotOf(int id) {
+        return slots.get(id);
+    }
+
+    /**
+     * Getter for device by its slot.
+     * @param slot slot of device.
+     * @return device registered in this slot.
+     */
+    public SmartDevice getDevice(int slot) {
+        return devices[slot];
+    }
+
+    /**
+     * Getter for number of registered devices.
+     * @return number of registered devices.
+     */
+    public int size() {
+        return size;
+    }
+}
+
+
+/**
+ * Class DeviceStore keeps attributes of all devices of a registry in columns indexed by slots (struct of arrays).
+ * On/off, charging and recording flags are bitsets of longs, brightness levels and colors of lights are
+ * byte arrays of ordinals, angles of cameras and temperatures of heaters are int arrays.
+ * Devices of a registry with store are views, that keep only their slot: their getters and setters use the columns.
+ * Group commands and counts work on whole longs of bitsets, so they touch only the columns they need.
+ * Slots of one long of bitsets belong to one CommandEngine worker and to one part of a parallel DeviceSelection,
+ * so different threads never write the same long.
+ */
+class DeviceStore {
+    static final int ON = 0;
+    static final int CHARGING = 1;
+    static final int RECORDING = 2;
+    private static final int FLAGS = 3;
+    private static final int WORD = 1 << DeviceRegistry.WORD_SHIFT;
+    private long[][] flags = new long[FLAGS][];
+    private byte[] brightness;
+    private byte[] colors;
+    private int[] angles;
+    private int[] temperatures;
+
+    /**
+     * Constructor for class DeviceStore.
+     * @param capacity number of slots, multiple of 64.
+     */
+    public DeviceStore(int capacity) {
+        for (int i = 0; i < FLAGS; i++) {
+            flags[i] = new long[capacity >>> DeviceRegistry.WORD_SHIFT];
+        }
+        brightness = new byte[capacity];
+        colors = new byte[capacity];
+        angles = new int[capacity];
+        temperatures = new int[capacity];
+    }
+
+    /**
+     * Method that grows columns to given number of slots.
+     * @param capacity new number of slots, multiple of 64.
+     */
+    public void grow(int capacity) {
+        for (int i = 0; i < FLAGS; i++) {
+            flags[i] = Arrays.copyOf(flags[i], capacity >>> DeviceRegistry.WORD_SHIFT);
+        }
+        brightness = Arrays.copyOf(brightness, capacity);
+        colors = Arrays.copyOf(colors, capacity);
+        angles = Arrays.copyOf(angles, capacity);
+        temperatures = Arrays.copyOf(temperatures, capacity);
+    }
+
+    /**
+     * Method checks flag of device.
+     * @param flag ON, CHARGING or RECORDING.
+     * @param slot slot of device.
+     * @return true, if flag is set; false, if it is not.
+     */
+    public boolean getFlag(int flag, int slot) {
+        return (flags[flag][slot >>> DeviceRegistry.WORD_SHIFT] & (1L << slot)) != 0;
+    }
+
+    /**
+     * Method sets or clears flag of device.
+     * @param flag ON, CHARGING or RECORDING.
+     * @param slot slot of device.
+     * @param value true to set flag, false to clear it.
+     */
+    public void setFlag(int flag, int slot, boolean value) {
+        if (value) {
+            flags[flag][slot >>> DeviceRegistry.WORD_SHIFT] |= 1L << slot;
+        } else {
+            flags[flag][slot >>> DeviceRegistry.WORD_SHIFT] &= ~(1L << slot);
+        }
+    }
+
+    /**
+     * Getter for brightness level of light.
+     * @param slot slot of light.
+     * @return ordinal of brightness level.
+     */
+    public byte getBrightness(int slot) {
+        return brightness[slot];
+    }
+
+    /**
+     * Setter for brightness level of light.
+     * @param slot slot of light.
+     * @param value ordinal of brightness level.
+     */
+    public void setBrightness(int slot, byte value) {
+        brightness[slot] = value;
+    }
+
+    /**
+     * Getter for color of light.
+     * @param slot slot of light.
+     * @return ordinal of color.
+     */
+    public byte getColor(int slot) {
+        return colors[slot];
+    }
+
+    /**
+     * Setter for color of light.
+     * @param slot slot of light.
+     * @param value ordinal of color.
+     */
+    public void setColor(int slot, byte value) {
+        colors[slot] = value;
+    }
+
+    /**
+     * Getter for angle of camera.
+     * @param slot slot of camera.
+     * @return angle of camera.
+     */
+    public int getAngle(int slot) {
+        return angles[slot];
+    }
+
+    /**
+     * Setter for angle of camera.
+     * @param slot slot of camera.
+     * @param value angle of camera.
+     */
+    public void setAngle(int slot, int value) {
+        angles[slot] = value;
+    }
+
+    /**
+     * Getter for temperature of heater.
+     * @param slot slot of heater.
+     * @return temperature of heater.
+     */
+    public int getTemperature(int slot) {
+        return temperatures[slot];
+    }
+
+    /**
+     * Setter for temperature of heater.
+     * @param slot slot of heater.
+     * @param value temperature of heater.
+     */
+    public void setTemperature(int slot, int value) {
+        temperatures[slot] = value;
+    }
+
+    /**
+     * Method that sets or clears flag of selected devices.
+     * @param flag ON, CHARGING or RECORDING.
+     * @param value true to set flag, false to clear it.
+     * @param onlyOn true, if devices that are off must be skipped.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of devices whose flag was changed.
+     */
+    public int setFlags(int flag, boolean value, boolean onlyOn, long[] selection, int from, int to) {
+        long[] column = flags[flag];
+        long[] on = flags[ON];
+        int changed = 0;
+        for (int w = from; w < to; w++) {
+            long selected = onlyOn ? selection[w] & on[w] : selection[w];
+            long changing = value ? selected & ~column[w] : selected & column[w];
+            changed += Long.bitCount(changing);
+            column[w] ^= changing;
+        }
+        return changed;
+    }
+
+    /**
+     * Method that counts selected devices, whose flag is set (or clear).
+     * @param flag ON, CHARGING or RECORDING.
+     * @param value true to count devices with set flag, false to count devices with clear flag.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of such devices.
+     */
+    public int countFlags(int flag, boolean value, long[] selection, int from, int to) {
+        long[] column = flags[flag];
+        int count = 0;
+        for (int w = from; w < to; w++) {
+            count += Long.bitCount(selection[w] & (value ? column[w] : ~column[w]));
+        }
+        return count;
+    }
+
+    /**
+     * Method that sets angle of selected cameras that are on.
+     * @param value angle.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of changed cameras.
+     */
+    public int setAngles(int value, long[] selection, int from, int to) {
+        return fill(angles, value, selection, from, to);
+    }
+
+    /**
+     * Method that sets temperature of selected heaters that are on.
+     * @param value temperature.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of changed heaters.
+     */
+    public int setTemperatures(int value, long[] selection, int from, int to) {
+        return fill(temperatures, value, selection, from, to);
+    }
+
+    /**
+     * Method that sets brightness level of selected lights that are on.
+     * @param value ordinal of brightness level.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of changed lights.
+     */
+    public int setBrightness(byte value, long[] selection, int from, int to) {
+        return fill(brightness, value, selection, from, to);
+    }
+
+    /**
+     * Method that sets color of selected lights that are on.
+     * @param value ordinal of color.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of changed lights.
+     */
+    public int setColors(byte value, long[] selection, int from, int to) {
+        return fill(colors, value, selection, from, to);
+    }
+
+    /**
+     * Method that sets byte column of selected devices that are on.
+     * Longs of selection with all devices selected and on are filled at once.
+     * @param column byte column.
+     * @param value value to be set.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of changed devices.
+     */
+    private int fill(byte[] column, byte value, long[] selection, int from, int to) {
+        int changed = 0;
+        for (int w = from; w < to; w++) {
+            long selected = selection[w] & flags[ON][w];
+            changed += Long.bitCount(selected);
+            int base = w << DeviceRegistry.WORD_SHIFT;
+            if (selected == -1L) {
+                Arrays.fill(column, base, base + WORD, value);
+            } else {
+                for (long rest = selected; rest != 0; rest &= rest - 1) {
+                    column[base + Long.numberOfTrailingZeros(rest)] = value;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Method that sets int column of selected devices that are on.
+     * Longs of selection with all devices selected and on are filled at once.
+     * @param column int column.
+     * @param value value to be set.
+     * @param selection bitset of selected slots.
+     * @param from first long of bitsets.
+     * @param to long after the last one.
+     * @return number of changed devices.
+     */
+    private int fill(int[] column, int value, long[] selection, int from, int to) {
+        int changed = 0;
+        for (int w = from; w < to; w++) {
+            long selected = selection[w] & flags[ON][w];
+            changed += Long.bitCount(selected);
+            int base = w << DeviceRegistry.WORD_SHIFT;
+            if (selected == -1L) {
+                Arrays.fill(column, base, base + WORD, value);
+            } else {
+                for (long rest = selected; rest != 0; rest &= rest - 1) {
+                    column[base + Long.numberOfTrailingZeros(rest)] = value;
+                }
+            }
+        }
+        return changed;
+    }
+}
+
+
+/**
+ * Class DeviceSelection is a set of devices chosen by selector of a group command.
+ * Selected slots are kept as a bitset of longs, so selection is built from bitsets of device types
+ * and tags one word at a time. Actions are applied to selected devices in one pass over the bitset,
+ * big selections are split into parts applied in parallel.
+ * Selection is reused for every group command of a CommandManager.
+ */
+class DeviceSelection {
+    static final int PARALLEL_THRESHOLD = 1 << 15;
+    static final int PARALLEL_WORDS = 1 << 10;
+    private long[] bits = new long[1];
+    private int words;
+    private int count;
+
+    /**
+     * Method that selects devices of the type by selector of parsed command.
+     * @param devices registry of devices, available for user.
+     * @param type type of devices.
+     * @param command parsed command with selector.
+     * @return number of selected devices.
+     */
+    public int select(DeviceRegistry devices, DeviceType type, ParsedCommand command) {
+        words = devices.words();
+        if (bits.length < words) {
+            bits = new long[words];
+        }
+        count = 0;
+        if (command.getSelector() == ParsedCommand.SINGLE) {
+            Arrays.fill(bits, 0, words, 0L);
+            int slot = devices.slotOf(command.getId());
+            if (slot != IntIntMap.MISSING && devices.getType(slot) == type) {
+                bits[slot >>> DeviceRegistry.WORD_SHIFT] = 1L << slot;
+                count = 1;
+            }
+            return count;
+        }
+        long[] typeBits = devices.getTypeBits(type);
+        long[] tagBits = null;
+        if (command.getSelector() == ParsedCommand.TAG) {
+            int tag = devices.findTag(command.getSelectorToken(), 1, command.getSelectorLength());
+            tagBits = tag == IntIntMap.MISSING ? null : devices.getTagBits(tag);
+            if (tagBits == null) {
+                Arrays.fill(bits, 0, words, 0L);
+                return count;
+            }
+        }
+        boolean range = command.getSelector() == ParsedCommand.RANGE;
+        int first = command.getId();
+        int last = command.getLastId();
+        for (int w = 0; w < words; w++) {
+            long word = typeBits[w];
+            if (tagBits != null) {
+                word &= tagBits[w];
+            }
+            if (range) {
+                //Slots are not ordered by IDs, so every selected ID is checked.
+                for (long rest = word; rest != 0; rest &= rest - 1) {
+                    int id = devices.getId((w << DeviceRegistry.WORD_SHIFT) + Long.numberOfTrailingZeros(rest));
+                    if (id < first || id > last) {
+                        word &= ~Long.lowestOneBit(rest);
+                    }
+                }
+            }
+            bits[w] = word;
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Method that applies action to every selected device.
+     * @param action action that takes slot of device, and returns true, if it changed the device.
+     * @return number of changed devices.
+     */
+    public int apply(IntPredicate action) {
+        if (count < PARALLEL_THRESHOLD) {
+            return this.apply(action, 0, words);
+        }
+        int parts = (words + PARALLEL_WORDS - 1) / PARALLEL_WORDS;
+        return IntStream.range(0, parts).parallel()
+                .map(part -> this.apply(action, part * PARALLEL_WORDS, Math.min(words, (part + 1) * PARALLEL_WORDS)))
+                .sum();
+    }
+
+    /**
+     * Method that applies action to the bitset of selected slots, a range of its longs at a time.
+     * Big selections are split into ranges applied in parallel.
+     * @param action action that takes the first long and the long after the last one of the range,
+     *               and returns number of devices it changed (or counted).
+     * @return number of changed (or counted) devices.
+     */
+    public int applyWords(IntBinaryOperator action) {
+        if (count < PARALLEL_THRESHOLD) {
+            return action.applyAsInt(0, words);
+        }
+        int parts = (words + PARALLEL_WORDS - 1) / PARALLEL_WORDS;
+        return IntStream.range(0, parts).parallel()
+                .map(part -> action.applyAsInt(part * PARALLEL_WORDS, Math.min(words, (part + 1) * PARALLEL_WORDS)))
+                .sum();
+    }
+
+    /**
+     * Method that applies action to selected devices of given words of the bitset.
+     * @param action action that takes slot of device, and returns true, if it changed the device.
+     * @param from first word.
+     * @param to word after the last one.
+     * @return number of changed devices.
+     */
+    private int apply(IntPredicate action, int from, int to) {
+        int changed = 0;
+        for (int w = from; w < to; w++) {
+            for (long rest = bits[w]; rest != 0; rest &= rest - 1) {
+                if (action.test((w << DeviceRegistry.WORD_SHIFT) + Long.numberOfTrailingZeros(rest))) {
+                    changed++;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Getter for selected slots.
+     * @return bitset of selected slots, only first words() longs are valid.
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    /**
+     * Getter for number of selected devices.
+     * @return number of selected devices.
+     */
+    public int count() {
+        return count;
+    }
+}
+
+
+/**
+ * Class IntIntMap maps int keys to non-negative int values without boxing them.
+ * It is a hash table with open addressing and linear probing, that grows twice, when it gets half full.
+ * Keys are mixed before probing, so consecutive IDs are spread over the table.
+ */
+class IntIntMap {
+    static final int MISSING = -1;
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * Constructor for class IntIntMap.
+     * @param capacity expected number of keys.
+     */
+    public IntIntMap(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1) * 2;
+        keys = new int[length];
+        values = new int[length];
+        Arrays.fill(values, MISSING);
+    }
+
+    /**
+     * Method that finds value of the key.
+     * @param key key to be found.
+     * @return value of the key; MISSING, if there is no such key.
+     */
+    public int get(int key) {
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; values[i] != MISSING; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return MISSING;
+    }
+
+    /**
+     * Method that sets value of the key.
+     * @param key key to be set.
+     * @param value non-negative value of the key.
+     */
+    public void put(int key, int value) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != MISSING && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == MISSING) {
+            size++;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (size * 2 > keys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * Getter for number of keys.
+     * @return number of keys in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Method that moves all keys to a table twice as big.
+     */
+    private void rehash() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, MISSING);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Method that mixes bits of the key (finalizer of MurmurHash3).
+     * @param key key to be mixed.
+     * @return hash of the key.
+     */
+    private static int mix(int key) {
+        int h = key * 0x85ebca6b;
+        return h ^ (h >>> 16);
+    }
+}
+
+
+/**
+ * Interface Chargeable represents common behaviour features of chargeable devices from the task.
+ */
+interface Chargeable {
+    boolean isCharging();
+    boolean startCharging();
     boolean stopCharging();
 }
 
 
-/**
- * Interface Controllable represents common behaviour features of controllable devices from the task.
- */
-interface Controllable {
-    boolean turnOff();
-    boolean turnOn();
-    boolean isOn();
+/**
+ * Interface Controllable represents common behaviour features of controllable devices from the task.
+ */
+interface Controllable {
+    boolean turnOff();
+    boolean turnOn();
+    boolean isOn();
+}
+
+
+/**
+ * Class CommandManager implements methods corresponding to input commands,
+ * and methods that are used in command methods' implementation.
+ * Commands are read as bytes and parsed by CommandParser, replies are written as bytes into ReplyBuffer,
+ * so processing of a command creates no strings.
+ * Group commands name devices by selector instead of ID, and get one reply for all selected devices.
+ * Count command tells how many selected devices are on, off, charging or recording.
+ * Constants introduced in this class represent error messages and success messages.
+ */
+class CommandManager {
+    static final int INPUT_BUFFER = 1 << 16;
+
+    //errors
+    private static final byte[] INV_COM = ReplyBuffer.ascii("Invalid command");
+    private static final byte[] NOT_FOUND = ReplyBuffer.ascii("The smart device was not found");
+    private static final byte[] NON_CHG = ReplyBuffer.ascii(" is not chargeable");
+    private static final byte[] NOT_HEAT = ReplyBuffer.ascii(" is not a heater");
+    private static final byte[] WR_BRIGHT = ReplyBuffer.ascii(
+            "The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\"");
+    private static final byte[] NOT_LIGHT = ReplyBuffer.ascii(" is not a light");
+    private static final byte[] WR_CLR = ReplyBuffer.ascii("The light color can only be \"YELLOW\" or \"WHITE\"");
+    private static final byte[] NOT_CAM = ReplyBuffer.ascii(" is not a camera");
+    private static final byte[] ALR_OFF = ReplyBuffer.ascii(" is already off");
+    private static final byte[] ALR_ON = ReplyBuffer.ascii(" is already on");
+    private static final byte[] STAT_CHG_PT_1 = ReplyBuffer.ascii("You can't change the status of the ");
+    private static final byte[] STAT_CHG_PT_2 = ReplyBuffer.ascii(" while it is off");
+    private static final byte[] WR_ANG = ReplyBuffer.ascii(" angle should be in the range [-60, 60]");
+    private static final byte[] ALR_REC = ReplyBuffer.ascii(" is already recording");
+    private static final byte[] NOT_REC = ReplyBuffer.ascii(" is not recording");
+    private static final byte[] ALR_CHG = ReplyBuffer.ascii(" is already charging");
+    private static final byte[] NOT_CHG = ReplyBuffer.ascii(" is not charging");
+    private static final byte[] WR_TEMP = ReplyBuffer.ascii(" temperature should be in the range [15, 30]");
+
+    //success messages
+    private static final byte[] IS_ON = ReplyBuffer.ascii(" is on");
+    private static final byte[] IS_OFF = ReplyBuffer.ascii(" is off");
+    private static final byte[] IS_CHG = ReplyBuffer.ascii(" is charging");
+    private static final byte[] STPD_CHG = ReplyBuffer.ascii(" stopped charging");
+    private static final byte[] TEMP_READY = ReplyBuffer.ascii(" temperature is set to ");
+    private static final byte[] BRIGHT_READY = ReplyBuffer.ascii(" brightness level is set to ");
+    private static final byte[] CLR_READY = ReplyBuffer.ascii(" color is set to ");
+    private static final byte[] ANG_READY = ReplyBuffer.ascii(" angle is set to ");
+    private static final byte[] IS_REC = ReplyBuffer.ascii(" started recording");
+    private static final byte[] STPD_REC = ReplyBuffer.ascii(" stopped recording");
+    private static final byte[] IS_TAGGED = ReplyBuffer.ascii(" is tagged ");
+    private static final byte[] FOR = ReplyBuffer.ascii(" for ");
+    private static final byte[] OF = ReplyBuffer.ascii(" of ");
+    private static final byte[] DEVICES = ReplyBuffer.ascii(" devices");
+    private static final byte[] IS = ReplyBuffer.ascii(" is ");
+
+    //status of devices kept in DeviceStore
+    private static final byte[] STATUS_ON = ReplyBuffer.ascii(SmartDevice.Status.ON.name());
+    private static final byte[] STATUS_OFF = ReplyBuffer.ascii(SmartDevice.Status.OFF.name());
+    private static final byte[] TRUE = ReplyBuffer.ascii("true");
+    private static final byte[] FALSE = ReplyBuffer.ascii("false");
+    private static final byte[] COLOR_IS = ReplyBuffer.ascii(", the color is ");
+    private static final byte[] CHARGING_IS = ReplyBuffer.ascii(", the charging status is ");
+    private static final byte[] BRIGHTNESS_IS = ReplyBuffer.ascii(", and the brightness level is ");
+    private static final byte[] ANGLE_IS = ReplyBuffer.ascii(", the angle is ");
+    private static final byte[] RECORDING_IS = ReplyBuffer.ascii(", and the recording status is ");
+    private static final byte[] TEMPERATURE_IS = ReplyBuffer.ascii(" and the temperature is ");
+    private static final byte[] WR_ATTR = ReplyBuffer.ascii(
+            "The attribute can only be one of \"ON\", \"OFF\", \"CHARGING\", or \"RECORDING\"");
+    private static final int[] COUNT_FLAGS = {DeviceStore.ON, DeviceStore.ON, DeviceStore.CHARGING, DeviceStore.RECORDING};
+
+    private final ReplyBuffer out;
+    private final CommandParser parser = new CommandParser();
+    private final ParsedCommand parsed = new ParsedCommand();
+    private final DeviceSelection selection = new DeviceSelection();
+
+    /**
+     * Constructor for class CommandManager, that prints replies to System.out.
+     */
+    public CommandManager() {
+        this(System.out);
+    }
+
+    /**
+     * Constructor for class CommandManager.
+     * @param out stream for replies to commands.
+     */
+    public CommandManager(OutputStream out) {
+        this.out = new ReplyBuffer(out);
+    }
+
+    /**
+     * Method that reads commands from the channel and processes them, until command "end" or end of input.
+     * Input is read in batches: all commands of a batch are processed,
+     * and their replies are flushed together before next batch is read.
+     * @param in channel with commands, one per line.
+     * @param devices registry of devices, available for user.
+     * @throws IOException if input cannot be read.
+     */
+    public void processInput(ReadableByteChannel in, DeviceRegistry devices) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(INPUT_BUFFER);
+        buffer.flip();
+        while (true) {
+            while (parser.parseLine(buffer, parsed)) {
+                this.execute(parsed, devices);
+                if (parsed.isEnd()) {
+                    this.flush();
+                    return;
+                }
+            }
+            this.flush();
+            if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+                //The line does not fit into buffer.
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+            } else {
+                buffer.compact();
+            }
+            int read = in.read(buffer);
+            buffer.flip();
+            if (read == -1) {
+                if (parser.parseLast(buffer, parsed)) {
+                    this.execute(parsed, devices);
+                }
+                this.flush();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method that takes whole command string, parses it, and executes it.
+     * Reply is printed at once.
+     * @param command whole command string containing command name and attributes (if any).
+     * @param devices registry of devices, available for user.
+     */
+    public void detectCommand(String command, DeviceRegistry devices) {
+        byte[] line = command.getBytes(StandardCharsets.ISO_8859_1);
+        parser.parse(ByteBuffer.wrap(line), 0, line.length, parsed);
+        this.execute(parsed, devices);
+        this.flush();
+    }
+
+    /**
+     * Method that checks command name and number of attributes of parsed command,
+     * and call corresponding method or output error message. Reply stays in reply buffer until flush().
+     * @param command parsed command.
+     * @param devices registry of devices, available for user.
+     */
+    public void execute(ParsedCommand command, DeviceRegistry devices) {
+        if (!command.isValid()) {
+            out.append(INV_COM).newLine();
+            return;
+        }
+        if (command.isGlobal() && command.getCommand() != CommandType.DISPLAY_ALL) {
+            this.executeGroup(command, devices);
+            return;
+        }
+        DeviceType type = command.getDeviceType();
+        int id = command.getId();
+        switch (command.getCommand()) {
+            case DISPLAY_ALL: this.displayAllStatus(devices); break;
+            case TURN_ON: this.turnOn(devices, type, id); break;
+            case TURN_OFF: this.turnOff(devices, type, id); break;
+            case START_CHARGING: this.startCharging(devices, type, id); break;
+            case STOP_CHARGING: this.stopCharging(devices, type, id); break;
+            case SET_TEMPERATURE: this.setTemp(devices, type, id, command.getValue()); break;
+            case SET_BRIGHTNESS: this.setBrightness(devices, type, id, command.getValue()); break;
+            case SET_COLOR: this.setColor(devices, type, id, command.getValue()); break;
+            case SET_ANGLE: this.setAngle(devices, type, id, command.getValue()); break;
+            case START_RECORDING: this.startRecord(devices, type, id); break;
+            case STOP_RECORDING: this.stopRecord(devices, type, id); break;
+            default: break;
+        }
+    }
+
+    /**
+     * Method that executes command for a group of devices chosen by selector (or tags one device).
+     * Devices that are off are skipped by commands that change their attributes.
+     * Reply names the type and selector, and tells how many of selected devices were changed (or counted).
+     * If registry has DeviceStore, command works on its columns a long of bitsets at a time,
+     * otherwise it calls every selected device.
+     * @param command parsed command with selector.
+     * @param devices registry of devices, available for user.
+     */
+    public void executeGroup(ParsedCommand command, DeviceRegistry devices) {
+        DeviceType type = command.getDeviceType();
+        int selected = type == null ? 0 : selection.select(devices, type, command);
+        if (selected == 0) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        DeviceStore store = devices.getStore();
+        long[] bits = selection.getBits();
+        int value = command.getValue();
+        int changed;
+        byte[] message;
+        switch (command.getCommand()) {
+            case TURN_ON:
+                changed = store != null
+                        ? selection.applyWords((from, to) -> store.setFlags(DeviceStore.ON, true, false, bits, from, to))
+                        : selection.apply(slot -> devices.getDevice(slot).turnOn());
+                message = IS_ON;
+                break;
+            case TURN_OFF:
+                changed = store != null
+                        ? selection.applyWords((from, to) -> store.setFlags(DeviceStore.ON, false, false, bits, from, to))
+                        : selection.apply(slot -> devices.getDevice(slot).turnOff());
+                message = IS_OFF;
+                break;
+            case START_CHARGING:
+                if (type == DeviceType.HEATER) {
+                    this.replyGroup(command).append(NON_CHG).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) ->
+                                store.setFlags(DeviceStore.CHARGING, true, false, bits, from, to))
+                        : selection.apply(slot -> ((Chargeable) devices.getDevice(slot)).startCharging());
+                message = IS_CHG;
+                break;
+            case STOP_CHARGING:
+                if (type == DeviceType.HEATER) {
+                    this.replyGroup(command).append(NON_CHG).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) ->
+                                store.setFlags(DeviceStore.CHARGING, false, false, bits, from, to))
+                        : selection.apply(slot -> ((Chargeable) devices.getDevice(slot)).stopCharging());
+                message = STPD_CHG;
+                break;
+            case SET_TEMPERATURE:
+                if (type != DeviceType.HEATER) {
+                    this.replyGroup(command).append(NOT_HEAT).newLine();
+                    return;
+                }
+                if (value < Heater.MIN_HEATER_TEMP || value > Heater.MAX_HEATER_TEMP) {
+                    this.replyGroup(command).append(WR_TEMP).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) -> store.setTemperatures(value, bits, from, to))
+                        : selection.apply(slot -> devices.getDevice(slot).checkStatusAccess()
+                                && ((Heater) devices.getDevice(slot)).setTemperature(value));
+                this.replyGroup(command).append(TEMP_READY).append(value);
+                this.replyCounts(command, changed, selected);
+                return;
+            case SET_ANGLE:
+                if (type != DeviceType.CAMERA) {
+                    this.replyGroup(command).append(NOT_CAM).newLine();
+                    return;
+                }
+                if (value < Camera.MIN_CAMERA_ANGLE || value > Camera.MAX_CAMERA_ANGLE) {
+                    this.replyGroup(command).append(WR_ANG).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) -> store.setAngles(value, bits, from, to))
+                        : selection.apply(slot -> devices.getDevice(slot).checkStatusAccess()
+                                && ((Camera) devices.getDevice(slot)).setCameraAngle(value));
+                this.replyGroup(command).append(ANG_READY).append(value);
+                this.replyCounts(command, changed, selected);
+                return;
+            case SET_BRIGHTNESS:
+                if (type != DeviceType.LIGHT) {
+                    this.replyGroup(command).append(NOT_LIGHT).newLine();
+                    return;
+                }
+                if (value == ParsedCommand.UNKNOWN) {
+                    out.append(WR_BRIGHT).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) -> store.setBrightness((byte) value, bits, from, to))
+                        : selection.apply(slot -> this.setBrightness(devices.getDevice(slot), value));
+                this.replyGroup(command).append(BRIGHT_READY).append(CommandParser.BRIGHTNESS_TOKENS[value]);
+                this.replyCounts(command, changed, selected);
+                return;
+            case SET_COLOR:
+                if (type != DeviceType.LIGHT) {
+                    this.replyGroup(command).append(NOT_LIGHT).newLine();
+                    return;
+                }
+                if (value == ParsedCommand.UNKNOWN) {
+                    out.append(WR_CLR).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) -> store.setColors((byte) value, bits, from, to))
+                        : selection.apply(slot -> this.setColor(devices.getDevice(slot), value));
+                this.replyGroup(command).append(CLR_READY).append(CommandParser.COLOR_TOKENS[value]);
+                this.replyCounts(command, changed, selected);
+                return;
+            case START_RECORDING:
+                if (type != DeviceType.CAMERA) {
+                    this.replyGroup(command).append(NOT_CAM).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) ->
+                                store.setFlags(DeviceStore.RECORDING, true, true, bits, from, to))
+                        : selection.apply(slot -> devices.getDevice(slot).checkStatusAccess()
+                                && ((Camera) devices.getDevice(slot)).startRecording());
+                message = IS_REC;
+                break;
+            case STOP_RECORDING:
+                if (type != DeviceType.CAMERA) {
+                    this.replyGroup(command).append(NOT_CAM).newLine();
+                    return;
+                }
+                changed = store != null
+                        ? selection.applyWords((from, to) ->
+                                store.setFlags(DeviceStore.RECORDING, false, true, bits, from, to))
+                        : selection.apply(slot -> devices.getDevice(slot).checkStatusAccess()
+                                && ((Camera) devices.getDevice(slot)).stopRecording());
+                message = STPD_REC;
+                break;
+            case TAG:
+                changed = devices.tag(command.getLabel(), 0, command.getLabelLength(), bits);
+                this.replyGroup(command).append(IS_TAGGED).append(command.getLabel(), command.getLabelLength());
+                this.replyCounts(command, changed, selected);
+                return;
+            case COUNT:
+                this.count(command, devices, selected);
+                return;
+            default: return;
+        }
+        this.replyGroup(command).append(message);
+        this.replyCounts(command, changed, selected);
+    }
+
+    /**
+     * Method that counts selected devices with given attribute: ON, OFF, CHARGING or RECORDING.
+     * @param command parsed command with selector.
+     * @param devices registry of devices, available for user.
+     * @param selected number of selected devices.
+     */
+    private void count(ParsedCommand command, DeviceRegistry devices, int selected) {
+        DeviceType type = command.getDeviceType();
+        int attribute = command.getValue();
+        if (attribute == ParsedCommand.UNKNOWN) {
+            out.append(WR_ATTR).newLine();
+            return;
+        }
+        if (attribute == CommandParser.CHARGING && type == DeviceType.HEATER) {
+            this.replyGroup(command).append(NON_CHG).newLine();
+            return;
+        }
+        if (attribute == CommandParser.RECORDING && type != DeviceType.CAMERA) {
+            this.replyGroup(command).append(NOT_CAM).newLine();
+            return;
+        }
+        DeviceStore store = devices.getStore();
+        long[] bits = selection.getBits();
+        int counted;
+        if (store != null) {
+            counted = selection.applyWords((from, to) -> store.countFlags(
+                    COUNT_FLAGS[attribute], attribute != CommandParser.OFF, bits, from, to));
+        } else {
+            counted = selection.apply(slot -> this.hasAttribute(devices.getDevice(slot), attribute));
+        }
+        this.replyGroup(command).append(IS).append(CommandParser.ATTRIBUTE_TOKENS[attribute]);
+        this.replyCounts(command, counted, selected);
+    }
+
+    /**
+     * Method checks, if device has attribute counted by Count command.
+     * @param device device to be checked.
+     * @param attribute ON, OFF, CHARGING or RECORDING of CommandParser.
+     * @return true, if device has the attribute; false, if it does not.
+     */
+    private boolean hasAttribute(SmartDevice device, int attribute) {
+        switch (attribute) {
+            case CommandParser.ON: return device.isOn();
+            case CommandParser.OFF: return !device.isOn();
+            case CommandParser.CHARGING: return ((Chargeable) device).isCharging();
+            default: return ((Camera) device).isRecording();
+        }
+    }
+
+    /**
+     * Method that sets brightness level of light, if it is on.
+     * @param device light.
+     * @param bright ordinal of brightness level.
+     * @return true, if brightness level was set; false, if light is off.
+     */
+    private boolean setBrightness(SmartDevice device, int bright) {
+        if (!device.checkStatusAccess()) {
+            return false;
+        }
+        ((Light) device).setBrightnessLevel(CommandParser.BRIGHTNESS[bright]);
+        return true;
+    }
+
+    /**
+     * Method that sets color of light, if it is on.
+     * @param device light.
+     * @param clr ordinal of color.
+     * @return true, if color was set; false, if light is off.
+     */
+    private boolean setColor(SmartDevice device, int clr) {
+        if (!device.checkStatusAccess()) {
+            return false;
+        }
+        ((Light) device).setLightColor(CommandParser.COLORS[clr]);
+        return true;
+    }
+
+    /**
+     * Method that starts reply to group command with type name and selector.
+     * Command that tags one device is named by its ID.
+     * @param command parsed command with selector.
+     * @return reply buffer to append the message to.
+     */
+    private ReplyBuffer replyGroup(ParsedCommand command) {
+        out.append(command.getDeviceType().getToken()).append(' ');
+        if (command.getSelector() == ParsedCommand.SINGLE) {
+            return out.append(command.getId());
+        }
+        return out.append(command.getSelectorToken(), command.getSelectorLength());
+    }
+
+    /**
+     * Method that outputs how many of selected devices were changed (or counted), and ends the reply.
+     * Command for one device tells nothing, unless it is Count.
+     * @param command parsed command with selector.
+     * @param changed number of changed devices.
+     * @param selected number of selected devices.
+     */
+    private void replyCounts(ParsedCommand command, int changed, int selected) {
+        if (command.getSelector() != ParsedCommand.SINGLE || command.getCommand() == CommandType.COUNT) {
+            out.append(FOR).append(changed).append(OF).append(selected).append(DEVICES);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that writes replies collected in reply buffer to the stream.
+     */
+    public void flush() {
+        out.flush();
+    }
+
+    /**
+     * Method that finds the device with such type and ID in system.
+     * All command methods use this method.
+     * @param devices registry of devices, available for user.
+     * @param type type of device (null, if command names unknown type).
+     * @param id ID of device.
+     * @return device with such type and ID; null, if it does not exist in system.
+     */
+    public SmartDevice deviceCheck(DeviceRegistry devices, DeviceType type, int id) {
+        return type == null ? null : devices.find(type, id);
+    }
+
+    /**
+     * Method that output current status strings of all devices in system in registration order.
+     * If registry has DeviceStore, statuses are read from its columns, without device objects and strings.
+     * @param devices registry of devices, available for user.
+     */
+    public void displayAllStatus(DeviceRegistry devices) {
+        DeviceStore store = devices.getStore();
+        for (int i = 0; i < devices.size(); i++) {
+            if (store == null) {
+                out.append(devices.getDevice(i).displayStatus()).newLine();
+            } else {
+                this.displayStatus(devices, store, i);
+            }
+        }
+    }
+
+    /**
+     * Method that outputs status string of device from columns of the store, same as displayStatus() of device.
+     * @param devices registry of devices, available for user.
+     * @param store store of device attributes.
+     * @param slot slot of device.
+     */
+    private void displayStatus(DeviceRegistry devices, DeviceStore store, int slot) {
+        DeviceType type = devices.getType(slot);
+        out.append(type.getToken()).append(' ').append(devices.getId(slot)).append(IS)
+                .append(store.getFlag(DeviceStore.ON, slot) ? STATUS_ON : STATUS_OFF);
+        switch (type) {
+            case LIGHT:
+                out.append(COLOR_IS).append(CommandParser.COLOR_TOKENS[store.getColor(slot)])
+                        .append(CHARGING_IS).append(store.getFlag(DeviceStore.CHARGING, slot) ? TRUE : FALSE)
+                        .append(BRIGHTNESS_IS).append(CommandParser.BRIGHTNESS_TOKENS[store.getBrightness(slot)]);
+                break;
+            case CAMERA:
+                out.append(ANGLE_IS).append(store.getAngle(slot))
+                        .append(CHARGING_IS).append(store.getFlag(DeviceStore.CHARGING, slot) ? TRUE : FALSE)
+                        .append(RECORDING_IS).append(store.getFlag(DeviceStore.RECORDING, slot) ? TRUE : FALSE);
+                break;
+            default:
+                out.append(TEMPERATURE_IS).append(store.getTemperature(slot));
+        }
+        out.append('.').newLine();
+    }
+
+    /**
+     * Method that outputs type name and ID of device followed by the message.
+     * @param type type of device.
+     * @param id ID of device.
+     * @param message message about device.
+     */
+    private void reply(DeviceType type, int id, byte[] message) {
+        out.append(type.getToken()).append(' ').append(id).append(message);
+    }
+
+    /**
+     * Method that outputs error message about attempt to change device that is off.
+     * @param type type of device.
+     * @param id ID of device.
+     */
+    private void replyOff(DeviceType type, int id) {
+        out.append(STAT_CHG_PT_1);
+        this.reply(type, id, STAT_CHG_PT_2);
+        out.newLine();
+    }
+
+    /**
+     * Method that output checks existence of device,
+     * turns device on, if it was off, or output error message, if it was on.
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     */
+    public void turnOn(DeviceRegistry devices, DeviceType type, int id) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        this.reply(type, id, device.turnOn() ? IS_ON : ALR_ON);
+        out.newLine();
+    }
+
+    /**
+     * Method that turns device off, if it was on, or output error message, if it was off.
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     */
+    public void turnOff(DeviceRegistry devices, DeviceType type, int id) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        this.reply(type, id, device.turnOff() ? IS_OFF : ALR_OFF);
+        out.newLine();
+    }
+
+    /**
+     * Method that starts charging device, if it was not charging, or output error message, if it was already charging.
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     */
+    public void startCharging(DeviceRegistry devices, DeviceType type, int id) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        //Heaters are not chargeable.
+        if (!(device instanceof Chargeable)) {
+            this.reply(type, id, NON_CHG);
+        } else {
+            this.reply(type, id, ((Chargeable) device).startCharging() ? IS_CHG : ALR_CHG);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that stops charging device, if it was charging, or output error message, if it was not charging.
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     */
+    public void stopCharging(DeviceRegistry devices, DeviceType type, int id) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        //Heaters are not chargeable.
+        if (!(device instanceof Chargeable)) {
+            this.reply(type, id, NON_CHG);
+        } else {
+            this.reply(type, id, ((Chargeable) device).stopCharging() ? STPD_CHG : NOT_CHG);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that checks that if the device is heater (if not output, error message),
+     * and sets new temperature value for it (if temperature is out of range, output error message).
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     * @param temp temperature of heater.
+     */
+    public void setTemp(DeviceRegistry devices, DeviceType type, int id, int temp) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        if (!device.checkStatusAccess()) {
+            this.replyOff(type, id);
+            return;
+        }
+        if (type != DeviceType.HEATER) {
+            this.reply(type, id, NOT_HEAT);
+        } else if (((Heater) device).setTemperature(temp)) {
+            this.reply(type, id, TEMP_READY);
+            out.append(temp);
+        } else {
+            this.reply(type, id, WR_TEMP);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that checks that if the device is light (if not, output error message),
+     * and sets new brightness level for it (if brightness level is not appropriate, output error message).
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     * @param bright ordinal of brightness level of light; ParsedCommand.UNKNOWN, if level is not appropriate.
+     */
+    public void setBrightness(DeviceRegistry devices, DeviceType type, int id, int bright) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        if (!device.checkStatusAccess()) {
+            this.replyOff(type, id);
+            return;
+        }
+        if (type != DeviceType.LIGHT) {
+            this.reply(type, id, NOT_LIGHT);
+        } else if (bright == ParsedCommand.UNKNOWN) {
+            out.append(WR_BRIGHT);
+        } else {
+            ((Light) device).setBrightnessLevel(CommandParser.BRIGHTNESS[bright]);
+            this.reply(type, id, BRIGHT_READY);
+            out.append(CommandParser.BRIGHTNESS_TOKENS[bright]);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that checks that if the device is light (if not, output error message),
+     * and sets new light color for it (if light color is not appropriate, output error message).
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     * @param clr ordinal of color of light; ParsedCommand.UNKNOWN, if color is not appropriate.
+     */
+    public void setColor(DeviceRegistry devices, DeviceType type, int id, int clr) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        if (!device.checkStatusAccess()) {
+            this.replyOff(type, id);
+            return;
+        }
+        if (type != DeviceType.LIGHT) {
+            this.reply(type, id, NOT_LIGHT);
+        } else if (clr == ParsedCommand.UNKNOWN) {
+            out.append(WR_CLR);
+        } else {
+            ((Light) device).setLightColor(CommandParser.COLORS[clr]);
+            this.reply(type, id, CLR_READY);
+            out.append(CommandParser.COLOR_TOKENS[clr]);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that checks that if the device is camera (if not, output error message),
+     * and sets new angle for it (if angle is out of range, output error message).
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     * @param angle angle of camera.
+     */
+    public void setAngle(DeviceRegistry devices, DeviceType type, int id, int angle) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        if (!device.checkStatusAccess()) {
+            this.replyOff(type, id);
+            return;
+        }
+        if (type != DeviceType.CAMERA) {
+            this.reply(type, id, NOT_CAM);
+        } else if (((Camera) device).setCameraAngle(angle)) {
+            this.reply(type, id, ANG_READY);
+            out.append(angle);
+        } else {
+            this.reply(type, id, WR_ANG);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that checks that if the device is camera (if not, output error message),
+     * and starts recording on it (if camera was already recording, output error message).
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     */
+    public void startRecord(DeviceRegistry devices, DeviceType type, int id) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        if (!device.checkStatusAccess()) {
+            this.replyOff(type, id);
+            return;
+        }
+        if (type != DeviceType.CAMERA) {
+            this.reply(type, id, NOT_CAM);
+        } else {
+            this.reply(type, id, ((Camera) device).startRecording() ? IS_REC : ALR_REC);
+        }
+        out.newLine();
+    }
+
+    /**
+     * Method that checks that if the device is camera (if not, output error message),
+     * and stops recording on it (if camera was not recording, output error message).
+     * @param devices registry of devices, available for user.
+     * @param type type of device.
+     * @param id ID of device.
+     */
+    public void stopRecord(DeviceRegistry devices, DeviceType type, int id) {
+        SmartDevice device = deviceCheck(devices, type, id);
+        if (device == null) {
+            out.append(NOT_FOUND).newLine();
+            return;
+        }
+        if (!device.checkStatusAccess()) {
+            this.replyOff(type, id);
+            return;
+        }
+        if (type != DeviceType.CAMERA) {
+            this.reply(type, id, NOT_CAM);
+        } else {
+            this.reply(type, id, ((Camera) device).stopRecording() ? STPD_REC : NOT_REC);
+        }
+        out.newLine();
+    }
+}
+
+
+/**
+ * Enumeration CommandType represents names of input commands.
+ * Every command knows its name token and number of arguments in the command line (with the name).
+ */
+enum CommandType {
+    DISPLAY_ALL("DisplayAllStatus", 1),
+    TURN_ON("TurnOn", 3),
+    TURN_OFF("TurnOff", 3),
+    START_CHARGING("StartCharging", 3),
+    STOP_CHARGING("StopCharging", 3),
+    SET_TEMPERATURE("SetTemperature", 4),
+    SET_BRIGHTNESS("SetBrightness", 4),
+    SET_COLOR("SetColor", 4),
+    SET_ANGLE("SetAngle", 4),
+    START_RECORDING("StartRecording", 3),
+    STOP_RECORDING("StopRecording", 3),
+    TAG("Tag", 4),
+    COUNT("Count", 4),
+    END("end", 1);
+
+    private final byte[] token;
+    private final int template;
+
+    /**
+     * Constructor for CommandType.
+     * @param name name of command.
+     * @param template number of arguments in the command line (with the name).
+     */
+    CommandType(String name, int template) {
+        this.token = ReplyBuffer.ascii(name);
+        this.template = template;
+    }
+
+    /**
+     * Getter for name token.
+     * @return name of command as bytes.
+     */
+    public byte[] getToken() {
+        return token;
+    }
+
+    /**
+     * Getter for template.
+     * @return number of arguments in the command line (with the name).
+     */
+    public int getTemplate() {
+        return template;
+    }
+}
+
+
+/**
+ * Class ParsedCommand keeps the result of parsing of one command line, it is reused for every line.
+ * Instead of one ID, command can name a group of devices by selector: "*" selects all devices of the type,
+ * "first-last" selects devices with IDs in the range, "#tag" selects devices with the tag.
+ * Command for one device can be stored into four ints of a batch and loaded back,
+ * so batches of commands are just int arrays.
+ */
+class ParsedCommand {
+    static final int RECORD = 4;
+    static final int UNKNOWN = -1;
+    static final int SINGLE = 0;
+    static final int ALL = 1;
+    static final int RANGE = 2;
+    static final int TAG = 3;
+    private static final CommandType[] COMMANDS = CommandType.values();
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private CommandType command;
+    private DeviceType type;
+    private int id;
+    private int value;
+    private boolean end;
+    private int selector;
+    private int lastId;
+    private byte[] selectorToken = new byte[0];
+    private int selectorLength;
+    private byte[] label = new byte[0];
+    private int labelLength;
+
+    /**
+     * Method that sets parsed values.
+     * @param command command type; null, if command is invalid.
+     * @param type device type; null, if command names unknown type or no type.
+     * @param id ID of device.
+     * @param value number argument, or ordinal of enum argument (UNKNOWN, if it is not appropriate).
+     * @param end true, if the line is exactly "end".
+     */
+    void set(CommandType command, DeviceType type, int id, int value, boolean end) {
+        this.command = command;
+        this.type = type;
+        this.id = id;
+        this.value = value;
+        this.end = end;
+        this.selector = SINGLE;
+        this.labelLength = 0;
+    }
+
+    /**
+     * Method that sets selector of group command, its first and last ID are set only for RANGE.
+     * @param selector kind of selector.
+     * @param id first ID of range.
+     * @param lastId last ID of range.
+     * @param in buffer with selector token.
+     * @param from position of the first byte of the token.
+     * @param to position after the last byte of the token.
+     */
+    void setSelector(int selector, int id, int lastId, ByteBuffer in, int from, int to) {
+        this.selector = selector;
+        this.id = id;
+        this.lastId = lastId;
+        selectorLength = to - from;
+        if (selectorToken.length < selectorLength) {
+            selectorToken = new byte[selectorLength];
+        }
+        in.get(from, selectorToken, 0, selectorLength);
+    }
+
+    /**
+     * Method that sets label argument (name of tag).
+     * @param in buffer with label.
+     * @param from position of the first byte of the label.
+     * @param to position after the last byte of the label.
+     */
+    void setLabel(ByteBuffer in, int from, int to) {
+        labelLength = to - from;
+        if (label.length < labelLength) {
+            label = new byte[labelLength];
+        }
+        in.get(from, label, 0, labelLength);
+    }
+
+    /**
+     * Method checks, if command may touch more than one device, or tags, so it needs all devices at once.
+     * Such commands are executed by CommandManager.executeGroup(), except DisplayAllStatus.
+     * @return true, if command needs all devices; false, if it touches at most one device.
+     */
+    public boolean isGlobal() {
+        return command == CommandType.DISPLAY_ALL || command == CommandType.TAG || command == CommandType.COUNT
+                || selector != SINGLE;
+    }
+
+    /**
+     * Getter for selector.
+     * @return kind of selector: SINGLE, ALL, RANGE or TAG.
+     */
+    public int getSelector() {
+        return selector;
+    }
+
+    /**
+     * Getter for last ID of RANGE selector.
+     * @return last ID of range.
+     */
+    public int getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Getter for selector token, as it was in command.
+     * @return bytes of selector, only first getSelectorLength() bytes are valid.
+     */
+    public byte[] getSelectorToken() {
+        return selectorToken;
+    }
+
+    /**
+     * Getter for length of selector token.
+     * @return number of bytes of selector.
+     */
+    public int getSelectorLength() {
+        return selectorLength;
+    }
+
+    /**
+     * Getter for label.
+     * @return bytes of label, only first getLabelLength() bytes are valid.
+     */
+    public byte[] getLabel() {
+        return label;
+    }
+
+    /**
+     * Getter for length of label.
+     * @return number of bytes of label.
+     */
+    public int getLabelLength() {
+        return labelLength;
+    }
+
+    /**
+     * Method checks, if command is valid (its name and number of arguments are correct).
+     * @return true, if command is valid; false, if it is not.
+     */
+    public boolean isValid() {
+        return command != null;
+    }
+
+    /**
+     * Method checks, if the line was exactly "end", which finishes the input.
+     * @return true, if the line was "end"; false, if it was not.
+     */
+    public boolean isEnd() {
+        return end;
+    }
+
+    /**
+     * Getter for command.
+     * @return command type; null, if command is invalid.
+     */
+    public CommandType getCommand() {
+        return command;
+    }
+
+    /**
+     * Getter for device type.
+     * @return device type; null, if command names unknown type.
+     */
+    public DeviceType getDeviceType() {
+        return type;
+    }
+
+    /**
+     * Getter for device ID.
+     * @return ID of device.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Getter for value.
+     * @return number argument, or ordinal of enum argument (UNKNOWN, if it is not appropriate).
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * Method that stores command for one device into RECORD ints of the array.
+     * @param records array of records.
+     * @param at position of the record.
+     */
+    public void store(int[] records, int at) {
+        records[at] = command == null ? UNKNOWN : command.ordinal();
+        records[at + 1] = type == null ? UNKNOWN : type.ordinal();
+        records[at + 2] = id;
+        records[at + 3] = value;
+    }
+
+    /**
+     * Method that loads command stored by store().
+     * @param records array of records.
+     * @param at position of the record.
+     */
+    public void load(int[] records, int at) {
+        command = records[at] == UNKNOWN ? null : COMMANDS[records[at]];
+        type = records[at + 1] == UNKNOWN ? null : TYPES[records[at + 1]];
+        id = records[at + 2];
+        value = records[at + 3];
+        end = false;
+        selector = SINGLE;
+    }
 }
 
 
 /**
- * Class CommandManager implements methods corresponding to input commands,
- * and methods that are used in command methods' implementation.
- * Constants introduced in this class represent numerical constants used in command validation,
- * command names, error messages, and success messages.
+ * Class CommandParser parses command lines right from bytes of a ByteBuffer.
+ * Arguments are split by single spaces like String.split(" ") does,
+ * command names, device types and enum arguments are resolved by comparing bytes,
+ * and numbers are parsed from digits, so parsing creates no objects.
+ * Numbers that are not valid ints (and not selectors of group commands) make the command invalid.
+ * Parser is not thread-safe: every thread needs its own parser.
  */
-class CommandManager {
-    //command validation
-    private static final int TEMPLATE1 = 1;
-    private static final int TEMPLATE2 = 3;
-    private static final int TEMPLATE3 = 4;
-    private static final int THIRD_ARG = 3;
-    static final int MIN_LIGHT_ID = 0;
-    static final int MAX_LIGHT_ID = 3;
-    static final int MIN_CAMERA_ID = 4;
-    static final int MAX_CAMERA_ID = 5;
-    static final int MIN_HEATER_ID = 6;
-    static final int MAX_HEATER_ID = 9;
-
-    //commands
-    private static final String DISP_ALL = "DisplayAllStatus";
-    private static final String TRN_ON = "TurnOn";
-    private static final String TRN_OFF = "TurnOff";
-    private static final String SRT_CHG = "StartCharging";
-    private static final String STP_CHG = "StopCharging";
-    private static final String ST_TEMP = "SetTemperature";
-    private static final String ST_BRIGHT = "SetBrightness";
-    private static final String ST_CLR = "SetColor";
-    private static final String ST_ANG = "SetAngle";
-    private static final String SRT_REC = "StartRecording";
-    private static final String STP_REC = "StopRecording";
-    private static final String END = "end";
+class CommandParser {
+    static final Light.BrightnessLevel[] BRIGHTNESS = Light.BrightnessLevel.values();
+    static final byte[][] BRIGHTNESS_TOKENS = tokens(BRIGHTNESS);
+    static final Light.LightColor[] COLORS = Light.LightColor.values();
+    static final byte[][] COLOR_TOKENS = tokens(COLORS);
+    //attributes of Count command
+    static final int ON = 0;
+    static final int OFF = 1;
+    static final int CHARGING = 2;
+    static final int RECORDING = 3;
+    static final byte[][] ATTRIBUTE_TOKENS = {
+        ReplyBuffer.ascii("ON"), ReplyBuffer.ascii("OFF"), ReplyBuffer.ascii("CHARGING"), ReplyBuffer.ascii("RECORDING")
+    };
+    private static final CommandType[] COMMANDS = CommandType.values();
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private static final int MAX_ARGS = 4;
+    private static final int TYPE_ARG = 1;
+    private static final int ID_ARG = 2;
+    private static final int VALUE_ARG = 3;
+    private final int[] starts = new int[MAX_ARGS];
+    private final int[] ends = new int[MAX_ARGS];
+    private int first;
+    private int last;
 
-    //errors
-    private static final String INV_COM = "Invalid command";
-    private static final String NOT_FOUND = "The smart device was not found";
-    private static final String NON_CHG = " is not chargeable";
-    private static final String NOT_HEAT = " is not a heater";
-    private static final String WR_BRIGHT = "The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\"";
-    private static final String NOT_LIGHT = " is not a light";
-    private static final String WR_CLR = "The light color can only be \"YELLOW\" or \"WHITE\"";
-    private static final String NOT_CAM = " is not a camera";
-    private static final String ALR_OFF = " is already off";
-    private static final String ALR_ON = " is already on";
-    private static final String STAT_CHG_PT_1 = "You can't change the status of the ";
-    private static final String STAT_CHG_PT_2 = " while it is off";
-    private static final String WR_ANG = " angle should be in the range [-60, 60]";
-    private static final String ALR_REC = " is already recording";
-    private static final String NOT_REC = " is not recording";
-    private static final String ALR_CHG = " is already charging";
-    private static final String NOT_CHG = " is not charging";
-    private static final String WR_TEMP = " temperature should be in the range [15, 30]";
+    /**
+     * Method that parses the next line of the buffer, if the whole line is there.
+     * Lines end with '\n', '\r' or "\r\n".
+     * @param in buffer with command lines, its position is moved past the parsed line.
+     * @param command parsed command to be filled.
+     * @return true, if the line was parsed; false, if buffer has no whole line (its position is not moved).
+     */
+    public boolean parseLine(ByteBuffer in, ParsedCommand command) {
+        int limit = in.limit();
+        for (int i = in.position(); i < limit; i++) {
+            byte b = in.get(i);
+            if (b == '\n' || b == '\r') {
+                if (b == '\r' && i + 1 == limit) {
+                    //"\n" may follow in the next batch.
+                    return false;
+                }
+                this.parse(in, in.position(), i, command);
+                in.position(b == '\r' && in.get(i + 1) == '\n' ? i + 2 : i + 1);
+                return true;
+            }
+        }
+        return false;
+    }
 
-    //success messages
-    private static final String IS_ON = " is on";
-    private static final String IS_OFF = " is off";
-    private static final String IS_CHG = " is charging";
-    private static final String STPD_CHG = " stopped charging";
-    private static final String TEMP_READY = " temperature is set to ";
-    private static final String BRIGHT_READY = " brightness level is set to ";
-    private static final String CLR_READY = " color is set to ";
-    private static final String ANG_READY = " angle is set to ";
-    private static final String IS_REC = " started recording";
-    private static final String STPD_REC = " stopped recording";
+    /**
+     * Method that parses the rest of the buffer as the last line, that has no line end.
+     * @param in buffer with command line, its position is moved to its limit.
+     * @param command parsed command to be filled.
+     * @return true, if the line was parsed; false, if buffer has nothing left.
+     */
+    public boolean parseLast(ByteBuffer in, ParsedCommand command) {
+        if (this.parseLine(in, command)) {
+            return true;
+        }
+        int end = in.limit();
+        if (end > in.position() && in.get(end - 1) == '\r') {
+            end--;
+        } else if (end == in.position()) {
+            return false;
+        }
+        this.parse(in, in.position(), end, command);
+        in.position(in.limit());
+        return true;
+    }
 
     /**
-     * Constructor for class CommandManager.
+     * Method that parses one line.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the line.
+     * @param to position after the last byte of the line (without line end).
+     * @param command parsed command to be filled.
      */
-    public CommandManager() { }
+    void parse(ByteBuffer in, int from, int to, ParsedCommand command) {
+        int args = this.split(in, from, to);
+        CommandType type = args == 0 ? null : matchCommand(in, starts[0], ends[0]);
+        if (type == null || args != type.getTemplate()) {
+            command.set(null, null, 0, 0, false);
+            return;
+        }
+        if (args == 1) {
+            command.set(type, null, 0, 0, type == CommandType.END && to - from == type.getToken().length);
+            return;
+        }
+        DeviceType device = matchType(in, starts[TYPE_ARG], ends[TYPE_ARG]);
+        long id = parseInt(in, starts[ID_ARG], ends[ID_ARG]);
+        int selector = id == Long.MIN_VALUE ? this.parseSelector(in, starts[ID_ARG], ends[ID_ARG]) : ParsedCommand.SINGLE;
+        long value = 0;
+        if (type == CommandType.SET_TEMPERATURE || type == CommandType.SET_ANGLE) {
+            value = parseInt(in, starts[VALUE_ARG], ends[VALUE_ARG]);
+        } else if (type == CommandType.SET_BRIGHTNESS) {
+            value = indexOf(in, starts[VALUE_ARG], ends[VALUE_ARG], BRIGHTNESS_TOKENS);
+        } else if (type == CommandType.SET_COLOR) {
+            value = indexOf(in, starts[VALUE_ARG], ends[VALUE_ARG], COLOR_TOKENS);
+        } else if (type == CommandType.COUNT) {
+            value = indexOf(in, starts[VALUE_ARG], ends[VALUE_ARG], ATTRIBUTE_TOKENS);
+        }
+        if (selector == ParsedCommand.UNKNOWN || value == Long.MIN_VALUE) {
+            command.set(null, null, 0, 0, false);
+            return;
+        }
+        command.set(type, device, (int) id, (int) value, false);
+        if (selector != ParsedCommand.SINGLE) {
+            command.setSelector(selector, first, last, in, starts[ID_ARG], ends[ID_ARG]);
+        }
+        if (type == CommandType.TAG) {
+            command.setLabel(in, starts[VALUE_ARG], ends[VALUE_ARG]);
+        }
+    }
 
     /**
-     * Method that takes whole command string, checks command name and number of attributes,
-     * and call corresponding method or output error message.
-     * @param command whole command string containing command name and attributes (if any).
-     * @param devices array of devices, available for user.
-     */
-    public void detectCommand(String command, SmartDevice[] devices) {
-        //Split command string into separated arguments.
-        String[] args = command.split(" ");
-        switch (args[0]) {
-            case DISP_ALL:
-                if (args.length == TEMPLATE1) {
-                    this.displayAllStatus(devices); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case TRN_ON:
-                if (args.length == TEMPLATE2) {
-                    this.turnOn(devices, args[1], Integer.parseInt(args[2])); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case TRN_OFF:
-                if (args.length == TEMPLATE2) {
-                    this.turnOff(devices, args[1], Integer.parseInt(args[2])); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case SRT_CHG:
-                if (args.length == TEMPLATE2) {
-                    this.startCharging(devices, args[1], Integer.parseInt(args[2])); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case STP_CHG:
-                if (args.length == TEMPLATE2) {
-                    this.stopCharging(devices, args[1], Integer.parseInt(args[2])); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case ST_TEMP:
-                if (args.length == TEMPLATE3) {
-                    this.setTemp(devices, args[1], Integer.parseInt(args[2]), Integer.parseInt(args[THIRD_ARG])); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case ST_BRIGHT:
-                if (args.length == TEMPLATE3) {
-                    this.setBrightness(devices, args[1], Integer.parseInt(args[2]), args[THIRD_ARG]); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case ST_CLR:
-                if (args.length == TEMPLATE3) {
-                    this.setColor(devices, args[1], Integer.parseInt(args[2]), args[THIRD_ARG]); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case ST_ANG:
-                if (args.length == TEMPLATE3) {
-                    this.setAngle(devices, args[1], Integer.parseInt(args[2]), Integer.parseInt(args[THIRD_ARG]));
-                    break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case SRT_REC:
-                if (args.length == TEMPLATE2) {
-                    this.startRecord(devices, args[1], Integer.parseInt(args[2])); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case STP_REC:
-                if (args.length == TEMPLATE2) {
-                    this.stopRecord(devices, args[1], Integer.parseInt(args[2])); break;
-                } else {
-                    System.out.println(INV_COM); break;
-                }
-            case END:
-                if (args.length == TEMPLATE1) {
-                    break;
-                } else {
-                    System.out.println(INV_COM); break;
+     * Method that parses selector of group command: "*", "first-last" or "#tag".
+     * First and last ID of range are kept in first and last.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the selector.
+     * @param to position after the last byte of the selector.
+     * @return kind of selector; ParsedCommand.UNKNOWN, if it is not a valid selector.
+     */
+    private int parseSelector(ByteBuffer in, int from, int to) {
+        if (to - from == 1 && in.get(from) == '*') {
+            return ParsedCommand.ALL;
+        }
+        if (to - from > 1 && in.get(from) == '#') {
+            return ParsedCommand.TAG;
+        }
+        for (int i = from + 1; i < to; i++) {
+            if (in.get(i) == '-') {
+                long firstId = parseInt(in, from, i);
+                long lastId = parseInt(in, i + 1, to);
+                if (firstId == Long.MIN_VALUE || lastId == Long.MIN_VALUE || firstId > lastId) {
+                    return ParsedCommand.UNKNOWN;
                 }
-            default: System.out.println(INV_COM);
+                first = (int) firstId;
+                last = (int) lastId;
+                return ParsedCommand.RANGE;
+            }
         }
+        return ParsedCommand.UNKNOWN;
     }
 
     /**
-     * Method that checks, if the device with such name and ID exists in system.
-     * All command methods use this method.
-     * @param name name of device.
-     * @param id ID of device.
-     * @return true, if such device exists in system; false, if it does not.
+     * Method that splits line into arguments by single spaces like String.split(" "):
+     * arguments may be empty, but trailing empty arguments are dropped.
+     * Bounds of first MAX_ARGS arguments are kept in starts and ends.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the line.
+     * @param to position after the last byte of the line.
+     * @return number of arguments.
      */
-    public boolean deviceCheck(String name, int id) {
-        switch (name) {
-            case "Camera":
-                if (MIN_CAMERA_ID <= id && id <= MAX_CAMERA_ID) {
-                    return true;
-                }
-                return false;
-            case "Light":
-                if (MIN_LIGHT_ID <= id && id <= MAX_LIGHT_ID) {
-                    return true;
-                }
-                return false;
-            case "Heater":
-                if (MIN_HEATER_ID <= id && id <= MAX_HEATER_ID) {
-                    return true;
+    private int split(ByteBuffer in, int from, int to) {
+        if (from == to) {
+            //Like split(), empty line has one empty argument.
+            starts[0] = from;
+            ends[0] = from;
+            return 1;
+        }
+        while (to > from && in.get(to - 1) == ' ') {
+            to--;
+        }
+        if (to == from) {
+            return 0;
+        }
+        int args = 0;
+        int start = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || in.get(i) == ' ') {
+                if (args < MAX_ARGS) {
+                    starts[args] = start;
+                    ends[args] = i;
                 }
-                return false;
-            default: return false;
+                args++;
+                start = i + 1;
+            }
         }
+        return args;
     }
 
     /**
-     * Method that output current status strings of all devices in system.
-     * @param devices array of devices, available for user.
+     * Method that finds command, whose name equals the argument.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the argument.
+     * @param to position after the last byte of the argument.
+     * @return command with such name; null, if there is no such command.
      */
-    public void displayAllStatus(SmartDevice[] devices) {
-        for (int i = 0; i < devices.length; i++) {
-            System.out.println(devices[i].displayStatus());
+    private static CommandType matchCommand(ByteBuffer in, int from, int to) {
+        for (CommandType command : COMMANDS) {
+            if (equals(in, from, to, command.getToken())) {
+                return command;
+            }
         }
+        return null;
     }
 
     /**
-     * Method that output checks existence of device,
-     * turns device on, if it was off, or output error message, if it was on.
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
+     * Method that finds device type, whose name equals the argument.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the argument.
+     * @param to position after the last byte of the argument.
+     * @return device type with such name; null, if there is no such type.
      */
-    public void turnOn(SmartDevice[] devices, String name, int id) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    private static DeviceType matchType(ByteBuffer in, int from, int to) {
+        for (DeviceType type : TYPES) {
+            if (equals(in, from, to, type.getToken())) {
+                return type;
+            }
         }
-        if (devices[id].turnOn()) {
-            System.out.println(name + " " + id + IS_ON);
-        } else {
-            System.out.println(name + " " + id + ALR_ON);
+        return null;
+    }
+
+    /**
+     * Method that finds token equal to the argument.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the argument.
+     * @param to position after the last byte of the argument.
+     * @param tokens tokens to be compared with.
+     * @return index of such token; ParsedCommand.UNKNOWN, if there is no such token.
+     */
+    private static int indexOf(ByteBuffer in, int from, int to, byte[][] tokens) {
+        for (int i = 0; i < tokens.length; i++) {
+            if (equals(in, from, to, tokens[i])) {
+                return i;
+            }
         }
+        return ParsedCommand.UNKNOWN;
     }
 
     /**
-     * Method that turns device off, if it was on, or output error message, if it was off.
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
+     * Method checks, if the argument equals the token.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the argument.
+     * @param to position after the last byte of the argument.
+     * @param token token to be compared with.
+     * @return true, if argument equals token; false, if it does not.
      */
-    public void turnOff(SmartDevice[] devices, String name, int id) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    private static boolean equals(ByteBuffer in, int from, int to, byte[] token) {
+        if (to - from != token.length) {
+            return false;
         }
-        if (devices[id].turnOff()) {
-            System.out.println(name + " " + id + IS_OFF);
-        }  else {
-            System.out.println(name + " " + id + ALR_OFF);
+        for (int i = 0; i < token.length; i++) {
+            if (in.get(from + i) != token[i]) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
-     * Method that starts charging device, if it was not charging, or output error message, if it was already charging.
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
+     * Method that parses int like Integer.parseInt does.
+     * @param in buffer with command line.
+     * @param from position of the first byte of the argument.
+     * @param to position after the last byte of the argument.
+     * @return parsed int; Long.MIN_VALUE, if the argument is not a valid int.
      */
-    public void startCharging(SmartDevice[] devices, String name, int id) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    private static long parseInt(ByteBuffer in, int from, int to) {
+        boolean negative = from < to && in.get(from) == '-';
+        if (from < to && (negative || in.get(from) == '+')) {
+            from++;
         }
-        //Determine the device type to call type-specified startCharging() method.
-        switch (name) {
-            case "Heater":
-                //Heaters are not chargeable.
-                System.out.println(name + " " + id + NON_CHG);
-                return;
-            case "Camera":
-                Camera cam = (Camera) devices[id];
-                if (cam.startCharging()) {
-                    System.out.println(name + " " + id + IS_CHG); break;
-                } else {
-                    System.out.println(name + " " + id + ALR_CHG); break;
-                }
-            case "Light":
-                Light lit = (Light) devices[id];
-                if (lit.startCharging()) {
-                    System.out.println(name + " " + id + IS_CHG); break;
-                } else {
-                    System.out.println(name + " " + id + ALR_CHG); break;
-                }
-            default: break;
+        if (from == to) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = in.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Long.MIN_VALUE;
+            }
+        }
+        if (negative) {
+            return -value;
         }
+        return value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
     }
 
     /**
-     * Method that stops charging device, if it was charging, or output error message, if it was not charging.
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
+     * Method that takes names of enum constants as bytes.
+     * @param values enum constants.
+     * @return names of constants as bytes.
      */
-    public void stopCharging(SmartDevice[] devices, String name, int id) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    private static byte[][] tokens(Enum<?>[] values) {
+        byte[][] tokens = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            tokens[i] = ReplyBuffer.ascii(values[i].name());
         }
-        //Determine the device type to call type-specified startCharging() method.
-        switch (name) {
-            case "Heater":
-                //Heaters are not chargeable.
-                System.out.println(name + " " + id + NON_CHG);
-                return;
-            case "Camera":
-                Camera cam = (Camera) devices[id];
-                if (cam.stopCharging()) {
-                    System.out.println(name + " " + id + STPD_CHG); break;
-                } else {
-                    System.out.println(name + " " + id + NOT_CHG); break;
-                }
-            case "Light":
-                Light lit = (Light) devices[id];
-                if (lit.stopCharging()) {
-                    System.out.println(name + " " + id + STPD_CHG); break;
-                } else {
-                    System.out.println(name + " " + id + NOT_CHG); break;
-                }
-            default: break;
+        return tokens;
+    }
+}
+
+
+/**
+ * Class ReplyBuffer collects replies as bytes in one reusable array
+ * and writes them to the stream only on flush() or when enough replies are collected.
+ * Replies are written to the stream whole, under the lock of the stream,
+ * so buffers of different threads can share one stream.
+ * Numbers are written digit by digit, so no strings are created.
+ */
+class ReplyBuffer {
+    static final int FLUSH_SIZE = 1 << 16;
+    private static final int MAX_DIGITS = 11;
+    private final OutputStream sink;
+    private byte[] buffer = new byte[FLUSH_SIZE];
+    private int size;
+
+    /**
+     * Constructor for class ReplyBuffer.
+     * @param sink stream for replies.
+     */
+    public ReplyBuffer(OutputStream sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Method that converts ASCII string into bytes.
+     * @param text ASCII string.
+     * @return bytes of the string.
+     */
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Method that makes room for given number of bytes.
+     * @param length number of bytes to be appended.
+     */
+    private void ensure(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
         }
     }
 
     /**
-     * Method that checks that if the device is heater (if not output, error message),
-     * and sets new temperature value for it (if temperature is out of range, output error message).
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
-     * @param temp temperature of heater.
+     * Method that appends bytes.
+     * @param bytes bytes to be appended.
+     * @return this buffer.
      */
-    public void setTemp(SmartDevice[] devices, String name, int id, int temp) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    public ReplyBuffer append(byte[] bytes) {
+        this.ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Method that appends first bytes of the array.
+     * @param bytes bytes to be appended.
+     * @param length number of bytes to be appended.
+     * @return this buffer.
+     */
+    public ReplyBuffer append(byte[] bytes, int length) {
+        this.ensure(length);
+        System.arraycopy(bytes, 0, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Method that appends one ASCII character.
+     * @param c character to be appended.
+     * @return this buffer.
+     */
+    public ReplyBuffer append(char c) {
+        this.ensure(1);
+        buffer[size++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Method that appends decimal representation of the number.
+     * @param value number to be appended.
+     * @return this buffer.
+     */
+    public ReplyBuffer append(int value) {
+        this.ensure(MAX_DIGITS);
+        long rest = value;
+        if (rest < 0) {
+            buffer[size++] = '-';
+            rest = -rest;
         }
-        if (!devices[id].checkStatusAccess()) {
-            System.out.println(STAT_CHG_PT_1 + name + " " + id + STAT_CHG_PT_2);
-            return;
+        int digits = 1;
+        for (long power = 10; power <= rest; power *= 10) {
+            digits++;
         }
-        if (!name.equals("Heater")) {
-            System.out.println(name + " " + id + NOT_HEAT);
-            return;
+        int end = size + digits;
+        size = end;
+        do {
+            buffer[--end] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest > 0);
+        return this;
+    }
+
+    /**
+     * Method that appends ASCII string.
+     * @param text string to be appended.
+     * @return this buffer.
+     */
+    public ReplyBuffer append(String text) {
+        this.ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[size++] = (byte) text.charAt(i);
         }
-        Heater heater = (Heater) devices[id];
-        if (heater.setTemperature(temp)) {
-            System.out.println(name + " " + id + TEMP_READY + temp);
-        } else {
-            System.out.println(name + " " + id + WR_TEMP);
+        return this;
+    }
+
+    /**
+     * Method that ends the reply line. When enough replies are collected, they are written to the stream.
+     * @return this buffer.
+     */
+    public ReplyBuffer newLine() {
+        this.append('\n');
+        if (size >= FLUSH_SIZE) {
+            this.flush();
         }
+        return this;
     }
 
     /**
-     * Method that checks that if the device is light (if not, output error message),
-     * and sets new brightness level for it (if brightness level is not appropriate, output error message).
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
-     * @param bright brightness level of light.
+     * Method that writes collected replies to the stream.
      */
-    public void setBrightness(SmartDevice[] devices, String name, int id, String bright) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
+    public void flush() {
+        if (size == 0) {
             return;
         }
-        if (!devices[id].checkStatusAccess()) {
-            System.out.println(STAT_CHG_PT_1 + name + " " + id + STAT_CHG_PT_2);
-            return;
+        try {
+            synchronized (sink) {
+                sink.write(buffer, 0, size);
+                sink.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        if (!name.equals("Light")) {
-            System.out.println(name + " " + id + NOT_LIGHT);
-            return;
+        size = 0;
+    }
+}
+
+
+/**
+ * Class CommandEngine processes commands from many controllers concurrently.
+ * Every device belongs to one worker thread, chosen by device's slot in registry:
+ * consecutive slots go to the same worker in stripes of STRIPE devices.
+ * Worker is the only thread that executes commands for its devices, so device classes need no locks,
+ * and commands of one controller to one device are executed in the order they were submitted.
+ * Commands to devices of different workers are executed in parallel,
+ * so replies to different devices can be printed in any order.
+ * Controllers parse commands and collect them in batches of int records for every worker,
+ * and pass full batches to workers' queues. Every worker writes replies of a batch into its own ReplyBuffer.
+ * DisplayAllStatus, group commands and tags touch many devices, so they are executed while all workers are paused.
+ * Registry must not change while engine is running.
+ */
+class CommandEngine {
+    static final int BATCH_SIZE = 256;
+    static final int QUEUE_SIZE = 64;
+    //Stripe is a long of bitsets of DeviceStore, so workers never write the same long.
+    static final int STRIPE_SHIFT = DeviceRegistry.WORD_SHIFT;
+    static final int STRIPE = 1 << STRIPE_SHIFT;
+    private final DeviceRegistry devices;
+    private final OutputStream out;
+    private final Worker[] workers;
+    private final Object pauseLock = new Object();
+
+    /**
+     * Constructor for class CommandEngine. It starts worker threads.
+     * @param devices registry of devices, available for user.
+     * @param threads number of worker threads.
+     * @param out stream for replies to commands.
+     */
+    public CommandEngine(DeviceRegistry devices, int threads, OutputStream out) {
+        this.devices = devices;
+        this.out = out;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(new CommandManager(out));
+            workers[i].start();
         }
-        Light lit = (Light) devices[id];
-        //Checks content of string bright to set appropriate brightness level.
-        switch (bright) {
-            case "LOW":
-                lit.setBrightnessLevel(Light.BrightnessLevel.LOW);
-                System.out.println(name + " " + id + BRIGHT_READY + bright);
-                break;
-            case "MEDIUM":
-                lit.setBrightnessLevel(Light.BrightnessLevel.MEDIUM);
-                System.out.println(name + " " + id + BRIGHT_READY + bright);
-                break;
-            case "HIGH":
-                lit.setBrightnessLevel(Light.BrightnessLevel.HIGH);
-                System.out.println(name + " " + id + BRIGHT_READY + bright);
+    }
+
+    /**
+     * Method that creates new controller. Every controller should be used by one thread.
+     * @return new controller of this engine.
+     */
+    public Controller newController() {
+        return new Controller();
+    }
+
+    /**
+     * Method that finds worker of device by its slot.
+     * @param slot slot of device.
+     * @return worker that executes commands for this device.
+     */
+    private int workerOf(int slot) {
+        return (slot >>> STRIPE_SHIFT) % workers.length;
+    }
+
+    /**
+     * Method that pauses all workers after they finish commands submitted before,
+     * runs given action, and resumes workers. Only one pause can be done at a time.
+     * @param action action to be run while workers are paused (may be null).
+     */
+    public void pauseAndRun(Runnable action) {
+        synchronized (pauseLock) {
+            CountDownLatch paused = new CountDownLatch(workers.length);
+            CountDownLatch resumed = new CountDownLatch(1);
+            for (Worker worker : workers) {
+                worker.put(new Batch(paused, resumed));
+            }
+            try {
+                await(paused);
+                if (action != null) {
+                    action.run();
+                }
+            } finally {
+                resumed.countDown();
+            }
+        }
+    }
+
+    /**
+     * Method that stops all workers after they finish submitted commands.
+     */
+    public void close() {
+        for (Worker worker : workers) {
+            worker.put(new Batch(null, null));
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Method that waits for latch without being interrupted.
+     * @param latch latch to be waited for.
+     */
+    private static void await(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
                 break;
-            default: System.out.println(WR_BRIGHT);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Method that checks that if the device is light (if not, output error message),
-     * and sets new light color for it (if light color is not appropriate, output error message).
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
-     * @param clr color of light.
+     * Class Controller submits commands of one thread to the engine.
      */
-    public void setColor(SmartDevice[] devices, String name, int id, String clr) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    class Controller {
+        private final Batch[] pending = new Batch[workers.length];
+        private final CommandManager manager = new CommandManager(out);
+        private final CommandParser parser = new CommandParser();
+        private final ParsedCommand parsed = new ParsedCommand();
+
+        /**
+         * Method that parses all whole command lines of the buffer, and routes every command to worker of its device.
+         * Commands that do not name a registered device need no worker and are executed at once.
+         * @param in buffer with command lines, its position is moved past the last whole line.
+         */
+        public void submit(ByteBuffer in) {
+            while (parser.parseLine(in, parsed)) {
+                this.route();
+            }
+            manager.flush();
         }
-        if (!devices[id].checkStatusAccess()) {
-            System.out.println(STAT_CHG_PT_1 + name + " " + id + STAT_CHG_PT_2);
-            return;
+
+        /**
+         * Method that routes one command to worker of its device.
+         * @param command whole command string containing command name and attributes (if any).
+         */
+        public void submit(String command) {
+            byte[] line = command.getBytes(StandardCharsets.ISO_8859_1);
+            parser.parse(ByteBuffer.wrap(line), 0, line.length, parsed);
+            this.route();
+            manager.flush();
         }
-        if (!name.equals("Light")) {
-            System.out.println(name + " " + id + NOT_LIGHT);
-            return;
+
+        /**
+         * Method that routes parsed command to worker of its device.
+         */
+        private void route() {
+            if (parsed.isGlobal()) {
+                flush();
+                pauseAndRun(() -> {
+                    manager.execute(parsed, devices);
+                    manager.flush();
+                });
+                return;
+            }
+            int slot = parsed.getDeviceType() == null ? IntIntMap.MISSING : devices.slotOf(parsed.getId());
+            if (slot == IntIntMap.MISSING) {
+                manager.execute(parsed, devices);
+                return;
+            }
+            int worker = workerOf(slot);
+            if (pending[worker] == null) {
+                pending[worker] = new Batch(BATCH_SIZE);
+            }
+            pending[worker].add(parsed);
+            if (pending[worker].isFull()) {
+                workers[worker].put(pending[worker]);
+                pending[worker] = null;
+            }
         }
-        Light lit = (Light) devices[id];
-        //Checks content of string clr to set appropriate light color.
-        switch (clr) {
-            case "WHITE":
-                System.out.println(name + " " + id + CLR_READY + clr);
-                lit.setLightColor(Light.LightColor.WHITE);
-                break;
-            case "YELLOW":
-                System.out.println(name + " " + id + CLR_READY + clr);
-                lit.setLightColor(Light.LightColor.YELLOW);
-                break;
-            default:System.out.println(WR_CLR);
+
+        /**
+         * Method that passes all collected commands to workers.
+         */
+        public void flush() {
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i] != null) {
+                    workers[i].put(pending[i]);
+                    pending[i] = null;
+                }
+            }
         }
     }
 
     /**
-     * Method that checks that if the device is camera (if not, output error message),
-     * and sets new angle for it (if angle is out of range, output error message).
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
-     * @param angle angle of camera.
+     * Class Batch is a group of parsed commands passed to worker at once, stored as int records.
+     * Batch with latches is a pause: worker counts down first latch, and waits for second one.
+     * Batch without commands and latches stops worker.
      */
-    public void setAngle(SmartDevice[] devices, String name, int id, int angle) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    static class Batch {
+        private final int[] commands;
+        private int size;
+        private final CountDownLatch paused;
+        private final CountDownLatch resumed;
+
+        /**
+         * Constructor for batch of commands.
+         * @param capacity maximal number of commands in batch.
+         */
+        Batch(int capacity) {
+            this.commands = new int[capacity * ParsedCommand.RECORD];
+            this.paused = null;
+            this.resumed = null;
         }
-        if (!devices[id].checkStatusAccess()) {
-            System.out.println(STAT_CHG_PT_1 + name + " " + id + STAT_CHG_PT_2);
-            return;
+
+        /**
+         * Constructor for pause (or stop, if latches are null).
+         * @param paused latch counted down by worker, when it is paused.
+         * @param resumed latch waited by paused worker.
+         */
+        Batch(CountDownLatch paused, CountDownLatch resumed) {
+            this.commands = null;
+            this.paused = paused;
+            this.resumed = resumed;
         }
-        if (!name.equals("Camera")) {
-            System.out.println(name + " " + id + NOT_CAM);
-            return;
+
+        /**
+         * Method that adds command to batch.
+         * @param command command to be added.
+         */
+        void add(ParsedCommand command) {
+            command.store(commands, size * ParsedCommand.RECORD);
+            size++;
         }
-        Camera cam = (Camera) devices[id];
-        if (cam.setCameraAngle(angle)) {
-            System.out.println(name + " " + id + ANG_READY + angle);
-        } else {
-            System.out.println(name + " " + id + WR_ANG);
+
+        /**
+         * Method checks, if batch cannot take more commands.
+         * @return true, if batch is full; false, if it is not.
+         */
+        boolean isFull() {
+            return size * ParsedCommand.RECORD == commands.length;
         }
     }
 
     /**
-     * Method that checks that if the device is camera (if not, output error message),
-     * and starts recording on it (if camera was already recording, output error message).
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
+     * Class Worker executes commands for devices of its stripes, one batch after another.
      */
-    public void startRecord(SmartDevice[] devices, String name, int id) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    class Worker extends Thread {
+        private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final CommandManager manager;
+        private final ParsedCommand parsed = new ParsedCommand();
+
+        /**
+         * Constructor for class Worker.
+         * @param manager manager that executes commands of this worker.
+         */
+        Worker(CommandManager manager) {
+            this.manager = manager;
+            setDaemon(true);
         }
-        if (!devices[id].checkStatusAccess()) {
-            System.out.println(STAT_CHG_PT_1 + name + " " + id + STAT_CHG_PT_2);
-            return;
+
+        /**
+         * Method that passes batch to this worker, waiting for room in its queue.
+         * @param batch batch to be passed.
+         */
+        void put(Batch batch) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(batch);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
-        if (!name.equals("Camera")) {
-            System.out.println(name + " " + id + NOT_CAM);
-            return;
+
+        /**
+         * Method that executes batches until worker is stopped.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch batch = queue.take();
+                    if (batch.commands != null) {
+                        for (int i = 0; i < batch.size; i++) {
+                            parsed.load(batch.commands, i * ParsedCommand.RECORD);
+                            manager.execute(parsed, devices);
+                        }
+                        manager.flush();
+                    } else if (batch.paused != null) {
+                        batch.paused.countDown();
+                        await(batch.resumed);
+                    } else {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        Camera cam = (Camera) devices[id];
-        if (cam.startRecording()) {
-            System.out.println(name + " " + id + IS_REC);
-        } else {
-            System.out.println(name + " " + id + ALR_REC);
+    }
+}
+
+
+/**
+ * Class ScalingReport measures, how many commands per second CommandEngine processes
+ * with 1 to N worker threads. Every thread also runs one controller, which submits its share of commands.
+ * Commands are random per-device commands (valid and invalid), replies are discarded.
+ */
+class ScalingReport {
+    static final int DEVICES = 200_000;
+    static final int COMMANDS = 2_000_000;
+    private static final int SEED = 42;
+    private static final int KINDS = 6;
+    private static final int TEMP_RANGE = 20;
+    private static final int ANGLE_RANGE = 140;
+    private static final int TEMP_BASE = 12;
+
+    /**
+     * Constructor for class ScalingReport.
+     */
+    private ScalingReport() { }
+
+    /**
+     * Method that prints commands per second for every number of threads.
+     * @param args "--scaling", optional number of devices, number of commands and maximal number of threads.
+     * @throws InterruptedException if measurement is interrupted.
+     */
+    public static void run(String[] args) throws InterruptedException {
+        int deviceCount = args.length > 1 ? Integer.parseInt(args[1]) : DEVICES;
+        int commandCount = args.length > 2 ? Integer.parseInt(args[2]) : COMMANDS;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        DeviceRegistry devices = SmartHomeManagementSystem.createDevices(
+                deviceCount * 2 / 5, deviceCount / 5, deviceCount - deviceCount * 2 / 5 - deviceCount / 5);
+        String[] commands = generate(devices, commandCount);
+        OutputStream sink = OutputStream.nullOutputStream();
+        //Warm-up run is not reported.
+        measure(devices, commands, maxThreads, sink);
+        System.out.println("threads commands/sec");
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            System.out.printf("%d %.0f%n", threads, measure(devices, commands, threads, sink));
         }
     }
 
     /**
-     * Method that checks that if the device is camera (if not, output error message),
-     * and stops recording on it (if camera was not recording, output error message).
-     * @param devices array of devices, available for user.
-     * @param name name of device.
-     * @param id ID of device.
+     * Method that submits all commands to new engine, and waits until they are executed.
+     * @param devices registry of devices.
+     * @param commands commands to be executed.
+     * @param threads number of workers and controllers; every controller submits input in batches.
+     * @param sink stream for replies.
+     * @return commands per second.
+     * @throws InterruptedException if measurement is interrupted.
      */
-    public void stopRecord(SmartDevice[] devices, String name, int id) {
-        if (!deviceCheck(name, id)) {
-            System.out.println(NOT_FOUND);
-            return;
+    static double measure(DeviceRegistry devices, String[] commands, int threads, OutputStream sink)
+            throws InterruptedException {
+        CommandEngine engine = new CommandEngine(devices, threads, sink);
+        Thread[] controllers = new Thread[threads];
+        ByteBuffer[] inputs = new ByteBuffer[threads];
+        for (int t = 0; t < threads; t++) {
+            int from = (int) ((long) commands.length * t / threads);
+            int to = (int) ((long) commands.length * (t + 1) / threads);
+            inputs[t] = ByteBuffer.wrap((String.join("\n", Arrays.asList(commands).subList(from, to)) + "\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
         }
-        if (!devices[id].checkStatusAccess()) {
-            System.out.println(STAT_CHG_PT_1 + name + " " + id + STAT_CHG_PT_2);
-            return;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            ByteBuffer input = inputs[t];
+            controllers[t] = new Thread(() -> {
+                CommandEngine.Controller controller = engine.newController();
+                while (input.hasRemaining()) {
+                    ByteBuffer batch = input.slice();
+                    batch.limit(Math.min(batch.limit(), CommandManager.INPUT_BUFFER));
+                    controller.submit(batch);
+                    input.position(input.position() + batch.position());
+                }
+                controller.flush();
+            });
+            controllers[t].start();
         }
-        if (!name.equals("Camera")) {
-            System.out.println(name + " " + id + NOT_CAM);
-            return;
+        for (Thread controller : controllers) {
+            controller.join();
         }
-        Camera cam = (Camera) devices[id];
-        if (cam.stopRecording()) {
-            System.out.println(name + " " + id + STPD_REC);
-        } else {
-            System.out.println(name + " " + id + NOT_REC);
+        engine.pauseAndRun(null);
+        long time = System.nanoTime() - start;
+        engine.close();
+        return commands.length * 1e9 / time;
+    }
+
+    /**
+     * Method that generates random commands for registered devices.
+     * @param devices registry of devices.
+     * @param count number of commands.
+     * @return generated commands.
+     */
+    static String[] generate(DeviceRegistry devices, int count) {
+        Random random = new Random(SEED);
+        String[] commands = new String[count];
+        for (int i = 0; i < count; i++) {
+            SmartDevice device = devices.getDevice(random.nextInt(devices.size()));
+            String target = device.getType().getName() + " " + device.getDeviceId();
+            switch (random.nextInt(KINDS)) {
+                case 0: commands[i] = "TurnOn " + target; break;
+                case 1: commands[i] = "TurnOff " + target; break;
+                case 2: commands[i] = "StartCharging " + target; break;
+                case 3: commands[i] = "SetTemperature " + target + " " + (TEMP_BASE + random.nextInt(TEMP_RANGE)); break;
+                case 4: commands[i] = "SetAngle " + target + " " + (random.nextInt(ANGLE_RANGE) - ANGLE_RANGE / 2); break;
+                default: commands[i] = "SetBrightness " + target + " HIGH"; break;
+            }
         }
+        return commands;
     }
 }